@@ -94,8 +94,22 @@ public abstract class AbstractMavenProcessFactory
 
     private final String mavenOpts;
 
+    /**
+     * Node the process is launched on, or null for the one of the current executor.
+     */
+    private final Node node;
+
     AbstractMavenProcessFactory(MavenModuleSet mms, Launcher launcher, EnvVars envVars, String mavenOpts, FilePath workDir) {
+        this(mms, null, launcher, envVars, mavenOpts, workDir);
+    }
+
+    /**
+     * Used to launch processes outside of the executor of a build, such as
+     * the ones {@link ProcessCache#prewarm started ahead of time}.
+     */
+    AbstractMavenProcessFactory(MavenModuleSet mms, Node node, Launcher launcher, EnvVars envVars, String mavenOpts, FilePath workDir) {
         this.mms = mms;
+        this.node = node;
         this.launcher = launcher;
         this.envVars = envVars;
         this.workDir = workDir;
@@ -417,6 +431,8 @@ public abstract class AbstractMavenProcessFactory
      * Returns the current {@link Node} on which we are buildling.
      */
     protected Node getCurrentNode() {
+        if (node != null)
+            return node;
         return Executor.currentExecutor().getOwner().getNode();
     }
     
@@ -70,6 +70,10 @@ public abstract class AbstractMavenProject<P extends AbstractProject<P,R>,R exte
     		if (build.getResult().isWorseThan(Result.UNSTABLE)) return false;
     		// trigger dependency builds
     		AbstractProject<?,?> downstreamProject = getDownstreamProject();
+    		// modules of the same module set are scheduled by GridBuildScheduler
+    		if (downstreamProject instanceof MavenModule && getUpstreamProject() instanceof MavenModule
+    				&& ((MavenModule) downstreamProject).getParent() == ((MavenModule) getUpstreamProject()).getParent())
+    			return false;
     		if(AbstractMavenBuild.debug)
     			listener.getLogger().println("Considering whether to trigger "+downstreamProject+" or not");
 
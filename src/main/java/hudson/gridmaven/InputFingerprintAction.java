@@ -0,0 +1,184 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 berserker.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.gridmaven;
+
+import hudson.Util;
+import hudson.gridmaven.gridlayer.ArtifactIndex;
+import hudson.gridmaven.gridlayer.GridArtifactRepository;
+import hudson.gridmaven.gridlayer.GridRepositoryLayout;
+import hudson.gridmaven.gridlayer.ManifestWorkspaceSync;
+import hudson.gridmaven.gridlayer.SourceManifest;
+import hudson.model.AbstractProject;
+import hudson.model.InvisibleAction;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the inputs a {@link MavenBuild} was run with, so that the next build
+ * of the module can tell whether anything changed.
+ *
+ * <p>
+ * The fingerprint covers the source manifest of the module (which includes its POM),
+ * the artifacts of the pinned upstream builds, the goals and MAVEN_OPTS.
+ * A build whose fingerprint equals the one of the last successful build does not
+ * run Maven, and instead provides the artifacts that build published
+ * to the grid repository, see {@link #getArtifactsBuildId()}.
+ *
+ * @author Filip Hubik
+ */
+public class InputFingerprintAction extends InvisibleAction {
+
+    private final String fingerprint;
+
+    /**
+     * Build id of the published artifacts this build reused, or null if it built its own.
+     */
+    private final String artifactsBuildId;
+
+    public InputFingerprintAction(String fingerprint, String artifactsBuildId) {
+        this.fingerprint = fingerprint;
+        this.artifactsBuildId = artifactsBuildId;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public String getArtifactsBuildId() {
+        return artifactsBuildId;
+    }
+
+    /**
+     * True if the build was skipped because its inputs were unchanged.
+     */
+    public boolean isUpToDate() {
+        return artifactsBuildId != null;
+    }
+
+    /**
+     * Build id under which the artifacts of the given build are published
+     * in the grid repository.
+     */
+    public static String artifactsBuildId(MavenBuild b) {
+        InputFingerprintAction a = b.getAction(InputFingerprintAction.class);
+        if (a != null && a.artifactsBuildId != null)
+            return a.artifactsBuildId;
+        return GridRepositoryLayout.buildId(b.getParent().getParent().getName(), b.getNumber());
+    }
+
+    /**
+     * Computes the input fingerprint of a module build.
+     *
+     * @param setBuildNumber
+     *      Module set build whose source snapshot the module build works on,
+     *      see {@link MavenBuild#getSetBuildNumber()}.
+     * @return
+     *      null if some input cannot be identified or read, in which case the module must be built.
+     */
+    public static String compute(FileSystem fs, MavenModule module, int setBuildNumber, String goals, String mavenOpts) {
+        try {
+            return doCompute(fs, module, setBuildNumber, goals, mavenOpts);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot compute the input fingerprint of " + module.getFullName(), e);
+            return null;
+        }
+    }
+
+    private static String doCompute(FileSystem fs, MavenModule module, int setBuildNumber, String goals, String mavenOpts) throws IOException {
+        MavenModule root = module.getParent().getRootModule();
+        if (root == null)
+            return null;
+        String rootName = root.getModuleName().groupId + "." + root.getModuleName().artifactId + "-" + root.getVersion();
+        Path manifestPath = ManifestWorkspaceSync.findManifest(fs, GridRepositoryLayout.manifestDir(
+                module.getParent().getName(), rootName, module.getModuleName().artifactId, module.getVersion()),
+                setBuildNumber);
+        if (manifestPath == null)
+            return null;
+
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        InputStream in = fs.open(manifestPath);
+        try {
+            update(md, "sources " + SourceManifest.read(in).digest());
+        } finally {
+            in.close();
+        }
+
+        // sorted, so that the order of the dependency graph does not matter
+        Map<String, String> upstream = new TreeMap<String, String>();
+        for (AbstractProject<?, ?> p : module.getUpstreamProjects()) {
+            if (!(p instanceof MavenModule))
+                continue;
+            MavenModule u = (MavenModule) p;
+            MavenBuild last = u.getLastSuccessfulBuild();
+            Path dir = GridArtifactRepository.resolve(fs, u.getModuleName().groupId,
+                    u.getModuleName().artifactId, u.getVersion(),
+                    last != null ? artifactsBuildId(last) : null);
+            if (dir == null)
+                return null;
+            Path index = new Path(dir, ArtifactIndex.FILE_NAME);
+            if (fs.exists(index)) {
+                in = fs.open(index);
+                try {
+                    upstream.put(u.getModuleName().toString(), ArtifactIndex.read(in).digest());
+                } finally {
+                    in.close();
+                }
+            } else {
+                // published before artifact indexes existed; the build directory is never modified
+                upstream.put(u.getModuleName().toString(), dir.getName());
+            }
+        }
+        for (Map.Entry<String, String> e : upstream.entrySet())
+            update(md, "upstream " + e.getKey() + " " + e.getValue());
+
+        update(md, "goals " + Util.fixNull(goals));
+        update(md, "opts " + Util.fixNull(mavenOpts));
+        return Util.toHexString(md.digest());
+    }
+
+    private static void update(MessageDigest md, String line) {
+        try {
+            md.update((line + '\n').getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(InputFingerprintAction.class.getName());
+}
@@ -27,8 +27,14 @@ import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.maven.MavenInformation;
 import hudson.gridmaven.Messages;
+import hudson.gridmaven.gridlayer.GridArtifactRepository;
 import hudson.gridmaven.gridlayer.HadoopInstance;
+import hudson.gridmaven.gridlayer.HdfsClients;
 import hudson.gridmaven.gridlayer.HadoopSlaveRequestInfo;
+import hudson.gridmaven.gridlayer.HadoopSlaveRequestInfo.UpStreamDep;
+import hudson.gridmaven.gridlayer.GridRepositoryLayout;
+import hudson.gridmaven.scheduler.GridBuildScheduler;
+import hudson.gridmaven.scheduler.GridScheduleAction;
 import hudson.gridmaven.gridlayer.PluginImpl;
 import hudson.gridmaven.reporters.MavenArtifactRecord;
 import hudson.gridmaven.reporters.SurefireArchiver;
@@ -61,6 +67,8 @@ import hudson.tasks.Shell;
 import hudson.util.ArgumentListBuilder;
 import hudson.util.DescribableList;
 import hudson.util.IOUtils;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.maven.BuildFailureException;
 import org.apache.maven.execution.MavenSession;
 import org.apache.maven.execution.ReactorManager;
@@ -167,6 +175,18 @@ public class MavenBuild extends AbstractMavenBuild<MavenModule,MavenBuild> {
         return getParent().getParent().getBuildByNumber(getNumber());
     }
 
+    /**
+     * Gets the number of the {@link MavenModuleSetBuild} that scheduled this build,
+     * whose source snapshot this build works on.
+     *
+     * @return
+     *      0 if the module build was triggered on its own.
+     */
+    public int getSetBuildNumber() {
+        GridScheduleAction mark = getAction(GridScheduleAction.class);
+        return mark != null ? mark.getSetBuildNumber() : 0;
+    }
+
     /**
      * The same as {@link #getParentBuild()}.
      */
@@ -723,12 +743,50 @@ public class MavenBuild extends AbstractMavenBuild<MavenModule,MavenBuild> {
                 listener.getLogger().println("Building single Maven modules is not implemented for Maven 3, yet!");
                 return Result.ABORTED;
             }
-            
-            ProcessCache.MavenProcess process = MavenBuild.mavenProcessCache.get(launcher.getChannel(), listener, maven3orLater
-                    ? new Maven3ProcessFactory(
-                    getParent().getParent(), launcher, envVars, getMavenOpts(listener, envVars), null)
-                    : new MavenProcessFactory(
-                    getParent().getParent(), launcher, envVars, getMavenOpts(listener, envVars), null));
+
+            PluginImpl pl = PluginImpl.get();
+
+            // skip modules whose inputs did not change since the last successful build
+            if (mms.isIncrementalBuild()) {
+                FileSystem fs = pl.getHdfs(getClass()).getFs();
+                String fingerprint = null;
+                MavenBuild last = null;
+                String reused = null;
+                try {
+                    if (fs != null)
+                        fingerprint = InputFingerprintAction.compute(fs, getProject(), getSetBuildNumber(),
+                                getProject().getGoals(), getMavenOpts(listener, envVars));
+                    if (fingerprint != null) {
+                        last = getProject().getLastSuccessfulBuild();
+                        InputFingerprintAction previous = last != null ? last.getAction(InputFingerprintAction.class) : null;
+                        if (previous != null && fingerprint.equals(previous.getFingerprint())) {
+                            String id = InputFingerprintAction.artifactsBuildId(last);
+                            ModuleName name = getProject().getModuleName();
+                            Path dir = GridArtifactRepository.resolve(fs, name.groupId, name.artifactId,
+                                    getProject().getVersion(), id);
+                            if (dir != null && dir.getName().equals(id))
+                                reused = id;
+                        }
+                    }
+                } finally {
+                    HdfsClients.release(fs);
+                }
+                if (reused != null) {
+                    getActions().add(new InputFingerprintAction(fingerprint, reused));
+                    listener.getLogger().println("Inputs unchanged since " + last.getDisplayName()
+                            + ", reusing its artifacts; module is up to date");
+                    // the build wrappers were already set up to compute the Maven options
+                    return tearDownEnvironments(listener) ? Result.SUCCESS : Result.FAILURE;
+                }
+                if (fingerprint != null)
+                    getActions().add(new InputFingerprintAction(fingerprint, null));
+            }
+
+            MavenProcessFactory factory = new MavenProcessFactory(
+                    getParent().getParent(), getCurrentNode(), launcher, envVars, getMavenOpts(listener, envVars), null);
+            ProcessCache.MavenProcess process = mavenProcessCache.get(launcher.getChannel(), listener, factory);
+            // have an idle process ready again for the next module build on this node
+            mavenProcessCache.prewarm(launcher.getChannel(), factory, ProcessCache.PREWARM);
 
             ArgumentListBuilder margs = new ArgumentListBuilder("-N", "-B");
 
@@ -770,8 +828,6 @@ public class MavenBuild extends AbstractMavenBuild<MavenModule,MavenBuild> {
             systemProps.put("hudson.build.number", String.valueOf(getNumber()));
             String rel = project.getRelativePath();
 
-            PluginImpl pl = PluginImpl.get();
-            
             // Fill object for serialization with necessarry info
             HadoopSlaveRequestInfo serialInfo = new HadoopSlaveRequestInfo();
             
@@ -781,19 +837,27 @@ public class MavenBuild extends AbstractMavenBuild<MavenModule,MavenBuild> {
             serialInfo.mVersion = project.getVersion();
             serialInfo.mPackaging = project.getPackaging();
             serialInfo.hdfsUrl = pl.getHdfsUrl();
+            serialInfo.hdfsSettings = MavenModuleSet.DESCRIPTOR.getHdfsSettings();
             serialInfo.rArtifact = root.getModuleName().artifactId;
             serialInfo.rGroupId = root.getModuleName().groupId;
             serialInfo.rVersion = root.getVersion();
             serialInfo.rName = serialInfo.rGroupId + "." + serialInfo.rArtifact + "-" + serialInfo.rVersion;
             serialInfo.jobName = project.getParent().getName();
+            serialInfo.buildId = GridRepositoryLayout.buildId(serialInfo.jobName, getNumber());
+            serialInfo.setBuildNumber = getSetBuildNumber();
             for (AbstractProject it : project.getUpstreamProjects()) {
                 MavenModule a = (MavenModule) it;
-                serialInfo.addUpStreamDep(a.getModuleName().artifactId,
+                UpStreamDep dep = serialInfo.addUpStreamDep(a.getModuleName().artifactId,
                         a.getModuleName().groupId,a.getVersion(),a.getPackaging());
+                // pin the build the dependency graph was computed against
+                MavenBuild upstream = a.getLastSuccessfulBuild();
+                if (upstream != null)
+                    dep.buildId = InputFingerprintAction.artifactsBuildId(upstream);
             }
             
             serialInfo.mavenExePath = mvn.getExecutable(launcher);
             Node node = getCurrentNode();
+            serialInfo.nodeRoot = node.getRootPath().getRemote();
             FilePath rootPath = node.getWorkspaceFor(project.getParent());
             String workspace = rootPath.child(getProject().getRelativePath()).getRemote();
             serialInfo.entrySet = new HashMap<String, String>();
@@ -889,13 +953,7 @@ public class MavenBuild extends AbstractMavenBuild<MavenModule,MavenBuild> {
 
                 listener.getLogger().println("Module operation finished\n");
 
-                // tear down in reverse order
-                boolean failed = false;
-                for (int i = buildEnvironments.size() - 1; i >= 0; i--) {
-                    if (!buildEnvironments.get(i).tearDown(MavenBuild.this, listener)) {
-                        failed = true;
-                    }
-                }
+                boolean failed = !tearDownEnvironments(listener);
 //                Again for future compatibility                
 //                listener.getLogger().println("Packaging...");
 //                Shell b = new Shell(mvn.getExecutable(launcher)
@@ -947,6 +1005,21 @@ public class MavenBuild extends AbstractMavenBuild<MavenModule,MavenBuild> {
             }
         }
 
+        /**
+         * Tears down the build wrappers in reverse order.
+         *
+         * @return false if any of them failed.
+         */
+        private boolean tearDownEnvironments(BuildListener listener) throws IOException, InterruptedException {
+            boolean succeeded = true;
+            for (int i = buildEnvironments.size() - 1; i >= 0; i--) {
+                if (!buildEnvironments.get(i).tearDown(MavenBuild.this, listener)) {
+                    succeeded = false;
+                }
+            }
+            return succeeded;
+        }
+
         @Override
         public void cleanUp(BuildListener listener) throws Exception {
             boolean isUserBuild = false;
@@ -959,6 +1032,7 @@ public class MavenBuild extends AbstractMavenBuild<MavenModule,MavenBuild> {
             
             // Trigger downstream builds, only if this is casual downstream builder
             if (!isUserBuild){
+                GridBuildScheduler.onCompleted(MavenBuild.this, listener);
                 super.cleanUp(listener);
             }
             
@@ -979,7 +1053,10 @@ public class MavenBuild extends AbstractMavenBuild<MavenModule,MavenBuild> {
         return envVars.expand(expandTokens(listener, getProject().getParent().getMavenOpts()));
     }
 
-    private static final int MAX_PROCESS_CACHE = 5;
+    /**
+     * Number of idle Maven processes cached on each node.
+     */
+    private static final int MAX_PROCESS_CACHE = Integer.getInteger(MavenBuild.class.getName() + ".maxProcess", 5);
 
     protected static final ProcessCache mavenProcessCache = new ProcessCache(MAX_PROCESS_CACHE);
 
@@ -24,12 +24,15 @@
  */
 package hudson.gridmaven;
 
-import hudson.EnvVars;
-import hudson.FilePath;
-import hudson.Functions;
-import hudson.Launcher;
-import hudson.Util;
 import hudson.gridmaven.gridlayer.HadoopSlaveRequestInfo;
+import hudson.gridmaven.gridlayer.ArtifactIndex;
+import hudson.gridmaven.gridlayer.GridArtifactRepository;
+import hudson.gridmaven.gridlayer.GridRepositoryLayout;
+import hudson.gridmaven.gridlayer.HdfsClients;
+import hudson.gridmaven.gridlayer.LocalBlockReader;
+import hudson.gridmaven.gridlayer.LocalRepositoryInstaller;
+import hudson.gridmaven.gridlayer.NodeArtifactCache;
+import hudson.gridmaven.gridlayer.ManifestWorkspaceSync;
 import hudson.gridmaven.gridlayer.HadoopSlaveRequestInfo.UpStreamDep;
 import hudson.maven.agent.AbortException;
 import hudson.maven.agent.Main;
@@ -37,37 +40,38 @@ import hudson.maven.agent.PluginManagerListener;
 import hudson.gridmaven.reporters.SurefireArchiver;
 import hudson.model.BuildListener;
 import hudson.model.Result;
-import hudson.remoting.Callable;
 import hudson.remoting.Channel;
 import hudson.remoting.DelegatingCallable;
-import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.IOException2;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.text.NumberFormat;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
-import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataInputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.maven.BuildFailureException;
+import org.apache.maven.artifact.Artifact;
 import org.apache.maven.execution.MavenSession;
 import org.apache.maven.execution.ReactorManager;
 import org.apache.maven.lifecycle.LifecycleExecutionException;
@@ -107,6 +111,10 @@ public abstract class MavenBuilder extends AbstractMavenBuilder implements Deleg
     private final String buildPath;
     private final HadoopSlaveRequestInfo info;
     FileSystem fs;
+    /**
+     * Upload of the artifacts of the finished build, see {@link #startPublication(MavenProject)}.
+     */
+    private transient Future<Path> publication;
 
     protected MavenBuilder(BuildListener listener, Collection<MavenModule> modules,
             List<String> goals, Map<String, String> systemProps, String buildPath, HadoopSlaveRequestInfo hadoopData) {
@@ -175,104 +183,23 @@ public abstract class MavenBuilder extends AbstractMavenBuilder implements Deleg
              */
 
             markAsSuccess = false;
+            publication = null;
 
             registerSystemProperties();
 
-            // Hadoop configuration
-            Configuration conf = new Configuration();
-            conf.set("fs.default.name", info.hdfsUrl);
-            conf.set("fs.hdfs.impl", "org.apache.hadoop.hdfs.DistributedFileSystem");
-            conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
-            String moduleTar = info.mArtifact + "-" + info.mVersion + ".tar";
-            String hdfsSource = "/tar/" + info.jobName + "/" + info.rName + "/" + moduleTar;
-            fs = FileSystem.get(conf);
-
-            String installCommand = "";
-
-            // Untar sources from hadoop directly
-            logger.println("Untaring sources for artifact: " + info.mArtifact
-                    + "-" + info.mVersion + "." + info.mPackaging);
-            try {
-                getAndUntar(fs, hdfsSource, buildPath);
-            } catch (Exception fe) {
-                logger.println("Source data for this module not found in hdfs repository or hdfs error. Please try rebuild main project.");
-                //fe.printStackTrace();
-                return Result.FAILURE;
-            }
-            logger.println("Untared file: " + hdfsSource + " to " + buildPath + "\n");
-
-            // Check if repository exists + is HDFS working
-            Path repo = new Path("/repository");
-            FileStatus[] status = fs.listStatus(repo);
-            if (status != null) {
-                if (status.length < 1) {
-                    logger.println("Zero files stored in HDFS");
-                }
-//                // Print files stored in hdfs for debug
-//                for (int i = 0; i < status.length; i++) {
-//                    logger.println("Reading file: " + status[i].getPath());
-//                }
-            } else {
-                logger.println("Creating hdfs repository.");
-                if (!fs.mkdirs(repo)) {
-                    logger.println("Cannot create hdfs repository");
-                    return Result.FAILURE;
-                }
-            }
-
-            // Install prerequisite artifacts
-            if (info.upStreamDeps.size() > 0) {
-                logger.println("Preinstalling artifacts:");
-            }
-            for (UpStreamDep dep : info.upStreamDeps) {
-
-                // Fetch deps from hdfs repository
-                String artifactName = dep.art + "-" + dep.ver
-                        + "." + dep.pkg;
-                Path hdfsPath = new Path("/repository/" + dep.art + "-" + dep.ver);
-                Path absPath = new Path(buildPath + "/deps");
-
-                boolean success = (new File(buildPath + "/deps")).mkdirs();
-                if (!success) {
-                    //IOException e = new IOException();
-                    //e.printStackTrace();
-                }
-                logger.println("Copying from hadoop path: " + hdfsPath + " to local path:" + absPath);
-                // Copy selected artifact from HDFS
-                try {
-                    FileStatus[] statusP = fs.listStatus(hdfsPath);
-                    if (statusP == null)
-                        throw new IOException2("This irtifact is not in hdfs repository!", null);
-                    for (FileStatus file : statusP) {
-                        if (!file.isDir())
-                            fs.copyToLocalFile(file.getPath(), absPath);
-                    }
-                } catch (Exception e) {
-                    logger.println("Prerequisite artifact needed for module build missing: " + artifactName);
-                    return Result.FAILURE;
-                }
-                String s = "install:install-file -Dfile=deps"+File.separator
-                        + dep.art + "-" + dep.ver + "." + dep.pkg
-                        + " -DgroupId=" + dep.group
-                        + " -DartifactId=" + dep.art
-                        + " -Dversion=" + dep.ver
-                        + " -Dpackaging=" + dep.pkg
-                        + " -DpomFile=" + "deps" + File.separator + dep.art + "-" + dep.ver + ".pom";
-                logger.println("Preinstalling artifact: " + s + "\n");
-                installCommand += info.mavenExePath + " " + s + ";";
-            }
+            // Hadoop client, kept across builds of this Maven process, released when done
+            fs = HdfsClients.get(info.hdfsUrl, info.hdfsSettings);
+            LocalBlockReader blockReader = new LocalBlockReader(fs, LocalBlockReader.dataDir(info.nodeRoot));
 
-            //logger.println("Executing: " + installCommand);
             try {
-                if (!performWrapper(installCommand)) {
-                    logger.println("Artifact installation failed!");
-                }
-            } catch (Exception e) {
-                logger.println("Execute process of installing artifacts to local repository failed: " + installCommand);
-                e.printStackTrace();
-                return Result.FAILURE;
+                Result failure = fetchInputs(logger, blockReader);
+                if (failure != null)
+                    return failure;
+                logger.println("Read " + blockReader.getLocalBytes() + " bytes from local HDFS blocks, "
+                        + blockReader.getRemoteBytes() + " bytes through the data nodes\n");
+            } finally {
+                blockReader.close();
             }
-            logger.println("Artifact installation finished\n");
 
             // End of preinstalation phase
 
@@ -305,88 +232,20 @@ public abstract class MavenBuilder extends AbstractMavenBuilder implements Deleg
                 return Result.FAILURE;
             }
 
-            // Install produced artifacts to HDFS repository
-            logger.println("Packaging...");
-            try {
-                // Package artifact
-                performWrapper(info.mavenExePath + " -N -B package -Dmaven.test.skip=true -Dmaven.test.failure.ignore=true");
-            } catch (InterruptedException ex) {
-                logger.println("Artifact packaging failed!");
-                Logger.getLogger(MavenBuilder.class.getName()).log(Level.SEVERE, null, ex);
+            // The artifacts were uploaded while Maven was finishing, see startPublication()
+            if (publication == null) {
+                logger.println("Build produced no artifacts to insert to hadoop");
                 return Result.FAILURE;
             }
-            logger.println("Package created\n");
-
-            // Insert compiled artifact to hdfs repository
-            String absolute = buildPath;
-            String artPath = absolute + "/target/" + artifact + "-" + version + "." + packaging;
-            File normalPom = new File(artPath);
-            
-            // If its bundle, e.g. OSGi bundle, treat that as jar
-            if (!normalPom.exists()){
-                artPath = absolute + "/target/" + artifact + "." + "jar";
-                File specialJar = new File(artPath);
-                if (!specialJar.exists()){   
-                        artPath = "";
-                        packaging = "jar";
-                }
-            }
-            
-            // Copy created artifact only
             try {
-                if (upStreamDeps.size() > 0 && !artPath.equals("")) {
-                    String destName;
-                    File target = new File(absolute + File.separator + "target");
-                    logger.println("Produced artifacts found:");
-                    File[] files = target.listFiles();
-                    
-                    if (target.length() > 0) {
-//                        for (File file : files) {
-//                            if (file.isFile()) {
-//                                logger.println(file.getPath());
-//                                artPath = file.getAbsolutePath();
-//                                if (artPath.contains("pom") || artPath.contains("jar") || artPath.contains("war") || artPath.contains("ear")) {
-//                                    String suffix = artPath.substring(artPath.lastIndexOf('.') + 1, artPath.length());
-                                    Path absArtifactPath = new Path(artPath);
-                                    destName = "/repository/" + artifact + "-" + version + "/" + artifact + "-" + version + "." + packaging;
-
-                                    Path nameP = new Path(artPath);
-                                    FileStatus[] status3 = fs.listStatus(nameP);
-                                    if (status3 == null) {
-                                        logger.println("\nCopying from local path:" + absArtifactPath + " to hadoop:" + destName);
-                                        try {
-                                            fs.copyFromLocalFile(absArtifactPath, new Path(destName));
-                                        } catch (Exception e) {
-                                            logger.println("Exception in inserting artifact!");
-                                            return Result.FAILURE;
-                                        }
-                                    }
-//                                }
-//                            }
-//                        }
-                    }
-                }
-                
-                // Copy only parent pom or archive at least main pom
-                Path pomPath = new Path(absolute + "/pom.xml");
-                logger.println("\nCopying from local path:" + pomPath
-                        + " to hadoop: /repository/" + artifact + "-" + version + ".pom");
-                String name = "/repository/" + artifact + "-" + version + "/" + artifact + "-" + version + ".pom";
-
-                Path nameP = new Path(name);
-                FileStatus[] status2 = fs.listStatus(nameP);
-                if (status2 == null) {
-                    try {
-                        fs.copyFromLocalFile(pomPath, new Path(name));
-                    } catch (Exception e) {
-                        logger.println("Exception in inserting main pom artifact!");
-                    }
-                }
-                //}
-            } catch (Exception e) {
-                logger.println("Failed to insert packaged artifact to hdfs repository! Maybe artifact only exists and this is not error.");
-                e.printStackTrace();
+                Path dest = publication.get();
+                logger.println("\nPublished artifacts to hadoop: " + dest);
+            } catch (ExecutionException e) {
+                // the cause was already reported by waitForAsynchronousExecutions()
+                logger.println("Failed to insert packaged artifact to hdfs repository: " + e.getCause().getMessage());
                 return Result.FAILURE;
+            } catch (InterruptedException e) {
+                return Result.ABORTED;
             }
 
             logger.println("Inserting to hadoop finished");
@@ -418,6 +277,13 @@ public abstract class MavenBuilder extends AbstractMavenBuilder implements Deleg
             //PluginManagerInterceptor.setListener(null);
             //LifecycleExecutorInterceptor.setListener(null);
             callSetListenerWithReflectOnInterceptorsQuietly(null, mavenJailProcessClassLoader);
+            // the process may be reused by the next module build
+            Thread.currentThread().setContextClassLoader(mavenJailProcessClassLoader);
+            // the build is over one way or another, don't keep uploading
+            if (publication != null)
+                publication.cancel(true);
+            HdfsClients.release(fs);
+            fs = null;
         }
 
     }
@@ -471,6 +337,216 @@ public abstract class MavenBuilder extends AbstractMavenBuilder implements Deleg
         }
     }
 
+    /**
+     * Brings the sources of the module from HDFS and installs its upstream artifacts
+     * into the local repository.
+     *
+     * @return
+     *      null if the build can go on, or the result to fail it with.
+     */
+    private Result fetchInputs(PrintStream logger, LocalBlockReader blockReader) throws IOException {
+        String manifestDir = GridRepositoryLayout.manifestDir(info.jobName, info.rName, info.mArtifact, info.mVersion);
+
+        // Materialize sources from hadoop directly
+        logger.println("Fetching sources for artifact: " + info.mArtifact
+                + "-" + info.mVersion + "." + info.mPackaging);
+        try {
+            Path manifestPath = ManifestWorkspaceSync.findManifest(fs, manifestDir, info.setBuildNumber);
+            if (manifestPath == null)
+                throw new FileNotFoundException("No manifest in " + manifestDir);
+            ManifestWorkspaceSync sync = new ManifestWorkspaceSync(fs, blockReader);
+            sync.sync(sync.readManifest(manifestPath), new File(buildPath),
+                    ManifestWorkspaceSync.stateFile(info.nodeRoot, manifestDir));
+            logger.println("Synchronized " + buildPath + " with " + manifestPath + ": fetched "
+                    + sync.getFetchedFiles() + " files (" + sync.getFetchedBytes() + " bytes), deleted "
+                    + sync.getDeletedFiles() + " files\n");
+        } catch (Exception fe) {
+            logger.println("Source data for this module not found in hdfs repository or hdfs error. Please try rebuild main project.");
+            return Result.FAILURE;
+        }
+
+        // Check if repository exists + is HDFS working
+        Path repo = new Path(GridRepositoryLayout.REPOSITORY);
+        FileStatus[] status = fs.listStatus(repo);
+        if (status != null) {
+            if (status.length < 1) {
+                logger.println("Zero files stored in HDFS");
+            }
+//                // Print files stored in hdfs for debug
+//                for (int i = 0; i < status.length; i++) {
+//                    logger.println("Reading file: " + status[i].getPath());
+//                }
+        } else {
+            logger.println("Creating hdfs repository.");
+            if (!fs.mkdirs(repo)) {
+                logger.println("Cannot create hdfs repository");
+                return Result.FAILURE;
+            }
+        }
+
+        // Install prerequisite artifacts
+        if (info.upStreamDeps.size() > 0) {
+            logger.println("Preinstalling artifacts:");
+        }
+        LocalRepositoryInstaller installer = new LocalRepositoryInstaller(LocalRepositoryInstaller.locate(goals));
+        NodeArtifactCache cache = new NodeArtifactCache(
+                NodeArtifactCache.forNode(info.nodeRoot), info.artifactCacheSize, blockReader);
+        for (UpStreamDep dep : info.upStreamDeps) {
+
+            // Fetch deps from hdfs repository
+            String artifactName = dep.art + "-" + dep.ver
+                    + "." + dep.pkg;
+            // Fetch selected artifact through the node cache and install it to the local repository
+            try {
+                Path hdfsPath = GridArtifactRepository.resolve(fs, dep.group, dep.art, dep.ver, dep.buildId);
+                FileStatus[] statusP = hdfsPath != null ? fs.listStatus(hdfsPath) : null;
+                if (statusP == null)
+                    throw new IOException2(dep.buildId != null
+                            ? "build " + dep.buildId + " is no longer in the hdfs repository"
+                            : "not in the hdfs repository", null);
+                logger.println("Fetching from hadoop path: " + hdfsPath);
+                installUpstream(dep, statusP, cache, installer);
+            } catch (Exception e) {
+                logger.println("Prerequisite artifact needed for module build missing: " + artifactName
+                        + " (" + e.getMessage() + ")");
+                return Result.FAILURE;
+            } finally {
+                // the local repository has its own copies now
+                cache.release();
+            }
+            logger.println("Preinstalled artifact: " + dep.group + ":" + dep.art + ":" + dep.ver + ":" + dep.pkg);
+        }
+        if (info.upStreamDeps.size() > 0) {
+            logger.println("Artifact installation to " + installer.getRepository() + " finished\n");
+        }
+        return null;
+    }
+
+    /**
+     * Installs the files of one published upstream build into the local repository,
+     * verifying them against the checksums of its {@link ArtifactIndex}.
+     */
+    private void installUpstream(UpStreamDep dep, FileStatus[] published, NodeArtifactCache cache,
+            LocalRepositoryInstaller installer) throws IOException {
+        Map<String, FileStatus> byName = new HashMap<String, FileStatus>();
+        for (FileStatus file : published) {
+            if (!file.isDir())
+                byName.put(file.getPath().getName(), file);
+        }
+
+        FileStatus indexStatus = byName.get(ArtifactIndex.FILE_NAME);
+        if (indexStatus == null) {
+            // published before artifact indexes existed
+            String base = dep.art + "-" + dep.ver;
+            FileStatus main = byName.get(base + "." + dep.pkg);
+            FileStatus pom = byName.get(base + ".pom");
+            if (pom == null || (main == null && !"pom".equals(dep.pkg)))
+                throw new IOException2("This irtifact is not in hdfs repository!", null);
+            installer.install(dep.group, dep.art, dep.ver, dep.pkg,
+                    main != null ? cache.get(fs, main) : null, cache.get(fs, pom));
+            return;
+        }
+
+        ArtifactIndex index;
+        InputStream in = new FileInputStream(cache.get(fs, indexStatus));
+        try {
+            index = ArtifactIndex.read(in);
+        } finally {
+            in.close();
+        }
+
+        Map<ArtifactIndex.Entry, File> local = new LinkedHashMap<ArtifactIndex.Entry, File>();
+        for (ArtifactIndex.Entry e : index.getEntries()) {
+            FileStatus status = byName.get(e.fileName);
+            if (status == null)
+                throw new IOException("Published build lacks " + e.fileName);
+            File f = cache.get(fs, status);
+            e.verify(f);
+            local.put(e, f);
+        }
+
+        ArtifactIndex.Entry pom = index.getPom();
+        ArtifactIndex.Entry main = index.getMain();
+        if (pom == null)
+            throw new IOException2("This irtifact is not in hdfs repository!", null);
+        installer.install(dep.group, dep.art, dep.ver, main != null ? main.extension : "pom",
+                main != null ? local.get(main) : null, local.get(pom));
+        for (Map.Entry<ArtifactIndex.Entry, File> e : local.entrySet()) {
+            if (e.getKey().classifier != null)
+                installer.installAttached(dep.group, dep.art, dep.ver, e.getKey().classifier,
+                        e.getKey().extension, e.getValue());
+        }
+    }
+
+    /**
+     * Starts uploading the artifacts of the finished build into the HDFS repository.
+     *
+     * <p>
+     * Called as soon as the reactor is done, so the upload overlaps with reporters and
+     * Maven shutting down. The POM, the main artifact and all attached artifacts are
+     * taken from the project Maven just built and published in one batch together with
+     * their {@link ArtifactIndex}, so no extra packaging run is needed. The build waits
+     * for the upload before it reports its result, so downstream modules never see it
+     * half way.
+     */
+    void startPublication(final MavenProject project) {
+        Future<Path> f = publisher.submit(new Callable<Path>() {
+            public Path call() throws IOException {
+                return publish(project);
+            }
+        });
+        publication = f;
+        // cancelled, interrupting the upload, if the build is aborted meanwhile
+        recordAsynchronousExecution(f);
+    }
+
+    private Path publish(MavenProject project) throws IOException {
+        String base = artifact + "-" + version;
+        Map<String, File> files = new LinkedHashMap<String, File>();
+        ArtifactIndex index = new ArtifactIndex();
+
+        files.put(base + ".pom", project.getFile());
+        index.add(project.getFile(), base + ".pom", "pom", null, "pom");
+
+        List<Artifact> artifacts = new ArrayList<Artifact>();
+        if (!"pom".equals(packaging)) {
+            // downstream modules would install the POM alone and fail on missing classes much later
+            File main = project.getArtifact().getFile();
+            if (main == null || !main.isFile())
+                throw new IOException("No " + packaging + " was packaged by this build, so downstream modules"
+                        + " could not use it; the goals of the module must include at least 'package'");
+            artifacts.add(project.getArtifact());
+        }
+        for (Object a : project.getAttachedArtifacts())
+            artifacts.add((Artifact) a);
+        for (Artifact a : artifacts) {
+            File file = a.getFile();
+            if (file == null || !file.isFile()) {
+                listener.getLogger().println("No " + a.getType() + " " + (a.hasClassifier() ? a.getClassifier() + " " : "")
+                        + "was packaged by this build, not publishing it");
+                continue;
+            }
+            String extension = a.getArtifactHandler().getExtension();
+            String name = base + (a.hasClassifier() ? "-" + a.getClassifier() : "") + "." + extension;
+            if (files.containsKey(name))
+                continue;
+            files.put(name, file);
+            index.add(file, name, a.getType(), a.getClassifier(), extension);
+        }
+
+        File indexFile = new File(project.getBuild().getDirectory(), ArtifactIndex.FILE_NAME);
+        indexFile.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(indexFile);
+        try {
+            index.write(out);
+        } finally {
+            out.close();
+        }
+        files.put(ArtifactIndex.FILE_NAME, indexFile);
+
+        return GridArtifactRepository.publish(fs, grouipId, artifact, version, info.buildId, files);
+    }
+
     /**
      * Receives {@link PluginManagerListener} and
      * {@link LifecycleExecutorListener} events and converts them to
@@ -501,6 +577,8 @@ public abstract class MavenBuilder extends AbstractMavenBuilder implements Deleg
         public void postBuild(MavenSession session, ReactorManager rm, EventDispatcher dispatcher) throws BuildFailureException, LifecycleExecutionException, IOException, InterruptedException {
             long startTime = System.nanoTime();
             fireLeaveModule();
+            if (!rm.hasBuildFailures())
+                listener.startPublication(rm.getTopLevelProject());
             listener.postBuild(session, rm, dispatcher);
             overheadTime += System.nanoTime() - startTime;
         }
@@ -548,126 +626,6 @@ public abstract class MavenBuilder extends AbstractMavenBuilder implements Deleg
         }
     }
 
-    public void getAndUntar(FileSystem fs, String src, String targetPath) throws FileNotFoundException, IOException {
-        BufferedOutputStream dest = null;
-        InputStream tarArchiveStream = new FSDataInputStream(fs.open(new Path(src)));
-        TarArchiveInputStream tis = new TarArchiveInputStream(new BufferedInputStream(tarArchiveStream));
-        TarArchiveEntry entry = null;
-        try {
-            while ((entry = tis.getNextTarEntry()) != null) {
-                int count;
-                File outputFile = new File(targetPath, entry.getName());
-
-                if (entry.isDirectory()) { // entry is a directory
-                    if (!outputFile.exists()) {
-                        outputFile.mkdirs();
-                    }
-                } else { // entry is a file
-                    byte[] data = new byte[BUFFER_MAX];
-                    FileOutputStream fos = new FileOutputStream(outputFile);
-                    dest = new BufferedOutputStream(fos, BUFFER_MAX);
-                    while ((count = tis.read(data, 0, BUFFER_MAX)) != -1) {
-                        dest.write(data, 0, count);
-                    }
-                    dest.flush();
-                    dest.close();
-                }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            if (dest != null) {
-                dest.flush();
-                dest.close();
-            }
-            tis.close();
-        }
-    }
-    public static final int BUFFER_MAX = 2048;
-
-    // Methods from Shell.class, used for script that installs and packages artifacts
-    public boolean performWrapper(String command) throws InterruptedException {
-        FilePath ws = new FilePath(new File(buildPath));
-//        String command = "mkdir hello";
-        command = fixCrLf(command);
-        FilePath script = null;
-        try {
-            script = ws.createTextTempFile("hudson", ".sh", addCrForNonASCII(fixCrLf(command)), false);
-        } catch (IOException e) {
-            Util.displayIOException(e, listener);
-            e.printStackTrace(listener.fatalError(hudson.tasks.Messages.CommandInterpreter_UnableToProduceScript()));
-            return false;
-        }
-        int r;
-        try {
-            EnvVars envVars = new EnvVars();
-
-            Iterator<Map.Entry<String, String>> entries = info.entrySet.entrySet().iterator();
-            while (entries.hasNext()) {
-                Map.Entry<String, String> entry = entries.next();
-                envVars.put(entry.getKey(), entry.getValue());
-            }
-
-            Launcher launcher = ws.createLauncher(listener);
-            //r = launcher.launch().cmds("echo").envs(envVars).stdout(logger).pwd(ws).join();
-            r = launcher.launch().cmds(buildCommandLine(script, command)).envs(envVars).stdout(listener).pwd(ws).join();
-        } catch (IOException e) {
-            Util.displayIOException(e, listener);
-            e.printStackTrace(listener.fatalError(hudson.tasks.Messages.CommandInterpreter_CommandFailed()));
-            r = -1;
-        }
-        return r == 0;
-    }
-
-    private static String addCrForNonASCII(String s) {
-        if (!s.startsWith("#!")) {
-            if (s.indexOf('\n') != 0) {
-                return "\n" + s;
-            }
-        }
-        return s;
-    }
-
-    private static String fixCrLf(String s) {
-        // eliminate CR
-        int idx;
-        while ((idx = s.indexOf("\r\n")) != -1) {
-            s = s.substring(0, idx) + s.substring(idx + 1);
-        }
-        return s;
-    }
-
-    public String[] buildCommandLine(FilePath script, String command) {
-        return new String[]{getShellOrDefault(script.getChannel()), "-xe", script.getRemote()};
-    }
-
-    public String getShellOrDefault(VirtualChannel channel) {
-        String interpreter = null;
-        try {
-            interpreter = channel.call(new Shellinterpreter());
-        } catch (IOException ex) {
-            Logger.getLogger(MavenBuilder.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (InterruptedException ex) {
-            Logger.getLogger(MavenBuilder.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        if (interpreter == null) {
-            interpreter = getShellOrDefault();
-        }
-        return interpreter;
-    }
-
-    public String getShellOrDefault() {
-        return Functions.isWindows() ? "sh" : "/bin/sh";
-    }
-
-    private static final class Shellinterpreter implements Callable<String, IOException> {
-
-        private static final long serialVersionUID = 1L;
-
-        public String call() throws IOException {
-            return Functions.isWindows() ? "sh" : "/bin/sh";
-        }
-    }
     /**
      * Used by selected {@link MavenReporter}s to notify the maven build agent
      * that even though Maven is going to fail, we should report the build as
@@ -688,5 +646,11 @@ public abstract class MavenBuilder extends AbstractMavenBuilder implements Deleg
      * {@link SurefireArchiver}. Subject to change without notice.
      */
     public static boolean markAsSuccess;
+    /**
+     * Uploads artifacts, see {@link #startPublication(MavenProject)}. The Maven process
+     * runs one build at a time.
+     */
+    private static final ExecutorService publisher = Executors.newSingleThreadExecutor(new DaemonThreadFactory());
+
     private static final long serialVersionUID = 1L;
 }
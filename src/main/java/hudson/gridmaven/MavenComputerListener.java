@@ -23,20 +23,31 @@
  */
 package hudson.gridmaven;
 
+import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.maven.MavenInformation;
 import hudson.maven.agent.AbortException;
 import hudson.maven.agent.Main;
 import hudson.maven.agent.Maven21Interceptor;
 import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
 import hudson.model.TaskListener;
 import hudson.remoting.Channel;
 import hudson.remoting.Which;
 import hudson.slaves.ComputerListener;
+import hudson.tasks.Maven.MavenInstallation;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import jenkins.model.Jenkins;
 
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.taskdefs.Zip;
@@ -45,7 +56,8 @@ import org.jvnet.hudson.maven3.agent.Maven3Main;
 import org.jvnet.hudson.maven3.launcher.Maven3Launcher;
 
 /**
- * When a slave is connected, copy <tt>maven-agent.jar</tt> and <tt>maven-intercepter.jar</tt>
+ * When a slave is connected, copy <tt>maven-agent.jar</tt> and <tt>maven-intercepter.jar</tt>,
+ * and start the Maven processes of the grid jobs ahead of their first build.
  *
  * @author Kohsuke Kawaguchi
  */
@@ -69,6 +81,42 @@ public class MavenComputerListener extends ComputerListener {
         logger.println("Copied classworlds.jar");
     }
 
+    @Override
+    public void onOnline(Computer c, TaskListener listener) throws IOException, InterruptedException {
+        Jenkins j = Jenkins.getInstance();
+        Node node = c.getNode();
+        if (c == j.toComputer() || node == null || c.getChannel() == null)
+            return;   // this happens before the master is started.
+        Label label = j.getLabelAtom(MavenModuleSet.DESCRIPTOR.getGridJobsLabel());
+        if (label != null && !label.contains(node))
+            return;
+
+        Launcher launcher = node.createLauncher(listener);
+        EnvVars env = c.getEnvironment();
+        // jobs mostly share a few installations, so ask the node for each version once
+        Map<String, MavenInformation> versions = new HashMap<String, MavenInformation>();
+        for (MavenModuleSet mms : j.getAllItems(MavenModuleSet.class)) {
+            // MAVEN_OPTS referring to build variables can't be known before the build
+            if (mms.isDisabled() || Util.fixNull(mms.getMavenOpts()).contains("$") || mms.getMaven() == null)
+                continue;
+            try {
+                MavenInstallation mvn = mms.getMaven().forNode(node, listener).forEnvironment(env);
+                MavenInformation info = versions.get(mvn.getHome());
+                if (info == null) {
+                    info = c.getChannel().call(new MavenVersionCallable(mvn.getHome()));
+                    versions.put(mvn.getHome(), info);
+                }
+                if (MavenUtil.maven3orLater(info.getVersion()))
+                    continue;   // module builds only run Maven 2
+                String mavenOpts = mms.getMavenOpts() != null ? env.expand(mms.getMavenOpts()) : null;
+                MavenProcessFactory factory = new MavenProcessFactory(mms, node, launcher, env, mavenOpts, null);
+                MavenBuild.mavenProcessCache.prewarm(c.getChannel(), factory, ProcessCache.PREWARM);
+            } catch (IOException e) {
+                e.printStackTrace(listener.error("Failed to start Maven processes for " + mms.getFullDisplayName()));
+            }
+        }
+    }
+
     /**
      * Copies a jar file from the master to slave.
      */
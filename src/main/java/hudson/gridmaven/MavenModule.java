@@ -143,6 +143,11 @@ public class MavenModule extends AbstractMavenProject<MavenModule,MavenBuild> im
      * The root module and orphaned module gets 0.
      */
     /*package*/ public volatile transient int nestLevel;
+
+    /**
+     * Dependency level of this module within its {@link MavenModuleSet}.
+     * Computed by {@link MavenModuleSet#rebuildDepLevels(boolean)}.
+     */
     public int depLevel;
 
     /*package*/ MavenModule(MavenModuleSet parent, PomInfo pom, int firstBuildNumber) throws IOException {
@@ -151,22 +156,6 @@ public class MavenModule extends AbstractMavenProject<MavenModule,MavenBuild> im
         updateNextBuildNumber(firstBuildNumber);
     }
 
-    int rebuildDepLevel() {
-        if (getName().contains("remote")){
-            getUpstreamProjects();
-        }
-        List<AbstractProject> up = getUpstreamProjects();
-        int level = -1;
-        for (int i =0;i<up.size();i++ ) {
-            AbstractProject d = up.get(i);
-            int m = ((MavenModule) d).rebuildDepLevel();
-            if (m>level)
-                level = m;
-        }
-        depLevel = ++level;
-        return depLevel;        
-    }
-    
     /**
      * {@link MavenModule} follows the same log rotation schedule as its parent. 
      */
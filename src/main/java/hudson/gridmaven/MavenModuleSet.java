@@ -34,6 +34,9 @@ import hudson.Functions;
 import hudson.Indenter;
 import hudson.Util;
 import hudson.gridmaven.Messages;
+import hudson.gridmaven.gridlayer.GridRepositoryCollector;
+import hudson.gridmaven.gridlayer.HdfsSettings;
+import hudson.gridmaven.gridlayer.SnapshotCodec;
 import hudson.gridmaven.local_repo.DefaultLocalRepositoryLocator;
 import hudson.gridmaven.local_repo.LocalRepositoryLocator;
 import hudson.gridmaven.local_repo.PerJobLocalRepositoryLocator;
@@ -77,11 +80,13 @@ import hudson.util.Function1;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -128,6 +133,12 @@ public class MavenModuleSet extends AbstractMavenProject<MavenModuleSet,MavenMod
     @CopyOnWrite
     transient List<MavenModule> sortedActiveModules;
 
+    /**
+     * True once {@link MavenModule#depLevel} of all modules has been computed
+     * from the current dependency graph.
+     */
+    private transient volatile boolean depLevelsValid;
+
     /**
      * Name of the top-level module. Null until the root module is determined.
      */
@@ -254,6 +265,18 @@ public class MavenModuleSet extends AbstractMavenProject<MavenModuleSet,MavenMod
      */
     private String globalSettingConfigId;
 
+    /**
+     * Id of the {@link SnapshotCodec} used to store module sources in HDFS.
+     * Null means no compression.
+     */
+    private String snapshotCodec;
+
+    /**
+     * Space the artifacts of this job may take in the HDFS repository, in megabytes.
+     * Zero means no limit.
+     */
+    private int repositoryQuota;
+
     /**
      * used temporary during maven build to store file path
      * @since 1.426
@@ -449,6 +472,125 @@ public class MavenModuleSet extends AbstractMavenProject<MavenModuleSet,MavenMod
         return r;
     }
 
+    /**
+     * Recomputes {@link MavenModule#depLevel} of all modules, unless the levels
+     * computed before are still valid.
+     *
+     * @param graphChanged
+     *      true if the dependency graph has been rebuilt since the last call.
+     */
+    void rebuildDepLevels(boolean graphChanged) {
+        if (depLevelsValid && !graphChanged)
+            return;
+        Map<MavenModule, Integer> levels = computeDepLevels(modules.values(), Jenkins.getInstance().getDependencyGraph());
+        for (Map.Entry<MavenModule, Integer> e : levels.entrySet())
+            e.getKey().depLevel = e.getValue();
+        depLevelsValid = true;
+    }
+
+    /**
+     * Computes the dependency level of every module in a single topological pass
+     * over the dependency graph: a module has level 0 when nothing it depends on is
+     * a module, and otherwise one more than the highest level of its upstream modules.
+     *
+     * <p>
+     * Upstream modules outside of the given collection contribute with their
+     * current {@link MavenModule#depLevel}. A dependency cycle is broken at one of its
+     * modules, which is placed above every level assigned so far; the rest of the cycle
+     * and the modules downstream of it follow from there. Level 0 thus stays reserved
+     * for modules that really have no upstream modules.
+     */
+    static Map<MavenModule, Integer> computeDepLevels(Collection<MavenModule> modules, DependencyGraph graph) {
+        Set<MavenModule> members = new HashSet<MavenModule>(modules);
+        Map<MavenModule, Integer> levels = new HashMap<MavenModule, Integer>();
+        Map<MavenModule, Integer> pending = new HashMap<MavenModule, Integer>();
+        Map<MavenModule, List<MavenModule>> upstream = new HashMap<MavenModule, List<MavenModule>>();
+        Map<MavenModule, List<MavenModule>> downstream = new HashMap<MavenModule, List<MavenModule>>();
+        ArrayDeque<MavenModule> ready = new ArrayDeque<MavenModule>();
+
+        for (MavenModule m : modules) {
+            int level = 0;
+            List<MavenModule> ups = new ArrayList<MavenModule>();
+            for (AbstractProject<?, ?> p : graph.getUpstream(m)) {
+                if (!(p instanceof MavenModule))
+                    continue;
+                MavenModule u = (MavenModule) p;
+                if (members.contains(u)) {
+                    ups.add(u);
+                    List<MavenModule> d = downstream.get(u);
+                    if (d == null) {
+                        d = new ArrayList<MavenModule>();
+                        downstream.put(u, d);
+                    }
+                    d.add(m);
+                } else {
+                    level = Math.max(level, u.depLevel + 1);
+                }
+            }
+            levels.put(m, level);
+            upstream.put(m, ups);
+            pending.put(m, ups.size());
+            if (ups.isEmpty())
+                ready.add(m);
+        }
+
+        Set<MavenModule> done = new HashSet<MavenModule>();
+        int highest = 0;
+        while (done.size() < levels.size()) {
+            if (ready.isEmpty()) {
+                // only cycles and their downstream modules are left
+                MavenModule m = onCycle(modules, done, upstream);
+                levels.put(m, Math.max(levels.get(m), highest + 1));
+                ready.add(m);
+            }
+            MavenModule u = ready.remove();
+            if (!done.add(u))
+                continue;
+            int next = levels.get(u) + 1;
+            highest = Math.max(highest, levels.get(u));
+            List<MavenModule> d = downstream.get(u);
+            if (d == null)
+                continue;
+            for (MavenModule m : d) {
+                if (done.contains(m))
+                    continue; // the cycle was broken there
+                if (levels.get(m) < next)
+                    levels.put(m, next);
+                int left = pending.get(m) - 1;
+                pending.put(m, left);
+                if (left == 0)
+                    ready.add(m);
+            }
+        }
+        return levels;
+    }
+
+    /**
+     * Finds a module on a dependency cycle among those not done yet. Each of them still
+     * waits for an upstream module that is not done, so walking upstream from any of
+     * them has to come back to a module already seen.
+     */
+    private static MavenModule onCycle(Collection<MavenModule> modules, Set<MavenModule> done,
+            Map<MavenModule, List<MavenModule>> upstream) {
+        MavenModule m = null;
+        for (MavenModule c : modules) {
+            if (!done.contains(c)) {
+                m = c;
+                break;
+            }
+        }
+        Set<MavenModule> seen = new HashSet<MavenModule>();
+        while (seen.add(m)) {
+            for (MavenModule u : upstream.get(m)) {
+                if (!done.contains(u)) {
+                    m = u;
+                    break;
+                }
+            }
+        }
+        return m;
+    }
+
     public Indenter<MavenModule> createIndenter() {
         return new Indenter<MavenModule>() {
             protected int getNestLevel(MavenModule job) {
@@ -465,6 +607,29 @@ public class MavenModuleSet extends AbstractMavenProject<MavenModuleSet,MavenMod
         return aggregatorStyleBuild;
     }
 
+    /**
+     * Compression used when module sources are transferred through HDFS.
+     */
+    public SnapshotCodec getSnapshotCodec() {
+        return SnapshotCodec.fromId(snapshotCodec);
+    }
+
+    public void setSnapshotCodec(SnapshotCodec codec) {
+        this.snapshotCodec = codec.getId();
+    }
+
+    /**
+     * Space the artifacts of this job may take in the HDFS repository, in megabytes.
+     * Zero means no limit.
+     */
+    public int getRepositoryQuota() {
+        return repositoryQuota;
+    }
+
+    public void setRepositoryQuota(int repositoryQuota) {
+        this.repositoryQuota = Math.max(0, repositoryQuota);
+    }
+
     /**
      * @deprecated as of 1.448
      *      Use {@link #getLocalRepository()}
@@ -768,6 +933,7 @@ public class MavenModuleSet extends AbstractMavenProject<MavenModuleSet,MavenMod
         // perform the log rotation of modules
         for (MavenModule m : modules.values())
             m.logRotate();
+        GridRepositoryCollector.schedule();
     }
 
     /**
@@ -1092,6 +1258,8 @@ public class MavenModuleSet extends AbstractMavenProject<MavenModuleSet,MavenMod
         buildWrappers.rebuild(req,json,BuildWrappers.getFor(this));
         settingConfigId = req.getParameter( "maven.mavenSettingsConfigId" );
         globalSettingConfigId = req.getParameter( "maven.mavenGlobalSettingConfigId" );
+        snapshotCodec = SnapshotCodec.fromId( req.getParameter( "maven.snapshotCodec" ) ).getId();
+        repositoryQuota = Math.max( 0, NumberUtils.toInt( req.getParameter( "maven.repositoryQuota" ), 0 ) );
 
         runPostStepsIfResult = Result.fromString(req.getParameter( "post-steps.runIfResult"));
         prebuilders.rebuildHetero(req,json, Builder.all(), "prebuilder");
@@ -1156,6 +1324,12 @@ public class MavenModuleSet extends AbstractMavenProject<MavenModuleSet,MavenMod
          */
         private String globalMavenOpts;
         private String gridJobsLabel;
+
+        /**
+         * HDFS block size in megabytes, replication factor and space reserved
+         * on data nodes in megabytes. Zero means the default.
+         */
+        private int hdfsBlockSize, hdfsReplication, hdfsReserved;
         
         /**
          * @since 1.394
@@ -1186,6 +1360,26 @@ public class MavenModuleSet extends AbstractMavenProject<MavenModuleSet,MavenMod
         public String getGridJobsLabel() {
             return gridJobsLabel;
         }        
+
+        public int getHdfsBlockSize() {
+            return hdfsBlockSize > 0 ? hdfsBlockSize : HdfsSettings.DEFAULT_BLOCK_SIZE_MB;
+        }
+
+        public int getHdfsReplication() {
+            return hdfsReplication > 0 ? hdfsReplication : HdfsSettings.DEFAULT_REPLICATION;
+        }
+
+        public int getHdfsReserved() {
+            return hdfsReserved > 0 ? hdfsReserved : HdfsSettings.DEFAULT_RESERVED_MB;
+        }
+
+        /**
+         * Storage settings of the grid HDFS.
+         */
+        public HdfsSettings getHdfsSettings() {
+            return new HdfsSettings(getHdfsBlockSize() * 1024L * 1024L, getHdfsReplication(),
+                    getHdfsReserved() * 1024L * 1024L);
+        }
         
         public void setGlobalMavenOpts(String globalMavenOpts) {
             this.globalMavenOpts = globalMavenOpts;
@@ -1224,10 +1418,17 @@ public class MavenModuleSet extends AbstractMavenProject<MavenModuleSet,MavenMod
             return mavenValidationLevels;
         }
 
+        public SnapshotCodec[] getSnapshotCodecs() {
+            return SnapshotCodec.values();
+        }
+
         @Override
         public boolean configure( StaplerRequest req, JSONObject o ) {
             globalMavenOpts = Util.fixEmptyAndTrim(o.getString("globalMavenOpts"));
             gridJobsLabel = Util.fixEmptyAndTrim(o.getString("gridJobsLabel"));
+            hdfsBlockSize = Math.max(0, NumberUtils.toInt(o.optString("hdfsBlockSize"), 0));
+            hdfsReplication = Math.max(0, NumberUtils.toInt(o.optString("hdfsReplication"), 0));
+            hdfsReserved = Math.max(0, NumberUtils.toInt(o.optString("hdfsReserved"), 0));
             localRepository = req.bindJSON(LocalRepositoryLocator.class,o.getJSONObject("localRepository"));
             save();
 
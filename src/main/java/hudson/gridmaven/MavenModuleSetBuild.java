@@ -35,25 +35,28 @@ import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.FilePath.FileCallable;
 import hudson.Util;
-import hudson.console.ModelHyperlinkNote;
 import hudson.maven.MavenEmbedder;
 import hudson.maven.MavenEmbedderException;
 import hudson.maven.MavenInformation;
 import hudson.gridmaven.Messages;
+import hudson.gridmaven.gridlayer.GridRepositoryLayout;
 import hudson.gridmaven.gridlayer.HadoopInstance;
+import hudson.gridmaven.gridlayer.GridRepositoryCollector;
+import hudson.gridmaven.gridlayer.HdfsWorkspaceReader;
+import hudson.gridmaven.gridlayer.NodeArtifactCache;
 import hudson.gridmaven.gridlayer.PluginImpl;
+import hudson.gridmaven.gridlayer.SnapshotCodec;
 import hudson.maven.ReactorReader;
 import hudson.gridmaven.reporters.MavenAggregatedArtifactRecord;
 import hudson.gridmaven.reporters.MavenFingerprinter;
 import hudson.gridmaven.reporters.MavenMailer;
+import hudson.gridmaven.scheduler.GridBuildScheduler;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Action;
 import hudson.model.Build;
 import hudson.model.BuildListener;
-import hudson.model.Cause.UpstreamCause;
 import hudson.model.Computer;
-import hudson.model.DependencyGraph;
 import hudson.model.Executor;
 import hudson.model.Fingerprint;
 import hudson.model.Label;
@@ -61,15 +64,15 @@ import hudson.model.Node;
 import hudson.model.ParameterDefinition;
 import hudson.model.ParametersDefinitionProperty;
 import hudson.model.Result;
-import hudson.model.Run;
 import hudson.model.StringParameterDefinition;
 import hudson.model.TaskListener;
-import hudson.model.labels.LabelAtom;
 import hudson.remoting.VirtualChannel;
 import hudson.scm.ChangeLogSet;
 import hudson.tasks.BuildStep;
 import hudson.tasks.MailSender;
 import hudson.tasks.Maven.MavenInstallation;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.IOException2;
 import hudson.util.IOUtils;
 import hudson.util.StreamTaskListener;
 
@@ -77,14 +80,14 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
 import java.io.PrintStream;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.security.MessageDigest;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -94,6 +97,11 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -410,6 +418,7 @@ public class MavenModuleSetBuild extends AbstractMavenBuild<MavenModuleSet,Maven
         for (List<MavenBuild> list : getModuleBuilds().values())
             for (MavenBuild build : list)
                 build.delete();
+        GridRepositoryCollector.schedule();
     }
 
     @Override
@@ -636,24 +645,11 @@ public class MavenModuleSetBuild extends AbstractMavenBuild<MavenModuleSet,Maven
                 parsePoms(listener, logger, envVars, mvn, mavenVersion);
                 
                 PluginImpl pl = PluginImpl.get();
-                HadoopInstance hadoop = pl.initHdfs(this.getClass());
+                HadoopInstance hadoop = pl.getHdfs(this.getClass());
                 //hadoop.setClass(this.getClass());
                 MavenModule root = project.getRootModule(); 
                 hadoop.listFiles("/",logger);
                 
-                // Schedule build of dependencies
-                final DependencyGraph graph = Jenkins.getInstance().getDependencyGraph();
-                List<DependencyGraph.Dependency> downstreamProjects = new ArrayList
-                        <DependencyGraph.Dependency>(graph.getDownstreamDependencies(root));
-                
-                // Sort topologically
-                Collections.sort(downstreamProjects, new Comparator<DependencyGraph.Dependency>() {
-                    public int compare(DependencyGraph.Dependency lhs, DependencyGraph.Dependency rhs) {
-                        // Swapping lhs/rhs to get reverse sort:
-                        return graph.compare(rhs.getDownstreamProject(), lhs.getDownstreamProject());
-                    }
-                });          
-                
                 String jobName = project.getName();
                 String rootArtifact = root.getModuleName().artifactId;
                 String rootGroupId = root.getModuleName().groupId;
@@ -669,61 +665,8 @@ public class MavenModuleSetBuild extends AbstractMavenBuild<MavenModuleSet,Maven
                     logger.println("Global found module: " + m.getName());
                 }
                 
-                for (MavenModule m : project.getModules()) {
-                    String modulePath = getWorkspace() + File.separator + m.getRelativePath();
-                    String artifact = m.getModuleName().artifactId;
-                    String version = m.getVersion();
-                    String moduleTar = artifact + "-" + version + ".tar";
-                    //String tarSrc = modulePath + File.separator + moduleTar;
-                    String hdfsPath = "/tar/" + jobName + "/" + rootName + "/" + moduleTar;
-
-                    // Tar project modules and insert to hdfs, but not root folder
-                    if (m.depLevel > 0) {//&& m.getName().contains("build")) {
-                        logger.println("Tarring: " + moduleTar);
-                        hadoop.tarAndInsert(modulePath, hdfsPath);
-                        logger.println("Inserting tar to hfds: " + hdfsPath);
-                    } 
-                    else {
-                        logger.println("Tarring root module: " + moduleTar);
-                        hadoop.tarAndInsert(modulePath+"/pom.xml", hdfsPath);
-                        logger.println("Inserting tar to hfds: " + hdfsPath);
-                    }
-                }     
+                snapshotModules(hadoop, jobName, rootName, logger);
                 
-                for (DependencyGraph.Dependency dep : downstreamProjects) {
-                    AbstractProject p = dep.getDownstreamProject();
-                    LabelAtom label = Jenkins.getInstance().getLabelAtom(project.getGridLabel());
-                    p.setAssignedLabel(label);
-                    if (p.isDisabled()) {
-                        logger.println(hudson.tasks.Messages.
-                                BuildTrigger_Disabled(ModelHyperlinkNote.encodeTo(p)));
-                        continue;
-                    }
-
-                    List<Action> buildActions = new ArrayList<Action>();
-                    //if (dep.shouldTriggerBuild(root.getLastBuild(), listener, buildActions)) {
-                        String name = ModelHyperlinkNote.encodeTo(p)+" #"+p.getNextBuildNumber();
-                        List<AbstractProject> u = p.getUpstreamProjects();
-                        List<String> auNames = new ArrayList<String>();
-                        List<String> adNames = new ArrayList<String>();
-                        for (AbstractProject a: u){
-                            auNames.add(a.getName());
-                        }
-                        List<AbstractProject> d = p.getDownstreamProjects();
-                        for (AbstractProject a: d){
-                            adNames.add(a.getName());
-                        }
-                        String aProjectName = p.getName();
-                        
-                        // We want passthru the dependency tree in downstream direction
-                        p.setBlockBuildWhenUpstreamBuilding(true);
-//                        if(p.scheduleBuild(p.getQuietPeriod(), new UpstreamCause((Run)this.getBuild()),
-//                                           buildActions.toArray(new Action[buildActions.size()]))) {
-//                            logger.println(hudson.tasks.Messages.BuildTrigger_Triggering(name));
-//                        } else {
-//                            logger.println(hudson.tasks.Messages.BuildTrigger_InQueue(name));
-//                        }
-                }
                 return r;
             }catch (AbortException e) {
                 if(e.getMessage()!=null)
@@ -803,6 +746,55 @@ public class MavenModuleSetBuild extends AbstractMavenBuild<MavenModuleSet,Maven
             return unbuiltModules;
         }
 
+        /**
+         * Stores the sources of all modules in the HDFS snapshot store.
+         *
+         * <p>
+         * Modules are hashed and uploaded concurrently by a bounded pool of workers,
+         * see {@link MavenModuleSetBuild#SNAPSHOT_THREADS}. Results are reported in module order.
+         */
+        private void snapshotModules(final HadoopInstance hadoop, String jobName, String rootName, PrintStream logger) throws IOException, InterruptedException {
+            List<MavenModule> modules = new ArrayList<MavenModule>(project.getModules());
+            List<Future<HadoopInstance.SnapshotResult>> results = new ArrayList<Future<HadoopInstance.SnapshotResult>>();
+            List<String> manifests = new ArrayList<String>();
+            final SnapshotCodec codec = project.getSnapshotCodec();
+
+            ExecutorService pool = Executors.newFixedThreadPool(
+                    Math.max(1, Math.min(SNAPSHOT_THREADS, modules.size())), new DaemonThreadFactory());
+            try {
+                for (MavenModule m : modules) {
+                    String modulePath = getWorkspace() + File.separator + m.getRelativePath();
+                    // Snapshot project modules to hdfs, but only the pom of the root folder
+                    if (m.depLevel == 0)
+                        modulePath += File.separator + "pom.xml";
+                    final String source = modulePath;
+                    final String manifestPath = GridRepositoryLayout.manifestPath(jobName, rootName,
+                            m.getModuleName().artifactId, m.getVersion(), getNumber());
+                    manifests.add(manifestPath);
+                    results.add(pool.submit(new Callable<HadoopInstance.SnapshotResult>() {
+                        public HadoopInstance.SnapshotResult call() throws IOException {
+                            return hadoop.snapshotAndInsert(source, manifestPath, codec);
+                        }
+                    }));
+                }
+
+                for (int i = 0; i < modules.size(); i++) {
+                    HadoopInstance.SnapshotResult snapshot;
+                    try {
+                        snapshot = results.get(i).get();
+                    } catch (ExecutionException e) {
+                        throw new IOException2("Failed to snapshot module " + modules.get(i).getName(), e.getCause());
+                    }
+                    logger.println("Stored manifest " + manifests.get(i) + ": " + snapshot.files + " files, "
+                            + snapshot.uploadedFiles + " new blobs (" + snapshot.uploadedBytes + " bytes, "
+                            + snapshot.storedBytes + " bytes " + codec.getId() + ") in "
+                            + snapshot.time + "ms");
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
         private void parsePoms(BuildListener listener, PrintStream logger, EnvVars envVars, MavenInstallation mvn, String mavenVersion) throws IOException, InterruptedException {
             logger.println("Parsing POMs");
 
@@ -887,9 +879,7 @@ public class MavenModuleSetBuild extends AbstractMavenBuild<MavenModuleSet,Maven
             for (MavenModule m : modules.values())
                 m.updateNextBuildNumber(getNumber());
             
-            // module builds must start with this build's number
-            for (MavenModule m : modules.values())
-                m.rebuildDepLevel();
+            project.rebuildDepLevels(needsDependencyGraphRecalculation);
         }
 
         protected void post2(BuildListener listener) throws Exception {
@@ -926,16 +916,9 @@ public class MavenModuleSetBuild extends AbstractMavenBuild<MavenModuleSet,Maven
             performAllBuildSteps(listener, project.getPublishers(), false);
             performAllBuildSteps(listener, project.getProperties(), false);
             
-            // Trigger downstream job - in this case root module
+            // Start building the modules on the grid
             if (!getResult().isWorseThan(Result.SUCCESS)){
-                MavenModule root = project.getRootModule();
-                String name = ModelHyperlinkNote.encodeTo(root)+" #"+root.getNextBuildNumber();
-                if(root.scheduleBuild(new UpstreamCause((Run<?,?>)MavenModuleSetBuild.this))) {
-                    listener.getLogger().println(hudson.tasks.Messages.BuildTrigger_Triggering(name));
-                } else {
-                    listener.getLogger().println(hudson.tasks.Messages.BuildTrigger_InQueue(name));
-                }
-                
+                GridBuildScheduler.start(MavenModuleSetBuild.this, listener);
             }
             
             super.cleanUp(listener);
@@ -992,6 +975,17 @@ public class MavenModuleSetBuild extends AbstractMavenBuild<MavenModuleSet,Maven
         private int mavenValidationLevel = -1;
         
         private boolean updateSnapshots = false;
+
+        /**
+         * HDFS repository upstream artifacts are resolved from, and the local
+         * directory they are cached in. Null if not available.
+         */
+        private final String hdfsUrl;
+        private final String artifactCache;
+        /**
+         * Published builds of the modules of this job, see {@link HdfsWorkspaceReader}.
+         */
+        private final Map<String, String> gridBuilds = new HashMap<String, String>();
         
         String rootPOMRelPrefix;
         
@@ -1043,6 +1037,23 @@ public class MavenModuleSetBuild extends AbstractMavenBuild<MavenModuleSet,Maven
             
             this.mavenValidationLevel = project.getMavenValidationLevel();
             this.globalSetings = project.globalSettingConfigPath;
+
+            String url = null;
+            try {
+                url = PluginImpl.get().getHdfsUrl();
+            } catch (MalformedURLException e) {
+                LOGGER.log(Level.WARNING, "Cannot determine HDFS URL", e);
+            }
+            this.hdfsUrl = url;
+            Node node = build.getBuiltOn();
+            FilePath nodeRoot = node != null ? node.getRootPath() : null;
+            this.artifactCache = nodeRoot != null ? NodeArtifactCache.forNode(nodeRoot.getRemote()).getPath() : null;
+            for (MavenModule m : project.getModules()) {
+                MavenBuild b = m.getLastSuccessfulBuild();
+                if (b != null)
+                    gridBuilds.put(HdfsWorkspaceReader.key(m.getModuleName().groupId, m.getModuleName().artifactId,
+                            m.getVersion()), InputFingerprintAction.artifactsBuildId(b));
+            }
         }
 
         private boolean isUpdateSnapshots(String goals) {
@@ -1109,6 +1120,21 @@ public class MavenModuleSetBuild extends AbstractMavenBuild<MavenModuleSet,Maven
                 throw new AbortException(Messages.MavenModuleSetBuild_NoSuchAlternateSettings(settingsLoc.getAbsolutePath()));
             }
 
+            // skip the embedder entirely if nothing the modules were parsed from changed.
+            // snapshot updates are requested to pick up remote changes, so they always parse.
+            PomInfoCache pomCache = null;
+            String settingsKey = null;
+            if (!updateSnapshots) {
+                pomCache = new PomInfoCache(workspaceProper);
+                settingsKey = getSettingsKey(pom, settingsLoc);
+                List<PomInfo> cached = pomCache.load(settingsKey, properties);
+                if (cached != null) {
+                    logger.println("POMs unchanged since the last parse, reusing " + cached.size() + " modules");
+                    return cached;
+                }
+            }
+
+            HdfsWorkspaceReader hdfsReader = null;
             try {
                 MavenEmbedderRequest mavenEmbedderRequest = new MavenEmbedderRequest( listener, mavenHome.getHomeDir(),
                                                                                       profiles, properties,
@@ -1130,7 +1156,14 @@ public class MavenModuleSetBuild extends AbstractMavenBuild<MavenModuleSet,Maven
                     mavenEmbedderRequest.setValidationLevel( ModelBuildingRequest.VALIDATION_LEVEL_MAVEN_3_0 );
                 } else {
                     reactorReader = new ReactorReader( new HashMap<String, MavenProject>(), new File(workspaceProper) );
-                    mavenEmbedderRequest.setWorkspaceReader( reactorReader );
+                    if (hdfsUrl != null && artifactCache != null) {
+                        // resolve artifacts of other grid builds lazily from HDFS
+                        hdfsReader = new HdfsWorkspaceReader( reactorReader, hdfsUrl,
+                                new NodeArtifactCache( new File(artifactCache), NodeArtifactCache.MAX_SIZE ), gridBuilds );
+                        mavenEmbedderRequest.setWorkspaceReader( hdfsReader );
+                    } else {
+                        mavenEmbedderRequest.setWorkspaceReader( reactorReader );
+                    }
                 }
                 
                 
@@ -1191,14 +1224,48 @@ public class MavenModuleSetBuild extends AbstractMavenBuild<MavenModuleSet,Maven
                 for (PomInfo pi : infos)
                     pi.cutCycle();
 
-                return new ArrayList<PomInfo>(infos);
+                List<PomInfo> result = new ArrayList<PomInfo>(infos);
+                if (pomCache != null) {
+                    // parents outside the reactor, like a <relativePath> one, were read as well
+                    Set<File> pomFiles = new LinkedHashSet<File>();
+                    for (MavenProject mp : mps) {
+                        for (MavenProject p = mp; p != null; p = p.getParent()) {
+                            if (p.getFile() != null)
+                                pomFiles.add(p.getFile());
+                        }
+                    }
+                    pomCache.store(settingsKey, new ArrayList<File>(pomFiles), properties, result);
+                }
+                return result;
             } catch (MavenEmbedderException e) {
                 throw new MavenExecutionException(e);
             } catch (ProjectBuildingException e) {
                 throw new MavenExecutionException(e);
+            } finally {
+                if (hdfsReader != null)
+                    hdfsReader.release();
             }
         }
 
+        /**
+         * Digest of the parser configuration and the settings files, see {@link PomInfoCache}.
+         */
+        private String getSettingsKey(File pom, File settingsLoc) throws IOException {
+            MessageDigest md = PomInfoCache.newDigest();
+            PomInfoCache.update(md, "maven " + mavenVersion + " " + mavenHome.getHome());
+            // profiles can be activated by the JDK
+            PomInfoCache.update(md, "java " + System.getProperty("java.home") + " " + System.getProperty("java.version"));
+            PomInfoCache.update(md, "pom " + pom.getAbsolutePath() + " " + rootPOMRelPrefix + " " + moduleRootPath + " " + nonRecursive);
+            PomInfoCache.update(md, "profiles " + Util.fixNull(profiles));
+            PomInfoCache.update(md, "repository " + Util.fixNull(privateRepository));
+            PomInfoCache.update(md, "options " + resolveDependencies + " " + processPlugins + " " + mavenValidationLevel);
+            PomInfoCache.updateFile(md, settingsLoc);
+            PomInfoCache.updateFile(md, globalSetings != null ? new File(globalSetings) : null);
+            PomInfoCache.updateFile(md, new File(System.getProperty("user.home"), ".m2/settings.xml"));
+            PomInfoCache.updateFile(md, new File(mavenHome.getHomeDir(), "conf/settings.xml"));
+            return Util.toHexString(md.digest());
+        }
+
         /**
          * @see PomInfo#relativePath to understand relPath calculation
          */
@@ -1280,6 +1347,12 @@ public class MavenModuleSetBuild extends AbstractMavenBuild<MavenModuleSet,Maven
      */
     public static boolean debug = Boolean.getBoolean( "hudson.maven.debug" );
 
+    /**
+     * Number of modules whose sources are snapshotted to HDFS concurrently.
+     */
+    public static int SNAPSHOT_THREADS = Integer.getInteger(MavenModuleSetBuild.class.getName() + ".snapshotThreads",
+            Runtime.getRuntime().availableProcessors());
+
     @Override
     public MavenModuleSet getParent() {// don't know why, but javac wants this
         return super.getParent();
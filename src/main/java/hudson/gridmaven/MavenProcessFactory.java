@@ -30,6 +30,7 @@ import hudson.gridmaven.Messages;
 import hudson.maven.agent.Main;
 import hudson.maven.agent.Maven21Interceptor;
 import hudson.model.BuildListener;
+import hudson.model.Node;
 import hudson.model.Run.RunnerAbortedException;
 import hudson.model.TaskListener;
 import hudson.remoting.Callable;
@@ -53,6 +54,10 @@ final class MavenProcessFactory extends AbstractMavenProcessFactory implements P
         super( mms, launcher, envVars, mavenOpts, workDir );
     }
 
+    MavenProcessFactory(MavenModuleSet mms, Node node, Launcher launcher, EnvVars envVars, String mavenOpts, FilePath workDir) {
+        super( mms, node, launcher, envVars, mavenOpts, workDir );
+    }
+
     @Override
     protected String getMavenAgentClassPath(MavenInstallation mvn,boolean isMaster,FilePath slaveRoot,BuildListener listener) throws IOException, InterruptedException {
         String classWorldsJar = getLauncher().getChannel().call(new GetClassWorldsJar(mvn.getHome(),listener));
@@ -0,0 +1,212 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 berserker.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.gridmaven;
+
+import hudson.Util;
+import hudson.gridmaven.gridlayer.SourceManifest;
+import hudson.remoting.ObjectInputStreamEx;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Remembers the {@link PomInfo}s parsed from a reactor, so that the POMs are not
+ * parsed again by a new embedder as long as nothing that fed them changed.
+ *
+ * <p>
+ * The cache lives next to the workspace, in <tt>&lt;workspace>@pomcache/pominfo.ser</tt>.
+ * It is valid if the settings key computed by the caller is unchanged, every POM of
+ * the reactor and every parent POM they inherit from has the same content, and the
+ * properties referenced by those POMs have the same values. A module added to or removed from the reactor changes the
+ * <tt>&lt;modules></tt> section of some POM, so it invalidates the cache too.
+ *
+ * <p>
+ * Runs on the node holding the workspace, inside the POM parser.
+ *
+ * @author Filip Hubik
+ */
+final class PomInfoCache {
+    private final File file;
+
+    PomInfoCache(String workspace) {
+        this.file = new File(workspace + "@pomcache", "pominfo.ser");
+    }
+
+    /**
+     * @param settingsKey
+     *      Digest of everything besides the POMs and properties the parse depends on.
+     * @return
+     *      The cached modules, or null if they have to be parsed again.
+     */
+    List<PomInfo> load(String settingsKey, Properties properties) {
+        if (!file.exists())
+            return null;
+        try {
+            Entry e;
+            ObjectInputStream in = new ObjectInputStreamEx(
+                    new BufferedInputStream(new FileInputStream(file)), getClass().getClassLoader());
+            try {
+                e = (Entry) in.readObject();
+            } finally {
+                in.close();
+            }
+            if (!e.settingsKey.equals(settingsKey))
+                return null;
+            List<File> poms = new ArrayList<File>();
+            for (String p : e.poms) {
+                File f = new File(p);
+                if (!f.isFile())
+                    return null;
+                poms.add(f);
+            }
+            if (!e.pomKey.equals(pomKey(poms, properties)))
+                return null;
+            return e.infos;
+        } catch (IOException x) {
+            LOGGER.log(Level.FINE, "Cannot read " + file, x);
+            return null;
+        } catch (ClassNotFoundException x) {
+            LOGGER.log(Level.FINE, "Cannot read " + file, x);
+            return null;
+        } catch (ClassCastException x) {
+            LOGGER.log(Level.FINE, "Cannot read " + file, x);
+            return null;
+        }
+    }
+
+    /**
+     * @param poms
+     *      All the POM files the modules were parsed from, including the parents outside of the reactor.
+     */
+    void store(String settingsKey, List<File> poms, Properties properties, List<PomInfo> infos) {
+        try {
+            List<String> paths = new ArrayList<String>();
+            for (File f : poms)
+                paths.add(f.getAbsolutePath());
+            Entry e = new Entry(settingsKey, paths, pomKey(poms, properties), infos);
+
+            File dir = file.getParentFile();
+            dir.mkdirs();
+            File tmp = File.createTempFile("pominfo", ".tmp", dir);
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeObject(e);
+            } finally {
+                out.close();
+            }
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Failed to rename " + tmp + " to " + file);
+            }
+        } catch (IOException x) {
+            LOGGER.log(Level.WARNING, "Cannot write " + file, x);
+        }
+    }
+
+    /**
+     * Digest of the POM contents and of the values of the properties they mention.
+     * Properties that change with every build, like <tt>env.BUILD_NUMBER</tt>,
+     * thus only invalidate the cache of reactors that use them.
+     */
+    private static String pomKey(List<File> poms, Properties properties) throws IOException {
+        MessageDigest md = newDigest();
+        StringBuilder text = new StringBuilder();
+        for (File f : poms) {
+            update(md, f.getAbsolutePath() + " " + SourceManifest.hash(f));
+            text.append(FileUtils.readFileToString(f));
+        }
+        Map<String, String> used = new TreeMap<String, String>();
+        for (String name : properties.stringPropertyNames()) {
+            if (text.indexOf(name) >= 0)
+                used.put(name, properties.getProperty(name));
+        }
+        for (Map.Entry<String, String> e : used.entrySet())
+            update(md, e.getKey() + "=" + e.getValue());
+        return Util.toHexString(md.digest());
+    }
+
+    /**
+     * Helper for the callers computing the settings key.
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static void update(MessageDigest md, String line) {
+        try {
+            md.update((line + '\n').getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Adds the content hash of a settings file, or a marker if there is none.
+     */
+    static void updateFile(MessageDigest md, File f) throws IOException {
+        update(md, f != null && f.isFile() ? f.getAbsolutePath() + " " + SourceManifest.hash(f) : "-");
+    }
+
+    private static final class Entry implements Serializable {
+        private final String settingsKey;
+        private final List<String> poms;
+        private final String pomKey;
+        private final List<PomInfo> infos;
+
+        Entry(String settingsKey, List<String> poms, String pomKey, List<PomInfo> infos) {
+            this.settingsKey = settingsKey;
+            this.poms = poms;
+            this.pomKey = pomKey;
+            this.infos = infos;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PomInfoCache.class.getName());
+}
@@ -28,22 +28,36 @@ import hudson.Proc;
 import hudson.gridmaven.Messages;
 import hudson.model.BuildListener;
 import hudson.model.JDK;
+import hudson.model.StreamBuildListener;
 import hudson.model.TaskListener;
 import hudson.remoting.Callable;
 import hudson.remoting.Channel;
 import hudson.remoting.VirtualChannel;
 import hudson.remoting.RequestAbortedException;
 import hudson.tasks.Maven.MavenInstallation;
+import hudson.tools.ToolInstallation;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.DelegatingOutputStream;
 import hudson.util.NullStream;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
@@ -102,6 +116,28 @@ public final class ProcessCache {
 
         private int age = 0;
 
+        /**
+         * Identifies the configuration of this VM, see {@link PerChannel#popularity}.
+         */
+        private final String key;
+
+        /**
+         * When this process was last returned to the cache.
+         */
+        private long lastUsed;
+
+        /**
+         * Number of classes loaded after the first build that ran in this process,
+         * or -1 if it has not been checked yet.
+         */
+        private int baseClasses = -1;
+
+        /**
+         * Whether a build has been handed this process. Processes started ahead of time
+         * have loaded neither Maven nor any plugin yet, so their health says nothing.
+         */
+        private boolean used;
+
         MavenProcess(PerChannel parent, String mavenOpts, MavenInstallation installation, JDK jdk, NewProcess np, RedirectableOutputStream output) throws IOException, InterruptedException {
             this.parent = parent;
             this.mavenOpts = mavenOpts;
@@ -110,6 +146,7 @@ public final class ProcessCache {
             this.installation = installation;
             this.jdk = jdk;
             this.output = output;
+            this.key = key(mavenOpts, installation, jdk);
             this.systemProperties = channel.call(new GetSystemProperties());
         }
 
@@ -119,24 +156,60 @@ public final class ProcessCache {
         
         boolean matches(String mavenOpts,MavenInstallation installation, JDK jdk) {
             return Util.fixNull(this.mavenOpts).equals(Util.fixNull(mavenOpts))
-                && this.installation==installation
-                && this.jdk==jdk;
+                && sameTool(this.installation,installation)
+                && sameTool(this.jdk,jdk);
         }
 
         public void recycle() throws IOException {
-            if(age>=MAX_AGE || maxProcess==0)
+            if((MAX_AGE>0 && age>=MAX_AGE) || maxProcess==0 || (used && !isHealthy()))
                 discard();
             else {
                 output.set(new NullStream());
-                // make room for the new process and reuse.
-                synchronized(parent.processes) {
-                    while(parent.processes.size()>=maxProcess)
-                        parent.processes.removeFirst().discard();
-                    parent.processes.add(this);
+                lastUsed = System.currentTimeMillis();
+                // reuse, and make room if the cache is over its limit.
+                // the victim may be this very process.
+                parent.processes.add(this);
+                while(parent.processes.size()>maxProcess) {
+                    MavenProcess victim = parent.leastWorth();
+                    if(victim!=null && parent.processes.remove(victim))
+                        victim.discard();
                 }
             }
         }
 
+        /**
+         * Asks the VM how much memory it still holds after garbage collection and
+         * how many classes it has loaded, so that leaky processes are recycled
+         * before they run out of memory in the middle of a build.
+         */
+        private boolean isHealthy() {
+            Health h;
+            try {
+                h = channel.call(new GetHealth());
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE,"Failed to check the health of the maven process",e);
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if(baseClasses<0)
+                baseClasses = h.loadedClasses;
+
+            String problem = null;
+            if(h.heapMax>0 && h.heapUsed>h.heapMax*MAX_HEAP_OCCUPANCY)
+                problem = "heap is "+h.heapUsed*100/h.heapMax+"% full after garbage collection";
+            else if(h.permMax>0 && h.permUsed>h.permMax*MAX_PERM_OCCUPANCY)
+                problem = "class metadata space is "+h.permUsed*100/h.permMax+"% full";
+            else if(h.loadedClasses>baseClasses*(1+MAX_CLASS_GROWTH))
+                problem = "loaded classes grew from "+baseClasses+" to "+h.loadedClasses;
+            if(problem!=null) {
+                LOGGER.fine("Discarding the maven process after "+(age+1)+" builds: "+problem);
+                return false;
+            }
+            return true;
+        }
+
         /**
          * Discards this maven process.
          * It won't be reused in future builds.
@@ -173,8 +246,59 @@ public final class ProcessCache {
     static class PerChannel {
         /**
          * Cached processes.
+         * A process is claimed by whoever manages to remove it from the queue,
+         * so no lock is held while talking to the processes.
+         */
+        private final Queue<MavenProcess> processes = new ConcurrentLinkedQueue<MavenProcess>();
+
+        /**
+         * Number of times a process of each configuration was requested,
+         * keyed by {@link ProcessCache#key}.
          */
-        private final LinkedList<MavenProcess> processes = new LinkedList<MavenProcess>();
+        private final ConcurrentMap<String,AtomicInteger> popularity = new ConcurrentHashMap<String,AtomicInteger>();
+
+        /**
+         * Starts the idle processes of this node.
+         * A single thread, so that concurrent requests for the node see each other's processes,
+         * and one per node, so that a slow node doesn't hold up the others.
+         * Requests beyond {@link #MAX_PENDING_PREWARM} are dropped; the thread goes away when idle.
+         */
+        private final ThreadPoolExecutor warmer = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_PENDING_PREWARM), new DaemonThreadFactory(),
+                new ThreadPoolExecutor.DiscardPolicy());
+
+        PerChannel() {
+            warmer.allowCoreThreadTimeOut(true);
+        }
+
+        private void requested(String key) {
+            AtomicInteger n = popularity.get(key);
+            if(n==null) {
+                AtomicInteger prev = popularity.putIfAbsent(key,n=new AtomicInteger());
+                if(prev!=null)
+                    n = prev;
+            }
+            n.incrementAndGet();
+        }
+
+        private int popularity(MavenProcess p) {
+            AtomicInteger n = popularity.get(p.key);
+            return n!=null ? n.get() : 0;
+        }
+
+        /**
+         * Finds the process least worth keeping: the one of the least requested
+         * configuration, and among those the least recently used.
+         */
+        private MavenProcess leastWorth() {
+            MavenProcess victim = null;
+            for (MavenProcess p : processes) {
+                if(victim==null || popularity(p)<popularity(victim)
+                || (popularity(p)==popularity(victim) && p.lastUsed<victim.lastUsed))
+                    victim = p;
+            }
+            return victim;
+        }
     }
 
     // use WeakHashMap to avoid keeping VirtualChannel in memory.
@@ -205,41 +329,145 @@ public final class ProcessCache {
         JDK jdk = factory.getJava(listener);
 
         PerChannel list = get(owner);
-        synchronized(list.processes) {
-            for (Iterator<MavenProcess> itr = list.processes.iterator(); itr.hasNext();) {
-                MavenProcess p =  itr.next();
-                if(p.matches(mavenOpts,installation,jdk)) {
-                    // reset the system property.
-                    // this also serves as the sanity check.
-                    try {
-                        p.call(new SetSystemProperties(p.systemProperties));
-                    } catch (IOException e) {
-                        p.discard();
-                        itr.remove();
-                        continue;
-                    }
+        list.requested(key(mavenOpts,installation,jdk));
 
-                    listener.getLogger().println(Messages.ProcessCache_Reusing());
-                    itr.remove();
-                    p.age++;
-                    p.output.set(listener.getLogger());
-                    return p;
-                }
+        for (MavenProcess p : list.processes) {
+            // claim the process first; another executor may have taken it already
+            if(!p.matches(mavenOpts,installation,jdk) || !list.processes.remove(p))
+                continue;
+
+            // reset the system property.
+            // this also serves as the sanity check.
+            try {
+                p.call(new SetSystemProperties(p.systemProperties));
+            } catch (IOException e) {
+                p.discard();
+                continue;
             }
+
+            listener.getLogger().println(Messages.ProcessCache_Reusing());
+            p.age++;
+            p.used = true;
+            p.output.set(listener.getLogger());
+            return p;
         }
 
         RedirectableOutputStream out = new RedirectableOutputStream(listener.getLogger());
-        return new MavenProcess(list,mavenOpts,installation,jdk,factory.newProcess(listener,out),out);
+        MavenProcess p = new MavenProcess(list,mavenOpts,installation,jdk,factory.newProcess(listener,out),out);
+        p.used = true;
+        return p;
     }
 
+    /**
+     * Starts Maven processes in the background, until the given number of idle ones
+     * created by the factory are cached for the channel, so that the next builds
+     * don't have to wait for the JVM to start.
+     *
+     * <p>
+     * The factory is used outside of any build, so it must know the node it launches on.
+     */
+    public void prewarm(VirtualChannel owner, final Factory factory, final int count) {
+        if(count<=0 || maxProcess==0)
+            return;
+        final PerChannel list = get(owner);
+        list.warmer.execute(new Runnable() {
+            public void run() {
+                try {
+                    BuildListener listener = new StreamBuildListener(new NullStream());
+                    String mavenOpts = factory.getMavenOpts();
+                    MavenInstallation installation = factory.getMavenInstallation(listener);
+                    JDK jdk = factory.getJava(listener);
+                    while(true) {
+                        int idle = 0;
+                        for (MavenProcess p : list.processes)
+                            if(p.matches(mavenOpts,installation,jdk))
+                                idle++;
+                        if(idle>=count || list.processes.size()>=maxProcess)
+                            return;
+                        RedirectableOutputStream out = new RedirectableOutputStream(new NullStream());
+                        new MavenProcess(list,mavenOpts,installation,jdk,factory.newProcess(listener,out),out).recycle();
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING,"Failed to start an idle Maven process",e);
+                } catch (InterruptedException e) {
+                    LOGGER.log(Level.WARNING,"Interrupted while starting an idle Maven process",e);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING,"Failed to start an idle Maven process",e);
+                }
+            }
+        });
+    }
+
+    private static String key(String mavenOpts, MavenInstallation installation, JDK jdk) {
+        return Util.fixNull(mavenOpts)+'\n'+toolKey(installation)+'\n'+toolKey(jdk);
+    }
+
+    private static String toolKey(ToolInstallation t) {
+        return t!=null ? t.getName()+'='+Util.fixNull(t.getHome()) : "";
+    }
+
+    /**
+     * Tool installations are located again for every build, so compare them by value.
+     */
+    private static boolean sameTool(ToolInstallation a, ToolInstallation b) {
+        if(a==null || b==null)
+            return a==b;
+        return a.getName().equals(b.getName())
+            && Util.fixNull(a.getHome()).equals(Util.fixNull(b.getHome()));
+    }
+
+    /**
+     * Number of prewarm requests queued for a node at most.
+     */
+    private static final int MAX_PENDING_PREWARM = 16;
+
+    /**
+     * Maximum number of builds a process is used for, however healthy it looks.
+     * Zero or less means no limit: processes are then only recycled when their
+     * health degrades, so that short builds hardly ever wait for a JVM to start.
+     */
+    public static int MAX_AGE = 50;
+
+    /**
+     * Fraction of the heap that may stay occupied after garbage collection
+     * before a process is discarded.
+     */
+    public static double MAX_HEAP_OCCUPANCY = 0.7;
+
+    /**
+     * Fraction of the permanent generation (or metaspace, when limited) that may be used
+     * before a process is discarded.
+     */
+    public static double MAX_PERM_OCCUPANCY = 0.8;
 
+    /**
+     * Relative growth of the number of loaded classes since the first build
+     * at which a process is considered to leak class loaders, and is discarded.
+     */
+    public static double MAX_CLASS_GROWTH = 0.5;
 
-    public static int MAX_AGE = 5;
+    /**
+     * Number of idle Maven processes kept ready on each grid node,
+     * for each Maven configuration the jobs use there.
+     */
+    public static int PREWARM = 1;
 
     static {
         String age = System.getProperty(ProcessCache.class.getName() + ".age");
         if(age!=null)
             MAX_AGE = Integer.parseInt(age);
+        String prewarm = System.getProperty(ProcessCache.class.getName() + ".prewarm");
+        if(prewarm!=null)
+            PREWARM = Integer.parseInt(prewarm);
+        String heap = System.getProperty(ProcessCache.class.getName() + ".maxHeapOccupancy");
+        if(heap!=null)
+            MAX_HEAP_OCCUPANCY = Double.parseDouble(heap);
+        String perm = System.getProperty(ProcessCache.class.getName() + ".maxPermOccupancy");
+        if(perm!=null)
+            MAX_PERM_OCCUPANCY = Double.parseDouble(perm);
+        String classes = System.getProperty(ProcessCache.class.getName() + ".maxClassGrowth");
+        if(classes!=null)
+            MAX_CLASS_GROWTH = Double.parseDouble(classes);
     }
 
     /**
@@ -266,6 +494,46 @@ public final class ProcessCache {
         private static final long serialVersionUID = 1L;
     }
 
+    /**
+     * Memory and class loading figures of a maven process.
+     */
+    private static final class Health implements Serializable {
+        /**
+         * Heap still in use after the last garbage collection, and its maximum size.
+         */
+        long heapUsed, heapMax;
+        /**
+         * Space used by class metadata, and its maximum size or -1 if unlimited.
+         */
+        long permUsed, permMax = -1;
+        int loadedClasses;
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class GetHealth implements Callable<Health,RuntimeException> {
+        public Health call() {
+            Health h = new Health();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if(pool.getType()==MemoryType.HEAP) {
+                    MemoryUsage u = pool.getCollectionUsage();
+                    if(u==null || u.getMax()<0)
+                        continue;
+                    h.heapUsed += u.getUsed();
+                    h.heapMax += u.getMax();
+                } else if(pool.getName().contains("Perm Gen") || pool.getName().contains("Metaspace")) {
+                    MemoryUsage u = pool.getUsage();
+                    h.permUsed += u.getUsed();
+                    if(u.getMax()>=0)
+                        h.permMax = Math.max(h.permMax,0)+u.getMax();
+                }
+            }
+            h.loadedClasses = ManagementFactory.getClassLoadingMXBean().getLoadedClassCount();
+            return h;
+        }
+        private static final long serialVersionUID = 1L;
+    }
+
     static class RedirectableOutputStream extends DelegatingOutputStream {
         public RedirectableOutputStream(OutputStream out) {
             super(out);
@@ -0,0 +1,184 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 berserker.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.gridmaven.gridlayer;
+
+import hudson.Util;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Lists the files published by one module build: its POM, the main artifact and all
+ * attached artifacts, each with its Maven coordinates and SHA-1 checksum.
+ *
+ * <p>
+ * The index is stored as {@link #FILE_NAME} next to the files. It is a text file with
+ * one line per file:
+ * <pre>
+ * &lt;sha1> &lt;size> &lt;type> &lt;classifier or -> &lt;extension> &lt;file name>
+ * </pre>
+ *
+ * @author Filip Hubik
+ */
+public final class ArtifactIndex implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Name of the index in a published build directory.
+     */
+    public static final String FILE_NAME = "artifacts.index";
+
+    public static final class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final String fileName;
+        /**
+         * Maven artifact type, "pom" for the POM.
+         */
+        public final String type;
+        /**
+         * Null for the main artifact and the POM.
+         */
+        public final String classifier;
+        public final String extension;
+        public final String sha1;
+        public final long size;
+
+        public Entry(String fileName, String type, String classifier, String extension, String sha1, long size) {
+            this.fileName = fileName;
+            this.type = type;
+            this.classifier = classifier;
+            this.extension = extension;
+            this.sha1 = sha1;
+            this.size = size;
+        }
+
+        public boolean isPom() {
+            return classifier == null && "pom".equals(extension);
+        }
+
+        /**
+         * Checks that a copy of the file is complete and unchanged.
+         */
+        public void verify(File f) throws IOException {
+            if (f.length() != size || !sha1.equals(SourceManifest.hash(f)))
+                throw new IOException("Checksum mismatch of " + f + ", expected " + sha1);
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Adds a local file, computing its checksum.
+     *
+     * @return
+     *      The added entry.
+     */
+    public Entry add(File f, String fileName, String type, String classifier, String extension) throws IOException {
+        Entry e = new Entry(fileName, type, Util.fixEmpty(classifier), extension, SourceManifest.hash(f), f.length());
+        entries.add(e);
+        return e;
+    }
+
+    /**
+     * The POM entry, or null.
+     */
+    public Entry getPom() {
+        for (Entry e : entries)
+            if (e.isPom())
+                return e;
+        return null;
+    }
+
+    /**
+     * The main artifact entry, or null for POM-only modules.
+     */
+    public Entry getMain() {
+        for (Entry e : entries)
+            if (e.classifier == null && !e.isPom())
+                return e;
+        return null;
+    }
+
+    /**
+     * Digest over all the entries, which changes whenever any of the published files does.
+     */
+    public String digest() {
+        MessageDigest md = SourceManifest.newDigest();
+        try {
+            for (Entry e : entries)
+                md.update((toLine(e) + '\n').getBytes(UTF8));
+        } catch (UnsupportedEncodingException x) {
+            throw new AssertionError(x);
+        }
+        return Util.toHexString(md.digest());
+    }
+
+    public void write(OutputStream out) throws IOException {
+        Writer w = new BufferedWriter(new OutputStreamWriter(out, UTF8));
+        for (Entry e : entries) {
+            w.write(toLine(e));
+            w.write('\n');
+        }
+        w.flush();
+    }
+
+    public static ArtifactIndex read(InputStream in) throws IOException {
+        ArtifactIndex index = new ArtifactIndex();
+        BufferedReader r = new BufferedReader(new InputStreamReader(in, UTF8));
+        String line;
+        while ((line = r.readLine()) != null) {
+            if (line.length() == 0)
+                continue;
+            String[] t = line.split(" ", 6);
+            if (t.length != 6)
+                throw new IOException("Malformed artifact index line: " + line);
+            index.entries.add(new Entry(t[5], t[2], t[3].equals("-") ? null : t[3], t[4], t[0], Long.parseLong(t[1])));
+        }
+        return index;
+    }
+
+    private static String toLine(Entry e) {
+        return e.sha1 + " " + e.size + " " + e.type + " " + (e.classifier != null ? e.classifier : "-")
+                + " " + e.extension + " " + e.fileName;
+    }
+
+    private static final String UTF8 = "UTF-8";
+}
@@ -23,6 +23,7 @@
  */
 package hudson.gridmaven.gridlayer;
 
+import hudson.model.TaskListener;
 import hudson.remoting.Callable;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hdfs.server.datanode.DataNode;
@@ -40,11 +41,15 @@ class DataNodeStartTask implements Callable<Void,IOException> {
     protected final String hdfsUrl;
     protected final String rootPath;
     protected final String slaveHostName;
+    protected final HdfsSettings settings;
+    protected final TaskListener listener;
     
-    DataNodeStartTask(String hdfsUrl, String rootPath, String address) {
+    DataNodeStartTask(String hdfsUrl, String rootPath, String address, HdfsSettings settings, TaskListener listener) {
         this.hdfsUrl = hdfsUrl;
         this.rootPath = rootPath;
         this.slaveHostName = address;
+        this.settings = settings;
+        this.listener = listener;
     }
 
     public Void call() throws IOException {
@@ -52,24 +57,43 @@ class DataNodeStartTask implements Callable<Void,IOException> {
         //System.setProperty("java.net.preferIPv4Stack" , "true");
         Configuration conf = new Configuration();
         conf.set("fs.default.name",hdfsUrl);
-        conf.set("dfs.data.dir",new File(new File(rootPath),"hadoop/datanode").getAbsolutePath());
+        File dataDir = new File(new File(rootPath),"hadoop/datanode");
+        conf.set("dfs.data.dir",dataDir.getAbsolutePath());
         conf.set("dfs.datanode.address", "0.0.0.0:0");
         conf.set("dfs.datanode.http.address", "0.0.0.0:0");
         conf.set("dfs.datanode.ipc.address", "0.0.0.0:0");
         conf.set("slave.host.name", slaveHostName);
         conf.set("dfs.safemode.extension", "1");
         conf.set("dfs.namenode.logging.level","ALL");
-        conf.set("dfs.block.size","1048576");
-        // TODO: make this configurable
-        // make room for builds
-        conf.setLong("dfs.datanode.du.reserved",1L*1024*1024*1024);
+        // block size, replication and room left for builds
+        settings.applyToDataNode(conf);
 
-        DataNode dn = DataNode.instantiateDataNode(new String[0],conf);
+        DataNode dn;
+        try {
+            dn = DataNode.instantiateDataNode(new String[0],conf);
+        } catch (IOException e) {
+            if (e.getMessage() == null || !e.getMessage().contains("Incompatible namespaceIDs"))
+                throw e;
+            // the name node was formatted, blocks stored here belong to the old namespace
+            listener.getLogger().println("HDFS was formatted, deleting the blocks of the old namespace in " + dataDir);
+            deleteRecursive(dataDir);
+            dn = DataNode.instantiateDataNode(new String[0],conf);
+        }
         DataNode.runDatanodeDaemon(dn);
 
         
         return null;
     }
+
+    private static void deleteRecursive(File f) throws IOException {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children)
+                deleteRecursive(c);
+        }
+        if (f.exists() && !f.delete())
+            throw new IOException("Failed to delete " + f);
+    }
     
     private static final long serialVersionUID = 1L;
 }
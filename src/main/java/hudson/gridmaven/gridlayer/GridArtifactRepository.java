@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 berserker.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.gridmaven.gridlayer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Map;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Publishes and looks up module build artifacts in the HDFS repository.
+ *
+ * <p>
+ * Every module build publishes into its own directory, see
+ * {@link GridRepositoryLayout#buildDir(String, String, String, String)}. The files are
+ * written into a temporary directory which is renamed into place when complete, so
+ * readers never see a partially published build and builds of the same artifact in
+ * different jobs never overwrite each other. The {@link GridRepositoryLayout#LATEST}
+ * pointer is replaced last, for readers that don't ask for a particular build.
+ *
+ * @author Filip Hubik
+ */
+public final class GridArtifactRepository {
+
+    private GridArtifactRepository() {}
+
+    /**
+     * Publishes the given files as one build of an artifact version.
+     *
+     * @param files
+     *      Local files keyed by the name they get in the repository.
+     *
+     * @return
+     *      Directory the files were published to.
+     */
+    public static Path publish(FileSystem fs, String groupId, String artifact, String version,
+            String buildId, Map<String, File> files) throws IOException {
+        Path dir = new Path(GridRepositoryLayout.buildDir(groupId, artifact, version, buildId));
+        Path tmp = new Path(GridRepositoryLayout.temporaryPath(dir.toString()));
+        try {
+            if (!fs.mkdirs(tmp))
+                throw new IOException("Cannot create " + tmp);
+            for (Map.Entry<String, File> f : files.entrySet()) {
+                if (Thread.interrupted())
+                    throw new InterruptedIOException("Publication of " + dir + " was interrupted");
+                fs.copyFromLocalFile(new Path(f.getValue().getAbsolutePath()), new Path(tmp, f.getKey()));
+            }
+            // a build id is only reused when the same build is rerun
+            if (fs.exists(dir))
+                fs.delete(dir, true);
+            if (!fs.rename(tmp, dir))
+                throw new IOException("Cannot publish " + dir);
+        } finally {
+            if (fs.exists(tmp))
+                fs.delete(tmp, true);
+        }
+
+        Path latest = new Path(GridRepositoryLayout.latestPointer(groupId, artifact, version));
+        Path latestTmp = new Path(GridRepositoryLayout.temporaryPath(latest.toString()));
+        OutputStream out = fs.create(latestTmp);
+        try {
+            out.write((buildId + "\n").getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        fs.delete(latest, false);
+        if (!fs.rename(latestTmp, latest)) {
+            fs.delete(latestTmp, false);
+            throw new IOException("Cannot update " + latest);
+        }
+        return dir;
+    }
+
+    /**
+     * Finds the published build of an artifact version.
+     *
+     * @param buildId
+     *      Build to look up, or null for the latest one.
+     * @return
+     *      Directory of the build, or null if the requested build is gone or,
+     *      when asked for the latest one, if the artifact version has never been published.
+     *      A requested build is never substituted by another one, which may come from another job.
+     */
+    public static Path resolve(FileSystem fs, String groupId, String artifact, String version,
+            String buildId) throws IOException {
+        if (buildId != null) {
+            Path dir = new Path(GridRepositoryLayout.buildDir(groupId, artifact, version, buildId));
+            return fs.exists(dir) ? dir : null;
+        }
+
+        String latest = readLatest(fs, groupId, artifact, version);
+        if (latest != null) {
+            Path dir = new Path(GridRepositoryLayout.buildDir(groupId, artifact, version, latest));
+            if (fs.exists(dir))
+                return dir;
+        }
+
+        // pointer missing, e.g. while it is being replaced; take the newest build
+        FileStatus[] builds = fs.listStatus(new Path(GridRepositoryLayout.artifactDir(groupId, artifact, version)));
+        if (builds == null)
+            return null;
+        FileStatus newest = null;
+        for (FileStatus b : builds) {
+            if (!b.isDir() || b.getPath().getName().contains(".part-"))
+                continue;
+            if (newest == null || b.getModificationTime() > newest.getModificationTime())
+                newest = b;
+        }
+        return newest != null ? newest.getPath() : null;
+    }
+
+    private static String readLatest(FileSystem fs, String groupId, String artifact, String version) throws IOException {
+        return readPointer(fs, new Path(GridRepositoryLayout.latestPointer(groupId, artifact, version)));
+    }
+
+    /**
+     * Reads the build id stored in a {@link GridRepositoryLayout#LATEST} pointer file.
+     *
+     * @return
+     *      null if the pointer does not exist.
+     */
+    static String readPointer(FileSystem fs, Path latest) throws IOException {
+        if (!fs.exists(latest))
+            return null;
+        FSDataInputStream in;
+        try {
+            in = fs.open(latest);
+        } catch (IOException e) {
+            return null; // replaced in the meantime
+        }
+        try {
+            String line = new BufferedReader(new InputStreamReader(in, "UTF-8")).readLine();
+            return line != null && line.trim().length() > 0 ? line.trim() : null;
+        } finally {
+            in.close();
+        }
+    }
+}
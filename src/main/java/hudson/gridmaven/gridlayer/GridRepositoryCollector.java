@@ -0,0 +1,437 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 berserker.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.gridmaven.gridlayer;
+
+import hudson.gridmaven.InputFingerprintAction;
+import hudson.gridmaven.MavenBuild;
+import hudson.gridmaven.MavenModule;
+import hudson.gridmaven.MavenModuleSet;
+import hudson.gridmaven.MavenModuleSetBuild;
+import hudson.util.DaemonThreadFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Removes data from the HDFS grid repository that no retained build refers to.
+ *
+ * <p>
+ * The collector is a mark-and-sweep over the repository:
+ * <ul>
+ * <li>Published module builds are kept while the build record is retained by Jenkins,
+ *     or while the build is the {@link GridRepositoryLayout#LATEST} one of its artifact
+ *     version. Every job may further limit the space its builds take, see
+ *     {@link MavenModuleSet#getRepositoryQuota()}.
+ * <li>Source manifests are kept for the current modules of existing jobs, for the module
+ *     set builds Jenkins retains and for the newest build, which module builds started
+ *     on their own synchronize to.
+ * <li>Blobs are kept while a kept manifest refers to them.
+ * </ul>
+ * Collections are requested after log rotation and build deletion and run one at a
+ * time in the background; requests arriving meanwhile are coalesced into one more run.
+ * Builds keep publishing while a collection runs, so entries written since it started
+ * are left alone. Blobs may be reused by a new manifest whatever their age, so
+ * snapshots register the blobs they reuse through {@link #reuse}, which a running
+ * collection treats as marked.
+ *
+ * @author Filip Hubik
+ */
+public final class GridRepositoryCollector {
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(new DaemonThreadFactory());
+    private static final AtomicBoolean pending = new AtomicBoolean();
+
+    /**
+     * Blobs marked by the running collection, or null if none runs.
+     */
+    private static volatile Set<String> marked;
+
+    /**
+     * Lock objects striped by blob fan-out directory. Held by snapshots while they check
+     * a blob they reuse, and by the collection while it sweeps the directory.
+     */
+    private static final Object[] locks = new Object[64];
+    static {
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+    }
+
+    private GridRepositoryCollector() {}
+
+    /**
+     * Requests a collection in the background.
+     */
+    public static void schedule() {
+        if (!pending.compareAndSet(false, true))
+            return; // a run that hasn't started yet will see our changes
+        executor.submit(new Runnable() {
+            public void run() {
+                pending.set(false);
+                try {
+                    HadoopInstance hadoop = PluginImpl.get().getHdfs(GridRepositoryCollector.class);
+                    FileSystem fs = hadoop != null ? hadoop.getFs() : null;
+                    if (fs == null)
+                        return;
+                    try {
+                        collect(fs);
+                    } finally {
+                        HdfsClients.release(fs);
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Grid repository collection failed", e);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Grid repository collection failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Tells whether a blob exists, so that a snapshot can refer to it instead of
+     * uploading the content again. A collection running meanwhile keeps the blob.
+     */
+    static boolean reuse(FileSystem fs, Path blob) throws IOException {
+        synchronized (lockFor(blob.getParent())) {
+            if (!fs.exists(blob))
+                return false;
+            Set<String> m = marked;
+            if (m != null)
+                m.add(blob.toUri().getPath());
+            return true;
+        }
+    }
+
+    private static Object lockFor(Path fanout) {
+        return locks[(fanout.getName().hashCode() & 0x7fffffff) % locks.length];
+    }
+
+    /**
+     * Runs one collection synchronously.
+     */
+    static void collect(FileSystem fs) throws IOException {
+        // snapshots reusing blobs from now on mark them for us
+        Set<String> liveBlobs = Collections.synchronizedSet(new HashSet<String>());
+        marked = liveBlobs;
+        try {
+            collect(fs, liveBlobs);
+        } finally {
+            marked = null;
+        }
+    }
+
+    private static void collect(FileSystem fs, Set<String> liveBlobs) throws IOException {
+        long start = System.currentTimeMillis();
+        Stats stats = new Stats();
+
+        Set<String> retainedBuilds = new HashSet<String>();
+        Map<String, Set<Integer>> retainedManifests = new HashMap<String, Set<Integer>>();
+        Map<String, Long> quotas = new HashMap<String, Long>();
+        Set<String> jobs = new HashSet<String>();
+
+        for (MavenModuleSet job : Jenkins.getInstance().getAllItems(MavenModuleSet.class)) {
+            jobs.add(job.getName());
+            if (job.getRepositoryQuota() > 0)
+                quotas.put(job.getName(), job.getRepositoryQuota() * 1024L * 1024L);
+            MavenModule root = job.getRootModule();
+            String rootName = root != null
+                    ? root.getModuleName().groupId + "." + root.getModuleName().artifactId + "-" + root.getVersion()
+                    : null;
+            Set<Integer> setBuilds = new HashSet<Integer>();
+            for (MavenModuleSetBuild b : job.getBuilds())
+                setBuilds.add(b.getNumber());
+            for (MavenModule m : job.getModules()) {
+                for (MavenBuild b : m.getBuilds())
+                    retainedBuilds.add(InputFingerprintAction.artifactsBuildId(b));
+                if (rootName != null)
+                    retainedManifests.put(GridRepositoryLayout.manifestDir(job.getName(), rootName,
+                            m.getModuleName().artifactId, m.getVersion()), setBuilds);
+            }
+        }
+
+        // sweep published builds, remembering the retained ones for the quotas
+        Map<String, List<PublishedBuild>> published = new HashMap<String, List<PublishedBuild>>();
+        sweepRepository(fs, new Path(GridRepositoryLayout.REPOSITORY), retainedBuilds, published, start, stats);
+        enforceQuotas(fs, published, quotas, stats);
+
+        // sweep manifests and mark the blobs they refer to
+        sweepManifests(fs, jobs, retainedManifests, liveBlobs, start, stats);
+        sweepBlobs(fs, liveBlobs, start, stats);
+
+        // source tarballs of older plugin versions
+        if (fs.exists(new Path(LEGACY_TAR)) && fs.delete(new Path(LEGACY_TAR), true))
+            stats.removed++;
+
+        LOGGER.info("Grid repository collection removed " + stats.removed + " entries"
+                + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Walks the repository down to the artifact version directories, recognized by their
+     * {@link GridRepositoryLayout#LATEST} pointer, and removes builds nobody retains.
+     */
+    private static void sweepRepository(FileSystem fs, Path dir, Set<String> retained,
+            Map<String, List<PublishedBuild>> published, long start, Stats stats) throws IOException {
+        FileStatus[] children = fs.listStatus(dir);
+        if (children == null)
+            return;
+
+        String latest = null;
+        boolean versionDir = false;
+        for (FileStatus c : children) {
+            if (!c.isDir() && c.getPath().getName().equals(GridRepositoryLayout.LATEST)) {
+                versionDir = true;
+                latest = GridArtifactRepository.readPointer(fs, c.getPath());
+            }
+        }
+        if (!versionDir) {
+            for (FileStatus c : children) {
+                if (c.isDir())
+                    sweepRepository(fs, c.getPath(), retained, published, start, stats);
+            }
+            return;
+        }
+
+        for (FileStatus c : children) {
+            String name = c.getPath().getName();
+            if (isTemporary(name)) {
+                deleteIfStale(fs, c, stats);
+                continue;
+            }
+            if (!c.isDir() || name.equals(latest) || isRecent(c, start))
+                continue; // including builds published since the retained ones were listed
+            if (!retained.contains(name)) {
+                delete(fs, c.getPath(), stats);
+                continue;
+            }
+            int dash = name.lastIndexOf('-');
+            String job = name.substring(0, dash);
+            List<PublishedBuild> builds = published.get(job);
+            if (builds == null)
+                published.put(job, builds = new ArrayList<PublishedBuild>());
+            builds.add(new PublishedBuild(c.getPath(), Integer.parseInt(name.substring(dash + 1)),
+                    fs.getContentSummary(c.getPath()).getLength()));
+        }
+    }
+
+    /**
+     * Removes the oldest retained builds of jobs that take more space than they may.
+     * Builds any reader resolves as latest are not counted.
+     */
+    private static void enforceQuotas(FileSystem fs, Map<String, List<PublishedBuild>> published,
+            Map<String, Long> quotas, Stats stats) throws IOException {
+        for (Map.Entry<String, Long> q : quotas.entrySet()) {
+            List<PublishedBuild> builds = published.get(q.getKey());
+            if (builds == null)
+                continue;
+            Collections.sort(builds, NEWEST_FIRST);
+            long used = 0;
+            for (PublishedBuild b : builds) {
+                used += b.size;
+                if (used > q.getValue())
+                    delete(fs, b.path, stats);
+            }
+        }
+    }
+
+    /**
+     * @param retained
+     *      Module set builds whose manifests are retained, keyed by the manifest directory of the module.
+     */
+    private static void sweepManifests(FileSystem fs, Set<String> jobs, Map<String, Set<Integer>> retained,
+            Set<String> liveBlobs, long start, Stats stats) throws IOException {
+        FileStatus[] jobDirs = fs.listStatus(new Path(GridRepositoryLayout.MANIFESTS));
+        if (jobDirs == null)
+            return;
+        for (FileStatus jobDir : jobDirs) {
+            if (!jobs.contains(jobDir.getPath().getName()) && !isRecent(jobDir, start)) {
+                delete(fs, jobDir.getPath(), stats);
+                continue;
+            }
+            FileStatus[] rootDirs = fs.listStatus(jobDir.getPath());
+            if (rootDirs == null)
+                continue;
+            for (FileStatus rootDir : rootDirs) {
+                FileStatus[] moduleDirs = fs.listStatus(rootDir.getPath());
+                if (moduleDirs == null)
+                    continue;
+                for (FileStatus moduleDir : moduleDirs) {
+                    if (moduleDir.isDir()) {
+                        sweepModuleManifests(fs, moduleDir.getPath(),
+                                retained.get(moduleDir.getPath().toUri().getPath()), liveBlobs, start, stats);
+                    } else if (!isRecent(moduleDir, start)) {
+                        // a manifest of older plugin versions, which kept one per module
+                        delete(fs, moduleDir.getPath(), stats);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param setBuilds
+     *      Module set builds whose manifests are retained, or null if the module is gone.
+     */
+    private static void sweepModuleManifests(FileSystem fs, Path dir, Set<Integer> setBuilds,
+            Set<String> liveBlobs, long start, Stats stats) throws IOException {
+        FileStatus[] manifests = fs.listStatus(dir);
+        if (manifests == null)
+            return;
+        int newest = -1;
+        if (setBuilds != null) {
+            for (FileStatus m : manifests)
+                newest = Math.max(newest, GridRepositoryLayout.manifestBuildNumber(m.getPath().getName()));
+        }
+        for (FileStatus m : manifests) {
+            String name = m.getPath().getName();
+            int n = GridRepositoryLayout.manifestBuildNumber(name);
+            if (isTemporary(name)) {
+                deleteIfStale(fs, m, stats);
+            } else if (n >= 0 && (n == newest || setBuilds != null && setBuilds.contains(n)) || isRecent(m, start)) {
+                mark(fs, m.getPath(), liveBlobs);
+            } else {
+                delete(fs, m.getPath(), stats);
+            }
+        }
+    }
+
+    private static void mark(FileSystem fs, Path manifestPath, Set<String> liveBlobs) throws IOException {
+        InputStream in = fs.open(manifestPath);
+        SourceManifest manifest;
+        try {
+            manifest = SourceManifest.read(in);
+        } finally {
+            in.close();
+        }
+        for (SourceManifest.Entry e : manifest.getEntries()) {
+            if (!e.isDirectory())
+                liveBlobs.add(GridRepositoryLayout.blobPath(e.hash, manifest.getCodec()));
+        }
+    }
+
+    /**
+     * Removes blobs no kept manifest refers to and no snapshot reused meanwhile.
+     * Blobs uploaded meanwhile are recent.
+     */
+    private static void sweepBlobs(FileSystem fs, Set<String> liveBlobs, long start, Stats stats) throws IOException {
+        FileStatus[] fanout = fs.listStatus(new Path(GridRepositoryLayout.BLOBS));
+        if (fanout == null)
+            return;
+        for (FileStatus dir : fanout) {
+            synchronized (lockFor(dir.getPath())) {
+                FileStatus[] blobs = fs.listStatus(dir.getPath());
+                if (blobs == null)
+                    continue;
+                for (FileStatus b : blobs) {
+                    if (isTemporary(b.getPath().getName())) {
+                        deleteIfStale(fs, b, stats);
+                    } else if (!liveBlobs.contains(b.getPath().toUri().getPath()) && !isRecent(b, start)) {
+                        delete(fs, b.getPath(), stats);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether an entry may have been written since the collection started, allowing
+     * for the clocks of Jenkins and the name node to differ.
+     */
+    private static boolean isRecent(FileStatus f, long start) {
+        return f.getModificationTime() >= start - CLOCK_SKEW;
+    }
+
+    private static boolean isTemporary(String name) {
+        return name.contains(".part-");
+    }
+
+    /**
+     * Temporary files are removed only when old enough not to belong to a write in progress.
+     */
+    private static void deleteIfStale(FileSystem fs, FileStatus f, Stats stats) throws IOException {
+        if (f.getModificationTime() < System.currentTimeMillis() - GRACE_PERIOD)
+            delete(fs, f.getPath(), stats);
+    }
+
+    private static void delete(FileSystem fs, Path p, Stats stats) throws IOException {
+        if (fs.delete(p, true)) {
+            stats.removed++;
+            LOGGER.fine("Removed " + p + " from the grid repository");
+        }
+    }
+
+    private static final class PublishedBuild {
+        final Path path;
+        final int number;
+        final long size;
+
+        PublishedBuild(Path path, int number, long size) {
+            this.path = path;
+            this.number = number;
+            this.size = size;
+        }
+    }
+
+    private static final class Stats {
+        int removed;
+    }
+
+    private static final Comparator<PublishedBuild> NEWEST_FIRST = new Comparator<PublishedBuild>() {
+        public int compare(PublishedBuild lhs, PublishedBuild rhs) {
+            return rhs.number - lhs.number;
+        }
+    };
+
+    /**
+     * Root of the source tarballs stored by older versions of the plugin.
+     */
+    private static final String LEGACY_TAR = "/tar";
+
+    /**
+     * How old a temporary file must be before it is considered abandoned, in milliseconds.
+     */
+    public static long GRACE_PERIOD = Long.getLong(GridRepositoryCollector.class.getName() + ".gracePeriod", 60 * 60 * 1000);
+
+    /**
+     * How far the clock of the name node may be behind the one of Jenkins, in milliseconds.
+     */
+    public static long CLOCK_SKEW = Long.getLong(GridRepositoryCollector.class.getName() + ".clockSkew", 5 * 60 * 1000);
+
+    private static final Logger LOGGER = Logger.getLogger(GridRepositoryCollector.class.getName());
+}
@@ -0,0 +1,156 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 berserker.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.gridmaven.gridlayer;
+
+import java.util.UUID;
+
+/**
+ * Knows where things live in the HDFS grid repository.
+ *
+ * <p>
+ * Both the master and the Maven processes on the slaves compute HDFS paths
+ * through this class, so that the two sides never disagree on the layout.
+ *
+ * <pre>
+ * /blobs/&lt;xx>/&lt;sha1>[.ext]                            file contents, stored once per hash and codec
+ * /manifest/&lt;job>/&lt;root>/&lt;artifact>-&lt;version>/&lt;build>.manifest   module source snapshot of one module set build
+ * /repository/&lt;group path>/&lt;artifact>/&lt;version>/&lt;job>-&lt;build>/  artifacts published by one module build
+ * /repository/&lt;group path>/&lt;artifact>/&lt;version>/latest           name of the most recently published build
+ * </pre>
+ *
+ * @author Filip Hubik
+ */
+public final class GridRepositoryLayout {
+    /**
+     * Root of the content-addressed file store.
+     */
+    public static final String BLOBS = "/blobs";
+
+    /**
+     * Root of the per-module source manifests.
+     */
+    public static final String MANIFESTS = "/manifest";
+
+    /**
+     * Root of the artifacts published by module builds.
+     */
+    public static final String REPOSITORY = "/repository";
+
+    private GridRepositoryLayout() {}
+
+    /**
+     * Path of the blob holding the file content with the given SHA-1 hash,
+     * encoded with the given codec.
+     * Blobs are fanned out by the first two hex digits to keep directories small.
+     */
+    public static String blobPath(String hash, SnapshotCodec codec) {
+        return BLOBS + "/" + hash.substring(0, 2) + "/" + hash + codec.getExtension();
+    }
+
+    /**
+     * Directory holding the source manifests of one module of a job.
+     *
+     * @param rootName
+     *      "groupId.artifactId-version" of the root module.
+     */
+    public static String manifestDir(String jobName, String rootName, String artifact, String version) {
+        return MANIFESTS + "/" + jobName + "/" + rootName + "/" + artifact + "-" + version;
+    }
+
+    /**
+     * Path of the source manifest one module set build recorded for a module.
+     * Each build writes its own manifest, so module builds still reading the
+     * manifest of an older build are not disturbed by a newer one.
+     *
+     * @param setBuildNumber
+     *      Number of the {@link hudson.gridmaven.MavenModuleSetBuild} that took the snapshot.
+     */
+    public static String manifestPath(String jobName, String rootName, String artifact, String version, int setBuildNumber) {
+        return manifestDir(jobName, rootName, artifact, version) + "/" + setBuildNumber + MANIFEST_EXTENSION;
+    }
+
+    /**
+     * File name extension of source manifests.
+     */
+    public static final String MANIFEST_EXTENSION = ".manifest";
+
+    /**
+     * Number of the module set build that recorded a manifest, or -1 if the
+     * name is not one of a manifest.
+     */
+    public static int manifestBuildNumber(String name) {
+        if (!name.endsWith(MANIFEST_EXTENSION))
+            return -1;
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - MANIFEST_EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Name of the pointer file naming the most recently published build of an artifact version.
+     */
+    public static final String LATEST = "latest";
+
+    /**
+     * Directory holding all published builds of one artifact version.
+     */
+    public static String artifactDir(String groupId, String artifact, String version) {
+        return REPOSITORY + "/" + groupId.replace('.', '/') + "/" + artifact + "/" + version;
+    }
+
+    /**
+     * Directory holding the artifact and POM published by one module build.
+     * Once renamed into place it is never modified.
+     */
+    public static String buildDir(String groupId, String artifact, String version, String buildId) {
+        return artifactDir(groupId, artifact, version) + "/" + buildId;
+    }
+
+    /**
+     * Path of the pointer file of an artifact version, see {@link #LATEST}.
+     */
+    public static String latestPointer(String groupId, String artifact, String version) {
+        return artifactDir(groupId, artifact, version) + "/" + LATEST;
+    }
+
+    /**
+     * Identifies a module build across jobs sharing the grid.
+     *
+     * @param jobName
+     *      Name of the {@link hudson.gridmaven.MavenModuleSet} the module belongs to.
+     */
+    public static String buildId(String jobName, int number) {
+        return jobName + "-" + number;
+    }
+
+    /**
+     * Name of a temporary sibling of the given path, used to write a file
+     * before it is atomically renamed into place.
+     */
+    public static String temporaryPath(String path) {
+        return path + ".part-" + UUID.randomUUID();
+    }
+}
@@ -23,26 +23,21 @@
  */
 package hudson.gridmaven.gridlayer;
 
-import hudson.gridmaven.MavenModuleSetBuild;
+import hudson.gridmaven.MavenModuleSet;
 import hudson.util.IOUtils;
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
-import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
-import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataInputStream;
-import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -53,31 +48,18 @@ import org.apache.hadoop.fs.Path;
  */
 public class HadoopInstance {
 
-    private Configuration conf;
-    private FileSystem fs;
+    private final String url;
 
     public HadoopInstance(Class c) {
-        Configuration conf = new Configuration();
-        conf.set("fs.default.name", "hdfs://localhost:9000/");
-        conf.set("fs.hdfs.impl", "org.apache.hadoop.hdfs.DistributedFileSystem");
-        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
-
-        // Workaround bug with hadoop Configuration classloader, which
-        // do not know abou current classloader and replaces it with
-        // CurrentThreadContextClassloader, and that cant see hadoop libraries loaded.
-        Class a = c;
-        ClassLoader loader = a.getClassLoader();
-        conf.setClassLoader(loader);
-
-        this.conf = conf;
-        // Retrieve fs if it can be done
-        try {
-            this.fs = FileSystem.get(conf);
-        } catch (IOException ex) {
-            ex.printStackTrace();
-            Logger.getLogger(HadoopInstance.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        this.url = "hdfs://localhost:9000/";
+    }
 
+    /**
+     * Shared client of the grid HDFS, to be given back to {@link HdfsClients#release}.
+     * Package-private so that tests can stand in another file system.
+     */
+    FileSystem fs() throws IOException {
+        return HdfsClients.get(url, MavenModuleSet.DESCRIPTOR.getHdfsSettings());
     }
 
     public void add(String src, String dest) {
@@ -87,7 +69,12 @@ public class HadoopInstance {
             return;
         }
         try {
-            fs.copyFromLocalFile(s, d);
+            FileSystem fs = fs();
+            try {
+                fs.copyFromLocalFile(s, d);
+            } finally {
+                HdfsClients.release(fs);
+            }
         } catch (IOException ex) {
             ex.printStackTrace();
             Logger.getLogger(HadoopInstance.class.getName()).log(Level.SEVERE, null, ex);
@@ -102,8 +89,12 @@ public class HadoopInstance {
             return;
         }
         try {
-
-            fs.copyFromLocalFile(s, d);
+            FileSystem fs = fs();
+            try {
+                fs.copyFromLocalFile(s, d);
+            } finally {
+                HdfsClients.release(fs);
+            }
         } catch (IOException ex) {
             Logger.getLogger(HadoopInstance.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -113,7 +104,12 @@ public class HadoopInstance {
         Path s = new Path(src);
         Path d = new Path(dest);
         try {
-            fs.copyToLocalFile(s, d);
+            FileSystem fs = fs();
+            try {
+                fs.copyToLocalFile(s, d);
+            } finally {
+                HdfsClients.release(fs);
+            }
         } catch (IOException ex) {
             Logger.getLogger(HadoopInstance.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -125,7 +121,13 @@ public class HadoopInstance {
     public void listFiles(String path, PrintStream print) {
         Path p = new Path(path);
         try {
-            FileStatus[] status = fs.listStatus(p);
+            FileSystem fs = fs();
+            FileStatus[] status;
+            try {
+                status = fs.listStatus(p);
+            } finally {
+                HdfsClients.release(fs);
+            }
             if (status.length < 1) {
                 print.println("Zero files stored in HDFS");
             }
@@ -142,7 +144,12 @@ public class HadoopInstance {
         String objectName = f.substring(f.lastIndexOf('/'),f.length());
         Path p = new Path(objectName);
         try {
-            status = fs.listStatus(p);
+            FileSystem fs = fs();
+            try {
+                status = fs.listStatus(p);
+            } finally {
+                HdfsClients.release(fs);
+            }
             if (status == null)
                 return false;
         } catch (NullPointerException ex) {
@@ -155,118 +162,163 @@ public class HadoopInstance {
     }
 
     /**
-     * This method opens a path and recursively adds all files into tar, then
-     * inserts it to HDFS.
+     * Outcome of {@link #snapshotAndInsert(String, String, SnapshotCodec)}.
      */
-    public void tarAndInsert(String directoryPath, String tarGzPath) throws IOException {
-        OutputStream fOut = null;
-        //FileOutputStream fOut = null;
-        BufferedOutputStream bOut = null;
-        TarArchiveOutputStream tOut = null;
-        //tarGzPath = "test.tar";
-        //File f = new File(tarGzPath);
-        Path f = new Path(tarGzPath);
-        
-        String skipDirectoryPath="";
-        File l = new File(directoryPath);
-        if (l.isDirectory())
-            skipDirectoryPath = directoryPath;
-        try {
-            fs.delete(f, true);
-            fOut = fs.create(f);
-            //fOut = new FileOutputStream(f);
-            bOut = new BufferedOutputStream(fOut);
-            tOut = new TarArchiveOutputStream(bOut);
-            
-            addFileToTar(tOut, directoryPath, "", skipDirectoryPath);
-            
-            tOut.finish();
-            tOut.close();
-            bOut.close();
-            fOut.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-            Logger.getLogger(HadoopInstance.class.getName()).log(Level.SEVERE, null, e);
+    public static final class SnapshotResult {
+        public final SourceManifest manifest;
+        public int files;
+        public int uploadedFiles;
+        public long uploadedBytes;
+        /**
+         * Size of the uploaded blobs after compression.
+         */
+        public long storedBytes;
+        /**
+         * Milliseconds spent hashing and uploading.
+         */
+        public long time;
+
+        SnapshotResult(SourceManifest manifest) {
+            this.manifest = manifest;
         }
     }
 
-    private void addFileToTar(TarArchiveOutputStream tOut, String path, String base, String root) throws IOException {
-        if (!root.equals(path)) {
-            File f = new File(path);
-            String entryName = base + f.getName();
-            TarArchiveEntry tarEntry = new TarArchiveEntry(f, entryName);
-            tOut.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
-            tOut.putArchiveEntry(tarEntry);
-            
-            if (f.isFile()) {
-                IOUtils.copy(new FileInputStream(f), tOut);
-                tOut.closeArchiveEntry();
-            } else {
-                tOut.closeArchiveEntry();
-                File[] children = f.listFiles();
-                if (children != null) {
-                    for (File child : children) {
-                        addFileToTar(tOut, child.getAbsolutePath(), entryName + "/", root);
-                    }
+    /**
+     * Records a module directory (or a single file) in the HDFS snapshot store.
+     *
+     * <p>
+     * Every file is stored as a blob named after its content hash, so only files
+     * HDFS does not hold yet are uploaded. The manifest describing the module is
+     * written last, which makes it safe for slaves to follow any manifest they see.
+     * The manifest path should be the one of the current module set build, see
+     * {@link GridRepositoryLayout#manifestPath}, so that manifests of older builds stay
+     * in place for the module builds still reading them.
+     *
+     * <p>
+     * Safe to call from several threads at once.
+     */
+    public SnapshotResult snapshotAndInsert(String localPath, String manifestPath, SnapshotCodec codec) throws IOException {
+        long start = System.currentTimeMillis();
+        File root = new File(localPath);
+        SourceManifest manifest = SourceManifest.scan(root);
+        manifest.setCodec(codec);
+        SnapshotResult result = new SnapshotResult(manifest);
+
+        FileSystem fs = fs();
+        try {
+            for (SourceManifest.Entry e : manifest.getEntries()) {
+                if (e.isDirectory())
+                    continue;
+                result.files++;
+                File f = root.isDirectory() ? new File(root, e.path) : root;
+                long stored = insertBlob(fs, f, e.hash, codec);
+                if (stored >= 0) {
+                    result.uploadedFiles++;
+                    result.uploadedBytes += e.size;
+                    result.storedBytes += stored;
                 }
             }
+
+            Path target = new Path(manifestPath);
+            Path tmp = new Path(GridRepositoryLayout.temporaryPath(manifestPath));
+            OutputStream out = fs.create(tmp);
+            try {
+                manifest.write(out);
+            } finally {
+                out.close();
+            }
+            // manifests are per module set build, so this only replaces the leftover
+            // of an interrupted attempt that no module build has read yet.
+            // HDFS refuses to rename over an existing file.
+            fs.delete(target, false);
+            if (!fs.rename(tmp, target)) {
+                fs.delete(tmp, false);
+                throw new IOException("Cannot store manifest " + manifestPath);
+            }
+        } finally {
+            HdfsClients.release(fs);
         }
-        else{
-            File f = new File(path);
-            File[] children = f.listFiles();
-            if (children != null) {
-                    for (File child : children) {
-                        addFileToTar(tOut, child.getAbsolutePath(), "", root);
-                    }
-                }
-        }
-    }
-    
-    public void untarToLocalFile (){
-        
+        result.time = System.currentTimeMillis() - start;
+        return result;
     }
 
-    public FileSystem getFs() {
-        return fs;
-    }
-    
     /**
-     * This method decompress filesystem structure from HDFS archive
+     * Uploads a file into the blob store unless a blob with the same hash is already there.
+     *
+     * @return number of bytes stored in HDFS, or -1 if the content was already there.
      */
-    public void getAndUntar(String src, String targetPath) throws FileNotFoundException, IOException {
-        BufferedOutputStream dest = null;
-        InputStream tarArchiveStream = new FSDataInputStream(fs.open(new Path(src)));
-        TarArchiveInputStream tis = new TarArchiveInputStream(new BufferedInputStream(tarArchiveStream));
-        TarArchiveEntry entry = null;
+    private long insertBlob(FileSystem fs, File f, String hash, SnapshotCodec codec) throws IOException {
+        Path blob = new Path(GridRepositoryLayout.blobPath(hash, codec));
+        if (GridRepositoryCollector.reuse(fs, blob))
+            return -1;
+
+        Path tmp = new Path(GridRepositoryLayout.temporaryPath(blob.toString()));
+        InputStream in = new BufferedInputStream(new FileInputStream(f), SourceManifest.BUFFER_SIZE);
+        CountingOutputStream counter;
         try {
-            while ((entry = tis.getNextTarEntry()) != null) {
-                int count;
-                File outputFile = new File(targetPath, entry.getName());
+            counter = new CountingOutputStream(fs.create(tmp));
+            OutputStream out = counter;
+            try {
+                out = codec.encode(out);
+                IOUtils.copy(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (!fs.rename(tmp, blob)) {
+            // somebody else stored the same content in the meantime
+            fs.delete(tmp, false);
+            if (!GridRepositoryCollector.reuse(fs, blob))
+                throw new IOException("Cannot store blob " + blob);
+            return -1;
+        }
+        return counter.getByteCount();
+    }
 
-                if (entry.isDirectory()) { // entry is a directory
-                    if (!outputFile.exists()) {
-                        outputFile.mkdirs();
-                    }
-                } else { // entry is a file
-                    byte[] data = new byte[BUFFER_MAX];
-                    FileOutputStream fos = new FileOutputStream(outputFile);
-                    dest = new BufferedOutputStream(fos, BUFFER_MAX);
-                    while ((count = tis.read(data, 0, BUFFER_MAX)) != -1) {
-                        dest.write(data, 0, count);
+    /**
+     * Tells how many bytes of the files directly under the given HDFS directory
+     * each DataNode host holds.
+     *
+     * @return
+     *      Bytes keyed by host name, empty if the directory does not exist.
+     */
+    public Map<String, Long> getBlockHosts(String dir) throws IOException {
+        FileSystem fs = fs();
+        try {
+            Map<String, Long> hosts = new HashMap<String, Long>();
+            FileStatus[] status = fs.listStatus(new Path(dir));
+            if (status == null)
+                return hosts;
+            for (FileStatus file : status) {
+                if (file.isDir())
+                    continue;
+                for (BlockLocation block : fs.getFileBlockLocations(file, 0, file.getLen())) {
+                    for (String host : block.getHosts()) {
+                        Long bytes = hosts.get(host);
+                        hosts.put(host, (bytes != null ? bytes : 0) + block.getLength());
                     }
-                    dest.flush();
-                    dest.close();
                 }
             }
-        } catch(Exception e) {
-            e.printStackTrace();
+            return hosts;
         } finally {
-            if (dest != null) {
-                dest.flush();
-                dest.close();
-            }
-            tis.close();
+            HdfsClients.release(fs);
+        }
+    }
+
+    /**
+     * Shared client of the grid HDFS, to be given back to {@link HdfsClients#release}.
+     *
+     * @return
+     *      null if HDFS is not available.
+     */
+    public FileSystem getFs() {
+        try {
+            return fs();
+        } catch (IOException e) {
+            Logger.getLogger(HadoopInstance.class.getName()).log(Level.WARNING, "HDFS is not available at " + url, e);
+            return null;
         }
     }
-    public static final int BUFFER_MAX = 2048;
 }
\ No newline at end of file
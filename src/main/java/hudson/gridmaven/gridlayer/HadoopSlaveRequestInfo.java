@@ -48,9 +48,30 @@ public class HadoopSlaveRequestInfo implements Serializable{
     public String rVersion;
     public String rName;
     public String jobName;    
+    /**
+     * Identifies this module build in the HDFS repository,
+     * see {@link GridRepositoryLayout#buildId(String, int)}.
+     */
+    public String buildId;
+    /**
+     * Number of the module set build this module build belongs to, or 0 if it was started on its own.
+     */
+    public int setBuildNumber;
     public Map<String, String> entrySet;
     public List<UpStreamDep> upStreamDeps = new ArrayList<UpStreamDep>();
     public String mavenExePath;
+    /**
+     * Root directory of the node, where per-node grid state is kept.
+     */
+    public String nodeRoot;
+    /**
+     * Size limit of the node artifact cache, in bytes.
+     */
+    public long artifactCacheSize = NodeArtifactCache.MAX_SIZE;
+    /**
+     * Settings of files written into HDFS.
+     */
+    public HdfsSettings hdfsSettings;
     
     public HadoopSlaveRequestInfo() {
     }
@@ -68,6 +89,10 @@ public class HadoopSlaveRequestInfo implements Serializable{
         public String group;
         public String ver;
         public String pkg;
+        /**
+         * Build whose artifacts should be used, or null for the latest one.
+         */
+        public String buildId;
 
         public UpStreamDep(String a, String g, String v, String p) {
             art = a;
@@ -0,0 +1,241 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 berserker.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.gridmaven.gridlayer;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+
+/**
+ * Process-wide HDFS clients, one per HDFS URL and {@link HdfsSettings}.
+ *
+ * <p>
+ * Connecting to the name node and setting up a client is not free, so the master
+ * and the cached Maven processes on the slaves keep their clients across builds.
+ * Before a client is handed out it is checked, at most once per {@link #CHECK_INTERVAL},
+ * and replaced if the name node stopped talking to it, e.g. after a restart.
+ *
+ * <p>
+ * Every client obtained by {@link #get} has to be given back to {@link #release} once
+ * the caller is done with it. A replaced client is closed, stopping its lease renewer
+ * and connections, when the last caller still using it releases it.
+ *
+ * @author Filip Hubik
+ */
+public final class HdfsClients {
+
+    /**
+     * Guards all the bookkeeping below, never held over an RPC.
+     */
+    private static final Map<String, Client> clients = new HashMap<String, Client>();
+    private static final Map<FileSystem, Handle> handles = new IdentityHashMap<FileSystem, Handle>();
+
+    private HdfsClients() {}
+
+    /**
+     * Returns a working client of the given HDFS, to be {@link #release released} when done.
+     *
+     * @param settings
+     *      Settings of the files written through the client, null for the defaults.
+     */
+    public static FileSystem get(final String url, final HdfsSettings settings) throws IOException {
+        String key = settings != null
+                ? url + "|" + settings.blockSize + "|" + settings.replication
+                : url;
+        return acquire(key, new Connector() {
+            public FileSystem connect() throws IOException {
+                return open(url, settings);
+            }
+        });
+    }
+
+    /**
+     * Opens new clients for {@link HdfsClients#acquire}.
+     */
+    interface Connector {
+        FileSystem connect() throws IOException;
+    }
+
+    /**
+     * @param connector
+     *      Opens a new client if there is no working one under the key.
+     */
+    static FileSystem acquire(String key, Connector connector) throws IOException {
+        while (true) {
+            Client c;
+            Handle h;
+            boolean check = false;
+            long now = System.currentTimeMillis();
+            synchronized (clients) {
+                c = clients.get(key);
+                if (c == null)
+                    clients.put(key, c = new Client(connector));
+                h = c.current;
+                if (h != null) {
+                    h.users++;
+                    if (now - c.lastChecked > CHECK_INTERVAL) {
+                        // one caller checks, the others go on with the client meanwhile
+                        c.lastChecked = now;
+                        check = true;
+                    }
+                }
+            }
+
+            if (h == null)
+                return c.connect();
+            if (!check || isAlive(h.fs))
+                return h.fs;
+
+            LOGGER.log(Level.INFO, "Lost connection to HDFS at {0}, reconnecting", key);
+            synchronized (clients) {
+                if (c.current == h)
+                    c.current = null;
+                h.replaced = true;
+            }
+            release(h.fs);
+        }
+    }
+
+    /**
+     * Gives back a client obtained by {@link #get}. Clients not obtained from there are ignored.
+     */
+    public static void release(FileSystem fs) {
+        if (fs == null)
+            return;
+        synchronized (clients) {
+            Handle h = handles.get(fs);
+            if (h == null || --h.users > 0 || !h.replaced)
+                return;
+            handles.remove(fs);
+        }
+        close(fs);
+    }
+
+    /**
+     * Number of callers that got a client and did not release it yet, for tests.
+     */
+    static int users(FileSystem fs) {
+        synchronized (clients) {
+            Handle h = handles.get(fs);
+            return h != null ? h.users : 0;
+        }
+    }
+
+    private static boolean isAlive(FileSystem fs) {
+        try {
+            fs.getFileStatus(new Path("/"));
+            return true;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "HDFS health check failed", e);
+            return false;
+        }
+    }
+
+    private static void close(FileSystem fs) {
+        try {
+            fs.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot close a replaced HDFS client", e);
+        }
+    }
+
+    /**
+     * A client and the callers using it.
+     */
+    private static final class Handle {
+        final FileSystem fs;
+        int users;
+        /**
+         * No longer handed out, to be closed by the last user.
+         */
+        boolean replaced;
+
+        Handle(FileSystem fs) {
+            this.fs = fs;
+        }
+    }
+
+    private static final class Client {
+        private final Connector connector;
+        private Handle current;
+        private long lastChecked;
+
+        Client(Connector connector) {
+            this.connector = connector;
+        }
+
+        /**
+         * Connects a new client and makes it the current one, unless another
+         * caller was quicker, in which case that one is used.
+         */
+        FileSystem connect() throws IOException {
+            FileSystem fs = connector.connect();
+            Handle h;
+            synchronized (clients) {
+                h = current;
+                if (h == null) {
+                    current = h = new Handle(fs);
+                    handles.put(fs, h);
+                    lastChecked = System.currentTimeMillis();
+                }
+                h.users++;
+            }
+            if (h.fs != fs)
+                close(fs);
+            return h.fs;
+        }
+    }
+
+    private static FileSystem open(String url, HdfsSettings settings) throws IOException {
+        Configuration conf = new Configuration();
+        conf.set("fs.default.name", url);
+        conf.set("fs.hdfs.impl", "org.apache.hadoop.hdfs.DistributedFileSystem");
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+        if (settings != null)
+            settings.applyTo(conf);
+        // Hadoop would otherwise look its classes up through the context classloader,
+        // which can't see them
+        conf.setClassLoader(HdfsClients.class.getClassLoader());
+
+        // not FileSystem.get(), its cache would hand out one instance regardless of the settings
+        FileSystem fs = new DistributedFileSystem();
+        fs.initialize(URI.create(url), conf);
+        return fs;
+    }
+
+    /**
+     * How long a client may stay unused before it is checked, in milliseconds.
+     */
+    public static long CHECK_INTERVAL = Long.getLong(HdfsClients.class.getName() + ".checkInterval", 10 * 1000);
+
+    private static final Logger LOGGER = Logger.getLogger(HdfsClients.class.getName());
+}
@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 berserker.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.gridmaven.gridlayer;
+
+import java.io.Serializable;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Storage settings of the grid HDFS, shared by the name node, the data nodes
+ * and every client writing into it.
+ *
+ * @author Filip Hubik
+ */
+public class HdfsSettings implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Size of newly written blocks, in bytes.
+     */
+    public final long blockSize;
+    /**
+     * Number of copies kept of every newly written block.
+     */
+    public final int replication;
+    /**
+     * Disk space the data nodes leave free for builds, in bytes.
+     */
+    public final long reserved;
+
+    public HdfsSettings(long blockSize, int replication, long reserved) {
+        this.blockSize = blockSize;
+        this.replication = replication;
+        this.reserved = reserved;
+    }
+
+    /**
+     * Applies the settings clients use when writing files.
+     */
+    public void applyTo(Configuration conf) {
+        conf.setLong("dfs.block.size", blockSize);
+        conf.setInt("dfs.replication", replication);
+    }
+
+    /**
+     * Applies the settings of a data node.
+     */
+    public void applyToDataNode(Configuration conf) {
+        applyTo(conf);
+        conf.setLong("dfs.datanode.du.reserved", reserved);
+    }
+
+    public static final int DEFAULT_BLOCK_SIZE_MB = 32;
+    public static final int DEFAULT_REPLICATION = 2;
+    public static final int DEFAULT_RESERVED_MB = 1024;
+}
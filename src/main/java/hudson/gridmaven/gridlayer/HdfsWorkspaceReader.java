@@ -0,0 +1,191 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 berserker.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.gridmaven.gridlayer;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.sonatype.aether.artifact.Artifact;
+import org.sonatype.aether.repository.WorkspaceReader;
+import org.sonatype.aether.repository.WorkspaceRepository;
+
+/**
+ * Resolves artifacts built by grid module builds straight from the HDFS repository.
+ *
+ * <p>
+ * Artifacts of the reactor are looked up in the wrapped reader first. Modules of the
+ * same job the reactor does not contain are looked up in the published build the job
+ * keeps for them, never through the {@link GridRepositoryLayout#LATEST} pointer, which
+ * builds of other jobs move. Anything else is left to the local and remote repositories.
+ * Artifacts are downloaded into the {@link NodeArtifactCache} of the node on demand, so
+ * only artifacts Maven actually asks for are transferred, and each of them only once.
+ *
+ * <p>
+ * Used when parsing POMs. Module builds run Maven 2 in the Maven agent, which has no
+ * workspace readers, so they install their upstream artifacts beforehand instead.
+ *
+ * @author Filip Hubik
+ */
+public class HdfsWorkspaceReader implements WorkspaceReader {
+
+    private final WorkspaceReader delegate;
+    private final String hdfsUrl;
+    private final NodeArtifactCache cache;
+    private final Map<String, String> builds;
+
+    private boolean unavailable;
+
+    /**
+     * @param cache
+     *      Where downloaded artifacts are kept.
+     * @param builds
+     *      Published builds to resolve from, keyed by {@link #key}.
+     */
+    public HdfsWorkspaceReader(WorkspaceReader delegate, String hdfsUrl, NodeArtifactCache cache, Map<String, String> builds) {
+        this.delegate = delegate;
+        this.hdfsUrl = hdfsUrl;
+        this.cache = cache;
+        this.builds = builds;
+    }
+
+    /**
+     * Identifies an artifact version among the builds to resolve from.
+     */
+    public static String key(String groupId, String artifactId, String version) {
+        return groupId + ":" + artifactId + ":" + version;
+    }
+
+    /**
+     * Lets the node cache evict the artifacts handed out so far.
+     * Call when Maven no longer uses them.
+     */
+    public void release() {
+        cache.release();
+    }
+
+    public WorkspaceRepository getRepository() {
+        return delegate.getRepository();
+    }
+
+    public File findArtifact(Artifact artifact) {
+        File f = delegate.findArtifact(artifact);
+        if (f != null)
+            return f;
+        try {
+            return fetch(artifact);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot resolve " + artifact + " from HDFS", e);
+            return null;
+        }
+    }
+
+    public List<String> findVersions(Artifact artifact) {
+        List<String> versions = new ArrayList<String>(delegate.findVersions(artifact));
+        if (!versions.contains(artifact.getBaseVersion()) && isPublished(artifact)) {
+            FileSystem fs = getFs();
+            try {
+                if (fs != null && hdfsFile(fs, artifact) != null)
+                    versions.add(artifact.getBaseVersion());
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Cannot look up " + artifact + " in HDFS", e);
+            } finally {
+                HdfsClients.release(fs);
+            }
+        }
+        return versions;
+    }
+
+    private File fetch(Artifact artifact) throws IOException {
+        if (!isPublished(artifact))
+            return null;
+        FileSystem fs = getFs();
+        if (fs == null)
+            return null;
+        try {
+            FileStatus src = hdfsFile(fs, artifact);
+            if (src == null)
+                return null;
+
+            return cache.get(fs, src);
+        } finally {
+            HdfsClients.release(fs);
+        }
+    }
+
+    /**
+     * Whether there is a published build to resolve the artifact from, so that other
+     * artifacts don't need the HDFS client at all.
+     */
+    private boolean isPublished(Artifact a) {
+        return builds.containsKey(key(a.getGroupId(), a.getArtifactId(), a.getBaseVersion()));
+    }
+
+    /**
+     * The artifact file in the published build to resolve from, or null if there is none.
+     */
+    private FileStatus hdfsFile(FileSystem fs, Artifact a) throws IOException {
+        String buildId = builds.get(key(a.getGroupId(), a.getArtifactId(), a.getBaseVersion()));
+        if (buildId == null)
+            return null;
+        Path dir = GridArtifactRepository.resolve(fs, a.getGroupId(), a.getArtifactId(), a.getBaseVersion(), buildId);
+        if (dir == null)
+            return null;
+        String name = a.getArtifactId() + "-" + a.getBaseVersion();
+        if (a.getClassifier() != null && a.getClassifier().length() > 0)
+            name += "-" + a.getClassifier();
+        name += "." + a.getExtension();
+        try {
+            return fs.getFileStatus(new Path(dir, name));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Asks {@link HdfsClients} every time, so that a reconnected client is picked up.
+     * To be given back to {@link HdfsClients#release}.
+     */
+    synchronized FileSystem getFs() {
+        if (unavailable || hdfsUrl == null)
+            return null;
+        try {
+            return HdfsClients.get(hdfsUrl, null);
+        } catch (IOException e) {
+            // don't try again for every artifact
+            unavailable = true;
+            LOGGER.log(Level.WARNING, "HDFS repository is not available at " + hdfsUrl, e);
+            return null;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(HdfsWorkspaceReader.class.getName());
+}
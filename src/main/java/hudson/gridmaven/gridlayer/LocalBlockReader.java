@@ -0,0 +1,390 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 berserker.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.gridmaven.gridlayer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSClient;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.ClientProtocol;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
+import org.apache.hadoop.hdfs.server.namenode.NameNode;
+import org.apache.hadoop.ipc.RPC;
+
+/**
+ * Reads HDFS files, taking the blocks stored by the data node of this machine
+ * straight from its disk.
+ *
+ * <p>
+ * Every grid node runs a data node in <tt>&lt;node root>/hadoop/datanode</tt>. The name
+ * node tells which blocks a file consists of; those found in the local data directory,
+ * with the expected length and generation stamp, are read as plain files instead of
+ * being streamed through the data node. Other blocks, and whole files if the block
+ * locations cannot be obtained, are read through the regular HDFS client.
+ *
+ * <p>
+ * The data directory is scanned once, on first use; blocks the data node stores
+ * afterwards are read through the data node. A reader is therefore meant to be
+ * short-lived, e.g. one per build, and {@link #close() closed} when done.
+ *
+ * @author Filip Hubik
+ */
+public class LocalBlockReader {
+
+    private final FileSystem fs;
+    private final File blockDir;
+
+    private ClientProtocol namenode;
+    private boolean namenodeUnavailable;
+
+    /**
+     * Block name to block file and generation stamp, as found by the scan.
+     */
+    private final Map<String, File> blocks = new ConcurrentHashMap<String, File>();
+    private final Map<String, Long> generations = new ConcurrentHashMap<String, Long>();
+    private volatile boolean scanned;
+
+    private final AtomicLong localBytes = new AtomicLong();
+    private final AtomicLong remoteBytes = new AtomicLong();
+
+    /**
+     * @param dataDir
+     *      Data directory of the local data node, see {@link #dataDir(String)}.
+     */
+    public LocalBlockReader(FileSystem fs, File dataDir) {
+        this.fs = fs;
+        this.blockDir = new File(dataDir, "current");
+    }
+
+    /**
+     * Data directory of the data node running on a node.
+     */
+    public static File dataDir(String nodeRoot) {
+        return new File(nodeRoot, "hadoop/datanode");
+    }
+
+    /**
+     * Opens a file for reading.
+     *
+     * @param length
+     *      Length of the file, as recorded in a listing or manifest, or -1 if not known.
+     *      Saves asking the name node for it.
+     */
+    public InputStream open(Path path, long length) throws IOException {
+        return open(path, locate(path, length));
+    }
+
+    /**
+     * Opens a file whose blocks are known.
+     *
+     * @param located
+     *      null to read the whole file through the HDFS client.
+     */
+    InputStream open(Path path, List<LocatedBlock> located) throws IOException {
+        if (located == null) {
+            return new CountingStream(fs.open(path), remoteBytes);
+        }
+        return new BlockInputStream(path, located);
+    }
+
+    /**
+     * Copies a file to the local disk.
+     */
+    public void copyToLocalFile(FileStatus src, File dst) throws IOException {
+        InputStream in = open(src.getPath(), src.getLen());
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(dst), SourceManifest.BUFFER_SIZE);
+            try {
+                byte[] buf = new byte[SourceManifest.BUFFER_SIZE];
+                int len;
+                while ((len = in.read(buf)) >= 0)
+                    out.write(buf, 0, len);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Bytes read from blocks on the local disk.
+     */
+    public long getLocalBytes() {
+        return localBytes.get();
+    }
+
+    /**
+     * Bytes read through the HDFS client.
+     */
+    public long getRemoteBytes() {
+        return remoteBytes.get();
+    }
+
+    /**
+     * Releases the connection to the name node.
+     */
+    public synchronized void close() {
+        if (namenode != null) {
+            RPC.stopProxy(namenode);
+            namenode = null;
+        }
+    }
+
+    /**
+     * Asks the name node for the blocks of a file, in the single RPC that would
+     * otherwise be spent on its status.
+     *
+     * @return
+     *      null if they cannot be obtained, or there are no local blocks to read anyway.
+     */
+    private List<LocatedBlock> locate(Path path, long length) {
+        scan();
+        if (blocks.isEmpty())
+            return null;
+        ClientProtocol nn = getNamenode();
+        if (nn == null)
+            return null;
+        try {
+            // the name node caps the range at the end of the file
+            LocatedBlocks located = nn.getBlockLocations(path.toUri().getPath(), 0,
+                    length >= 0 ? length : Long.MAX_VALUE);
+            return located != null ? located.getLocatedBlocks() : null;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot locate blocks of " + path, e);
+            return null;
+        }
+    }
+
+    private synchronized ClientProtocol getNamenode() {
+        if (namenode == null && !namenodeUnavailable) {
+            try {
+                if (fs instanceof DistributedFileSystem)
+                    namenode = DFSClient.createNamenode(NameNode.getAddress(fs.getConf()), fs.getConf());
+                else
+                    namenodeUnavailable = true;
+            } catch (IOException e) {
+                namenodeUnavailable = true;
+                LOGGER.log(Level.FINE, "Cannot connect to the name node, local block reads disabled", e);
+            }
+        }
+        return namenode;
+    }
+
+    /**
+     * Finds the local copy of a block, if there is a complete one.
+     */
+    File localBlock(Block b) {
+        scan();
+        String name = b.getBlockName();
+        File f = blocks.get(name);
+        if (f == null || f.length() != b.getNumBytes())
+            return null;
+        Long generation = generations.get(name);
+        if (generation == null || generation != b.getGenerationStamp())
+            return null;
+        return f;
+    }
+
+    /**
+     * Forgets a block file the data node has deleted or moved since the last scan.
+     */
+    private void lostBlock(Block b) {
+        blocks.remove(b.getBlockName());
+    }
+
+    /**
+     * Scans the data directory, unless done already.
+     */
+    private void scan() {
+        if (scanned)
+            return;
+        synchronized (blocks) {
+            if (!scanned) {
+                scan(blockDir);
+                scanned = true;
+            }
+        }
+    }
+
+    private void scan(File dir) {
+        File[] children = dir.listFiles();
+        if (children == null)
+            return;
+        for (File c : children) {
+            String name = c.getName();
+            if (c.isDirectory()) {
+                scan(c);
+            } else if (name.startsWith("blk_") && name.endsWith(".meta")) {
+                // blk_<id>_<generation stamp>.meta
+                int sep = name.lastIndexOf('_');
+                try {
+                    generations.put(name.substring(0, sep),
+                            Long.parseLong(name.substring(sep + 1, name.length() - ".meta".length())));
+                } catch (NumberFormatException e) {
+                    // not a block meta file
+                }
+            } else if (name.startsWith("blk_")) {
+                blocks.put(name, c);
+            }
+        }
+    }
+
+    /**
+     * Reads the blocks of a file one after another, each from the local disk if possible.
+     */
+    private final class BlockInputStream extends InputStream {
+        private final Path path;
+        private final List<LocatedBlock> located;
+        private int index = -1;
+        private InputStream current;
+        private boolean currentIsLocal;
+        private long remaining;
+        private FSDataInputStream remote;
+
+        BlockInputStream(Path path, List<LocatedBlock> located) {
+            this.path = path;
+            this.located = located;
+        }
+
+        private boolean nextBlock() throws IOException {
+            if (currentIsLocal && current != null)
+                current.close();
+            current = null;
+            if (++index >= located.size())
+                return false;
+
+            LocatedBlock lb = located.get(index);
+            File f = localBlock(lb.getBlock());
+            if (f != null) {
+                try {
+                    current = new FileInputStream(f);
+                } catch (FileNotFoundException e) {
+                    // the data node deleted or moved the block, read it through HDFS instead
+                    LOGGER.log(Level.FINE, "Local block " + f + " is gone", e);
+                    lostBlock(lb.getBlock());
+                }
+            }
+            if (current != null) {
+                currentIsLocal = true;
+            } else {
+                if (remote == null)
+                    remote = fs.open(path);
+                remote.seek(lb.getStartOffset());
+                current = remote;
+                currentIsLocal = false;
+            }
+            remaining = lb.getBlockSize();
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            while (remaining == 0) {
+                if (!nextBlock())
+                    return -1;
+            }
+            int n = current.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0)
+                throw new IOException("Unexpected end of block " + located.get(index).getBlock() + " of " + path);
+            remaining -= n;
+            (currentIsLocal ? localBytes : remoteBytes).addAndGet(n);
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (currentIsLocal && current != null)
+                    current.close();
+            } finally {
+                if (remote != null)
+                    remote.close();
+            }
+        }
+    }
+
+    /**
+     * Counts bytes of files read through the HDFS client as a whole.
+     */
+    private static final class CountingStream extends InputStream {
+        private final InputStream in;
+        private final AtomicLong counter;
+
+        CountingStream(InputStream in, AtomicLong counter) {
+            this.in = in;
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0)
+                counter.incrementAndGet();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0)
+                counter.addAndGet(n);
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(LocalBlockReader.class.getName());
+}
@@ -0,0 +1,306 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 berserker.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.gridmaven.gridlayer;
+
+import hudson.Util;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Places artifacts into a local Maven repository the way
+ * {@code install:install-file} would, without starting Maven.
+ *
+ * <p>
+ * Runs inside the Maven process on the slave, so that all upstream artifacts of a
+ * module are installed in one go before the build starts.
+ *
+ * @author Filip Hubik
+ */
+public class LocalRepositoryInstaller {
+
+    private final File repository;
+
+    public LocalRepositoryInstaller(File repository) {
+        this.repository = repository;
+    }
+
+    public File getRepository() {
+        return repository;
+    }
+
+    /**
+     * Finds the local repository the Maven build with the given arguments uses.
+     * Looks at {@code -Dmaven.repo.local} (or {@code -Dsettings.localRepository}) on the
+     * command line and in the system properties, then at the user settings given by {@code -s}
+     * or in {@code ~/.m2}, then at the global settings given by {@code -gs} or in
+     * {@code $M2_HOME/conf}, and falls back to {@code ~/.m2/repository}.
+     */
+    public static File locate(List<String> args) {
+        String mavenHome = System.getProperty("maven.home");
+        if (mavenHome == null)
+            mavenHome = System.getenv("M2_HOME");
+        return locate(args, System.getProperties(), mavenHome);
+    }
+
+    /**
+     * @param mavenHome
+     *      Installation of Maven whose global settings apply, null if not known.
+     */
+    static File locate(List<String> args, Properties props, String mavenHome) {
+        Properties p = new Properties();
+        p.putAll(props);
+        File userSettings = null;
+        File globalSettings = null;
+        for (int i = 0; i < args.size(); i++) {
+            String a = args.get(i);
+            if (a.startsWith("-D")) {
+                int eq = a.indexOf('=');
+                if (eq > 0)
+                    p.setProperty(a.substring(2, eq), a.substring(eq + 1));
+            } else if ((a.equals("-s") || a.equals("--settings")) && i + 1 < args.size()) {
+                userSettings = new File(args.get(++i));
+            } else if ((a.equals("-gs") || a.equals("--global-settings")) && i + 1 < args.size()) {
+                globalSettings = new File(args.get(++i));
+            }
+        }
+        for (String name : REPOSITORY_PROPERTIES) {
+            String repo = p.getProperty(name);
+            if (repo != null)
+                return new File(interpolate(repo, p));
+        }
+
+        File m2 = new File(p.getProperty("user.home"), ".m2");
+        if (userSettings == null)
+            userSettings = new File(m2, "settings.xml");
+        if (globalSettings == null && mavenHome != null)
+            globalSettings = new File(mavenHome, "conf/settings.xml");
+        for (File settings : new File[] {userSettings, globalSettings}) {
+            String repo = settings != null ? readLocalRepository(settings) : null;
+            if (repo != null)
+                return new File(interpolate(repo, p));
+        }
+        return new File(m2, "repository");
+    }
+
+    private static String readLocalRepository(File settings) {
+        if (!settings.isFile())
+            return null;
+        try {
+            Matcher m = LOCAL_REPOSITORY.matcher(Util.loadFile(settings, UTF8));
+            if (m.find())
+                return m.group(1).trim();
+        } catch (IOException e) {
+            // fall back to the next settings
+        }
+        return null;
+    }
+
+    /**
+     * Expands {@code ${name}} of properties and {@code ${env.NAME}} of environment variables
+     * the way Maven does in settings, leaving unknown ones as they are.
+     */
+    private static String interpolate(String s, Properties props) {
+        Matcher m = EXPRESSION.matcher(s);
+        StringBuffer buf = new StringBuffer();
+        while (m.find()) {
+            String name = m.group(1);
+            String value = name.startsWith("env.") ? System.getenv(name.substring(4)) : props.getProperty(name);
+            m.appendReplacement(buf, Matcher.quoteReplacement(value != null ? value : m.group()));
+        }
+        m.appendTail(buf);
+        return buf.toString();
+    }
+
+    /**
+     * Installs one artifact together with its POM and updates the local repository metadata.
+     *
+     * @param extension
+     *      File extension of the artifact, e.g. "jar" for bundles too.
+     * @param artifact
+     *      The artifact file, null for POM packaging.
+     */
+    public void install(String groupId, String artifactId, String version, String extension,
+            File artifact, File pom) throws IOException {
+        File artifactDir = new File(repository, groupId.replace('.', '/') + "/" + artifactId);
+        File versionDir = new File(artifactDir, version);
+        if (!versionDir.isDirectory() && !versionDir.mkdirs())
+            throw new IOException("Cannot create " + versionDir);
+
+        String base = artifactId + "-" + version;
+        copy(pom, new File(versionDir, base + ".pom"));
+        if (artifact != null && !"pom".equals(extension))
+            copy(artifact, new File(versionDir, base + "." + extension));
+
+        String now = timestamp();
+        writeArtifactMetadata(artifactDir, groupId, artifactId, version, now);
+        if (version.endsWith("-SNAPSHOT"))
+            writeSnapshotMetadata(versionDir, groupId, artifactId, version, now);
+    }
+
+    /**
+     * Installs an artifact attached to one installed by {@link #install}, e.g. sources or test classes.
+     */
+    public void installAttached(String groupId, String artifactId, String version, String classifier,
+            String extension, File artifact) throws IOException {
+        File versionDir = new File(repository, groupId.replace('.', '/') + "/" + artifactId + "/" + version);
+        if (!versionDir.isDirectory() && !versionDir.mkdirs())
+            throw new IOException("Cannot create " + versionDir);
+        copy(artifact, new File(versionDir, artifactId + "-" + version + "-" + classifier + "." + extension));
+    }
+
+    /**
+     * Adds the version to the artifact metadata. Other builds on the node may install
+     * versions of the same artifact meanwhile, so the metadata is read and written
+     * under a lock on the artifact directory.
+     */
+    private void writeArtifactMetadata(File dir, String groupId, String artifactId, String version, String now) throws IOException {
+        File f = new File(dir, METADATA);
+        // file locks are held by the whole JVM, so threads are kept apart here
+        synchronized (LocalRepositoryInstaller.class) {
+            RandomAccessFile lock = new RandomAccessFile(new File(dir, METADATA + ".lock"), "rw");
+            try {
+                FileLock l = lock.getChannel().lock();
+                try {
+                    TreeSet<String> versions = new TreeSet<String>();
+                    if (f.isFile()) {
+                        Matcher m = VERSION.matcher(Util.loadFile(f, UTF8));
+                        while (m.find())
+                            versions.add(m.group(1));
+                    }
+                    versions.add(version);
+
+                    StringBuilder xml = header(groupId, artifactId, null);
+                    xml.append("  <versioning>\n");
+                    xml.append("    <versions>\n");
+                    for (String v : versions)
+                        xml.append("      <version>").append(v).append("</version>\n");
+                    xml.append("    </versions>\n");
+                    xml.append("    <lastUpdated>").append(now).append("</lastUpdated>\n");
+                    xml.append("  </versioning>\n");
+                    xml.append("</metadata>\n");
+                    write(f, xml);
+                } finally {
+                    l.release();
+                }
+            } finally {
+                lock.close();
+            }
+        }
+    }
+
+    /**
+     * Marks a snapshot as locally installed, so Maven does not look for a newer one remotely.
+     */
+    private void writeSnapshotMetadata(File dir, String groupId, String artifactId, String version, String now) throws IOException {
+        StringBuilder xml = header(groupId, artifactId, version);
+        xml.append("  <versioning>\n");
+        xml.append("    <snapshot>\n");
+        xml.append("      <localCopy>true</localCopy>\n");
+        xml.append("    </snapshot>\n");
+        xml.append("    <lastUpdated>").append(now).append("</lastUpdated>\n");
+        xml.append("  </versioning>\n");
+        xml.append("</metadata>\n");
+        write(new File(dir, METADATA), xml);
+    }
+
+    private static StringBuilder header(String groupId, String artifactId, String version) {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        xml.append("<metadata>\n");
+        xml.append("  <groupId>").append(groupId).append("</groupId>\n");
+        xml.append("  <artifactId>").append(artifactId).append("</artifactId>\n");
+        if (version != null)
+            xml.append("  <version>").append(version).append("</version>\n");
+        return xml;
+    }
+
+    /**
+     * Replaces the file at once, so a Maven process reading the metadata
+     * concurrently never sees it half written.
+     */
+    private static void write(File f, CharSequence content) throws IOException {
+        File tmp = File.createTempFile(f.getName(), ".tmp", f.getParentFile());
+        try {
+            Writer w = new OutputStreamWriter(new FileOutputStream(tmp), UTF8);
+            try {
+                w.write(content.toString());
+            } finally {
+                w.close();
+            }
+            replace(tmp, f);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Copies a file into the repository the same way as {@link #write}, so that a build
+     * reading an artifact installed earlier never sees it truncated.
+     */
+    private static void copy(File src, File dst) throws IOException {
+        File tmp = File.createTempFile(dst.getName(), ".tmp", dst.getParentFile());
+        try {
+            Util.copyFile(src, tmp);
+            replace(tmp, dst);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private static void replace(File tmp, File f) throws IOException {
+        // Windows doesn't rename over an existing file
+        if (!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f)))
+            throw new IOException("Cannot write " + f);
+    }
+
+    private static String timestamp() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date());
+    }
+
+    private static final String METADATA = "maven-metadata-local.xml";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Pattern VERSION = Pattern.compile("<version>([^<]+)</version>");
+    private static final Pattern LOCAL_REPOSITORY = Pattern.compile("<localRepository>([^<]+)</localRepository>");
+    private static final Pattern EXPRESSION = Pattern.compile("\\$\\{([^}]+)\\}");
+    /**
+     * Properties overriding the local repository of the settings, in the order Maven looks at them.
+     */
+    private static final String[] REPOSITORY_PROPERTIES = {"maven.repo.local", "settings.localRepository"};
+}
@@ -0,0 +1,289 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 berserker.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.gridmaven.gridlayer;
+
+import hudson.Util;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Materializes module sources described by a {@link SourceManifest} from the
+ * HDFS blob store into a local directory.
+ *
+ * <p>
+ * Runs inside the Maven process on the slave. The manifest a workspace was last
+ * synchronized to is kept outside of the workspace, so that the next build only
+ * fetches files whose content changed and removes files that disappeared.
+ *
+ * @author Filip Hubik
+ */
+public class ManifestWorkspaceSync {
+
+    private final FileSystem fs;
+    private final LocalBlockReader reader;
+
+    private int fetchedFiles;
+    private int deletedFiles;
+    private long fetchedBytes;
+
+    /**
+     * Codec of the manifest being synchronized.
+     */
+    private SnapshotCodec codec = SnapshotCodec.NONE;
+
+    public ManifestWorkspaceSync(FileSystem fs) {
+        this(fs, null);
+    }
+
+    /**
+     * @param reader
+     *      Used to read blobs, taking blocks stored on this machine from the local disk.
+     *      Null to always read through the HDFS client.
+     */
+    public ManifestWorkspaceSync(FileSystem fs, LocalBlockReader reader) {
+        this.fs = fs;
+        this.reader = reader;
+    }
+
+    public int getFetchedFiles() {
+        return fetchedFiles;
+    }
+
+    public int getDeletedFiles() {
+        return deletedFiles;
+    }
+
+    public long getFetchedBytes() {
+        return fetchedBytes;
+    }
+
+    /**
+     * Location on the node where the last synchronized manifest of a module is kept.
+     *
+     * @param nodeRoot
+     *      Root directory of the node.
+     * @param manifestDir
+     *      HDFS directory of the module manifests, see {@link GridRepositoryLayout#manifestDir}.
+     */
+    public static File stateFile(String nodeRoot, String manifestDir) {
+        return new File(nodeRoot, "gridmaven" + manifestDir + GridRepositoryLayout.MANIFEST_EXTENSION);
+    }
+
+    /**
+     * Finds the manifest a module build synchronizes to.
+     *
+     * @param manifestDir
+     *      HDFS directory of the module manifests, see {@link GridRepositoryLayout#manifestDir}.
+     * @param setBuildNumber
+     *      Module set build the module build belongs to, or 0 for a module build
+     *      started on its own, which takes the newest manifest.
+     * @return
+     *      null if there is no such manifest.
+     */
+    public static Path findManifest(FileSystem fs, String manifestDir, int setBuildNumber) throws IOException {
+        if (setBuildNumber > 0) {
+            Path p = new Path(manifestDir, setBuildNumber + GridRepositoryLayout.MANIFEST_EXTENSION);
+            return fs.exists(p) ? p : null;
+        }
+
+        FileStatus[] manifests = fs.listStatus(new Path(manifestDir));
+        if (manifests == null)
+            return null;
+        Path newest = null;
+        int newestNumber = -1;
+        for (FileStatus m : manifests) {
+            int n = GridRepositoryLayout.manifestBuildNumber(m.getPath().getName());
+            if (n > newestNumber) {
+                newest = m.getPath();
+                newestNumber = n;
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * Brings the target directory to the state described by the manifest.
+     *
+     * <p>
+     * If the state file holds the manifest the directory was synchronized to
+     * before, only the difference is transferred. Otherwise every file is fetched.
+     * The new manifest is recorded in the state file afterwards.
+     */
+    public void sync(SourceManifest manifest, File target, File stateFile) throws IOException {
+        SourceManifest previous = readState(stateFile);
+        // forget the old state first, so an interrupted sync falls back to a full one next time
+        stateFile.delete();
+
+        if (previous == null) {
+            materialize(manifest, target);
+        } else {
+            update(previous, manifest, target);
+        }
+
+        writeState(manifest, stateFile);
+    }
+
+    /**
+     * Reads the manifest stored in HDFS.
+     */
+    public SourceManifest readManifest(Path manifestPath) throws IOException {
+        InputStream in = fs.open(manifestPath);
+        try {
+            return SourceManifest.read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes every file of the manifest into the target directory.
+     */
+    public void materialize(SourceManifest manifest, File target) throws IOException {
+        codec = manifest.getCodec();
+        for (SourceManifest.Entry e : manifest.getEntries()) {
+            File f = new File(target, e.path);
+            if (e.isDirectory()) {
+                f.mkdirs();
+            } else {
+                fetch(e, f);
+            }
+        }
+    }
+
+    /**
+     * Applies the difference between two manifests to the target directory.
+     */
+    private void update(SourceManifest previous, SourceManifest manifest, File target) throws IOException {
+        codec = manifest.getCodec();
+        for (SourceManifest.Entry e : manifest.getEntries()) {
+            File f = new File(target, e.path);
+            if (e.isDirectory()) {
+                if (f.isFile())
+                    f.delete();
+                f.mkdirs();
+                continue;
+            }
+            SourceManifest.Entry old = previous.get(e.path);
+            // the size check catches files the previous build modified in place
+            if (old != null && e.hash.equals(old.hash) && f.isFile() && f.length() == e.size)
+                continue;
+            fetch(e, f);
+        }
+
+        // delete in reverse order, so that directories are emptied before they are removed
+        List<SourceManifest.Entry> removed = new ArrayList<SourceManifest.Entry>();
+        for (SourceManifest.Entry old : previous.getEntries()) {
+            if (manifest.get(old.path) == null)
+                removed.add(old);
+        }
+        Collections.reverse(removed);
+        for (SourceManifest.Entry old : removed) {
+            File f = new File(target, old.path);
+            if (f.delete() && !old.isDirectory())
+                deletedFiles++;
+        }
+    }
+
+    private SourceManifest readState(File stateFile) {
+        if (!stateFile.isFile())
+            return null;
+        try {
+            InputStream in = new FileInputStream(stateFile);
+            try {
+                return SourceManifest.read(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null; // corrupted state, do a full sync
+        }
+    }
+
+    private void writeState(SourceManifest manifest, File stateFile) throws IOException {
+        File parent = stateFile.getParentFile();
+        if (parent != null)
+            parent.mkdirs();
+        File tmp = new File(stateFile.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            manifest.write(out);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(stateFile))
+            throw new IOException("Cannot write " + stateFile);
+    }
+
+    /**
+     * Copies the blob of one manifest entry into the given file, verifying that
+     * the decoded content matches the SHA-1 recorded in the manifest.
+     */
+    protected void fetch(SourceManifest.Entry e, File f) throws IOException {
+        File parent = f.getParentFile();
+        if (parent != null)
+            parent.mkdirs();
+        Path blob = new Path(GridRepositoryLayout.blobPath(e.hash, codec));
+        MessageDigest md = SourceManifest.newDigest();
+        // the blob is as long as the content unless the codec compresses it
+        InputStream in = reader != null
+                ? reader.open(blob, codec == SnapshotCodec.NONE ? e.size : -1)
+                : fs.open(blob);
+        try {
+            in = codec.decode(in);
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(f), SourceManifest.BUFFER_SIZE);
+            try {
+                byte[] buf = new byte[SourceManifest.BUFFER_SIZE];
+                int len;
+                while ((len = in.read(buf)) >= 0) {
+                    md.update(buf, 0, len);
+                    out.write(buf, 0, len);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        // local block files are read without their checksums, so this is the only integrity check
+        String actual = Util.toHexString(md.digest());
+        if (!actual.equals(e.hash)) {
+            f.delete();
+            throw new IOException("Corrupted blob " + blob + " for " + e.path + ": expected " + e.hash + " but got " + actual);
+        }
+        fetchedFiles++;
+        fetchedBytes += e.size;
+    }
+}
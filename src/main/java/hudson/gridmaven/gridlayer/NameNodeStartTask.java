@@ -35,23 +35,30 @@ import org.apache.hadoop.fs.Path;
 
 /**
  * Starts a {@link NameNode}.
+ *
+ * <p>
+ * The namespace is kept across restarts, so sources and artifacts stored in HDFS
+ * survive them. It is only formatted when there is none yet, or when requested with
+ * the <tt>hadoop.format</tt> system property. If an existing namespace fails to load,
+ * the name node does not start; an administrator decides whether to repair it or to
+ * restart with <tt>hadoop.format</tt>, which loses everything stored in HDFS.
  */
 class NameNodeStartTask implements Callable<Void,IOException> {
     private final File hudsonRoot;
     private final String hdfsUrl;
     private final int hdfsPort;
-    private boolean format = Boolean.getBoolean("hadoop.format");
+    private final HdfsSettings settings;
+    private final boolean format = Boolean.getBoolean("hadoop.format");
 
-    NameNodeStartTask(File hudsonRoot, String hdfsUrl, int hdfsPort) {
+    NameNodeStartTask(File hudsonRoot, String hdfsUrl, int hdfsPort, HdfsSettings settings) {
         this.hudsonRoot = hudsonRoot;
         this.hdfsUrl = hdfsUrl;
         this.hdfsPort = hdfsPort;
+        this.settings = settings;
     }
 
     public Void call() throws IOException {
         File hadoopRoot = new File(hudsonRoot,"hadoop");
-        if(hadoopRoot.mkdirs())
-            format = true;
 
         final Configuration conf = new Configuration();
         // location of the name node
@@ -59,30 +66,46 @@ class NameNodeStartTask implements Callable<Void,IOException> {
         conf.set("dfs.http.address", "0.0.0.0:"+HTTP_PORT);
         // namespace node stores information here
         File namedir = new File(hadoopRoot, "namedir");
-        if(namedir.mkdirs())
-            format = true;
+        namedir.mkdirs();
         conf.set("dfs.name.dir", namedir.getPath());
         // dfs node stores information here
         File datadir = new File(hadoopRoot, "datadir");
         conf.set("dfs.namenode.logging.level","ALL");
-        if(datadir.mkdirs())
-            format = true;
+        datadir.mkdirs();
         conf.set("dfs.data.dir", datadir.getPath());
 
-        conf.setInt("dfs.replication",1);
+        settings.applyTo(conf);
         conf.set("dfs.safemode.extension", "1");
-        conf.set("dfs.block.size","1048576");
-        //if(format) {
-            // This will provide format HDFS with every start
-            System.out.println("Formatting HDFS");
+        // with a persistent namespace the blocks are reported only as slaves come online;
+        // don't hold writes back until all of them did
+        conf.setFloat("dfs.safemode.threshold.pct", 0f);
+
+        if(format || !hasNamespace(namedir)) {
+            System.out.println(format ? "Formatting HDFS as requested" : "Formatting new HDFS namespace");
             NameNode.format(conf);
-        //}
+        }
 
         System.out.println("Starting namenode");
-        NameNode.createNameNode(new String[0], conf);
+        try {
+            NameNode.createNameNode(new String[0], conf);
+        } catch (IOException e) {
+            // ports still held by the previous VM, locks and permissions are all reported this way,
+            // so never throw the namespace away here
+            IOException x = new IOException("Namenode failed to start with the HDFS namespace in " + namedir
+                    + "; if it is damaged beyond repair, restart with -Dhadoop.format=true to format HDFS");
+            x.initCause(e);
+            throw x;
+        }
         return null;
     }
 
+    /**
+     * Tells whether the directory holds a formatted namespace.
+     */
+    static boolean hasNamespace(File namedir) {
+        return new File(namedir, "current/VERSION").isFile();
+    }
+
     private static final long serialVersionUID = 1L;
 
     public static final int HTTP_PORT = 50070;
@@ -0,0 +1,393 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 berserker.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.gridmaven.gridlayer;
+
+import hudson.Util;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Cache of files downloaded from the HDFS repository, shared by all
+ * executors of a node.
+ *
+ * <p>
+ * Every file is kept under the version of the HDFS file it was downloaded from, so a
+ * rebuilt artifact gets a new entry and a cached one never goes stale. Several Maven
+ * processes on the same node may ask for the same file at once; only one of them
+ * downloads it, the others wait on a file lock and then use the result.
+ *
+ * <p>
+ * Files handed out by {@link #get} stay pinned until {@link #release()} is called, and
+ * pinned entries are never evicted, by this process or by any other one on the node.
+ * Whenever a download makes the cache grow over its size limit, the least recently
+ * used entries nobody pins are evicted.
+ *
+ * @author Filip Hubik
+ */
+public class NodeArtifactCache {
+
+    private final File dir;
+    private final long maxSize;
+    private final LocalBlockReader reader;
+
+    /**
+     * Keys of the entries pinned through this instance, once per {@link #get} call.
+     */
+    private final List<String> pinned = new ArrayList<String>();
+
+    /**
+     * Lock objects striped by cache key, as file locks are held by the whole JVM
+     * and don't exclude threads of the same process.
+     */
+    private static final Object[] locks = new Object[64];
+    static {
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+    }
+
+    /**
+     * Entries pinned in this JVM, keyed by their lock file.
+     * Modified while holding both the map and the lock of the key.
+     */
+    private static final Map<File, Pin> pins = new HashMap<File, Pin>();
+
+    /**
+     * Shared lock held on the lock file of an entry for as long as any user in this JVM pins it.
+     * A JVM can only hold one lock on a file, hence the count.
+     */
+    private static final class Pin {
+        final RandomAccessFile file;
+        final FileLock lock;
+        int count;
+
+        Pin(RandomAccessFile file, FileLock lock) {
+            this.file = file;
+            this.lock = lock;
+        }
+
+        void close() throws IOException {
+            try {
+                lock.release();
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    public NodeArtifactCache(File dir, long maxSize) {
+        this(dir, maxSize, null);
+    }
+
+    /**
+     * @param reader
+     *      Used to download files, taking blocks stored on this machine from the local disk.
+     *      Null to always read through the HDFS client.
+     */
+    public NodeArtifactCache(File dir, long maxSize, LocalBlockReader reader) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        this.reader = reader;
+    }
+
+    /**
+     * Location of the cache on a node.
+     */
+    public static File forNode(String nodeRoot) {
+        return new File(nodeRoot, "gridmaven/artifact-cache");
+    }
+
+    /**
+     * Returns a local copy of the given HDFS file, downloading it if needed.
+     * The copy stays in place until {@link #release()} is called.
+     *
+     * @param status
+     *      As listed by HDFS, which identifies the version of the file without
+     *      asking HDFS again when the file is cached already.
+     */
+    public File get(FileSystem fs, FileStatus status) throws IOException {
+        String key = cacheKey(status);
+        File entry = new File(dir, key);
+        File cached = new File(entry, status.getPath().getName());
+        File lf = lockFile(key);
+        boolean downloaded = false;
+
+        synchronized (lockFor(key)) {
+            Pin pin;
+            synchronized (pins) {
+                pin = pins.get(lf);
+            }
+            if (pin == null) {
+                if (!dir.isDirectory() && !dir.mkdirs())
+                    throw new IOException("Cannot create " + dir);
+                RandomAccessFile file = new RandomAccessFile(lf, "rw");
+                try {
+                    downloaded = fetch(fs, status, file, entry, cached);
+                    // keeps other processes from evicting the entry while it is pinned
+                    pin = new Pin(file, file.getChannel().lock(0, Long.MAX_VALUE, true));
+                } catch (IOException e) {
+                    file.close();
+                    throw e;
+                } catch (RuntimeException e) {
+                    file.close();
+                    throw e;
+                }
+                synchronized (pins) {
+                    pins.put(lf, pin);
+                }
+                // another process may have evicted the entry while nobody held a lock,
+                // or removed the lock file as abandoned before we locked it
+                if (!cached.isFile() || !lf.exists()) {
+                    unpin(key);
+                    return get(fs, status);
+                }
+            }
+            pin.count++;
+            touch(entry);
+        }
+        synchronized (pinned) {
+            pinned.add(key);
+        }
+
+        if (downloaded)
+            evict();
+        return cached;
+    }
+
+    /**
+     * Downloads the file unless the entry holds it already.
+     * The exclusive file lock makes processes of the node wait for each other's downloads.
+     *
+     * @return true if the file was downloaded.
+     */
+    private boolean fetch(FileSystem fs, FileStatus status, RandomAccessFile file, File entry, File cached) throws IOException {
+        if (cached.isFile())
+            return false;
+        FileLock fileLock = file.getChannel().lock();
+        try {
+            // another process may have downloaded it while we waited
+            if (cached.isFile())
+                return false;
+            if (!entry.isDirectory() && !entry.mkdirs())
+                throw new IOException("Cannot create " + entry);
+            File tmp = File.createTempFile(cached.getName(), ".part", entry);
+            try {
+                if (reader != null)
+                    reader.copyToLocalFile(status, tmp);
+                else
+                    fs.copyToLocalFile(status.getPath(), new Path(tmp.getAbsolutePath()));
+                if (!tmp.renameTo(cached) && !cached.isFile())
+                    throw new IOException("Cannot create " + cached);
+            } finally {
+                tmp.delete();
+            }
+            return true;
+        } finally {
+            fileLock.release();
+        }
+    }
+
+    /**
+     * Unpins all the files {@link #get} returned so far, allowing them to be evicted again.
+     */
+    public void release() {
+        List<String> keys;
+        synchronized (pinned) {
+            keys = new ArrayList<String>(pinned);
+            pinned.clear();
+        }
+        for (String key : keys) {
+            synchronized (lockFor(key)) {
+                unpin(key);
+            }
+        }
+    }
+
+    /**
+     * Drops one pin of an entry. Called while holding the lock of the key.
+     */
+    private void unpin(String key) {
+        File lf = lockFile(key);
+        Pin pin;
+        synchronized (pins) {
+            pin = pins.get(lf);
+            if (pin == null || --pin.count > 0)
+                return;
+            pins.remove(lf);
+        }
+        try {
+            pin.close();
+        } catch (IOException e) {
+            // the lock is gone with the file anyway
+        }
+    }
+
+    /**
+     * Names the cache entry after what identifies a version of the HDFS file:
+     * its path, length and modification time. They come with the listing, so looking up
+     * an entry costs no request to HDFS. Published files are never rewritten in place.
+     */
+    static String cacheKey(FileStatus status) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        String version = status.getPath().toUri().getPath() + "\n" + status.getLen() + "\n" + status.getModificationTime();
+        return Util.toHexString(md.digest(version.getBytes(UTF8)));
+    }
+
+    private static Object lockFor(String key) {
+        return locks[(key.hashCode() & 0x7fffffff) % locks.length];
+    }
+
+    private File lockFile(String key) {
+        return new File(dir, key + LOCK_SUFFIX).getAbsoluteFile();
+    }
+
+    private static void touch(File entry) {
+        entry.setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Removes the least recently used entries until the cache fits into its limit,
+     * and lock files left behind by entries that are gone.
+     */
+    private void evict() {
+        File[] entries = dir.listFiles();
+        if (entries == null)
+            return;
+        long total = 0;
+        for (File e : entries)
+            total += size(e);
+
+        Arrays.sort(entries, new Comparator<File>() {
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : l > r ? 1 : 0;
+            }
+        });
+        for (File e : entries) {
+            if (total <= maxSize)
+                break;
+            if (!e.isDirectory())
+                continue; // lock files
+            long s = size(e);
+            if (delete(e.getName(), false))
+                total -= s;
+        }
+
+        // e.g. after a failed download
+        long stale = System.currentTimeMillis() - ABANDONED_LOCK_AGE;
+        for (File e : entries) {
+            String name = e.getName();
+            if (e.isFile() && name.endsWith(LOCK_SUFFIX) && e.lastModified() < stale) {
+                String key = name.substring(0, name.length() - LOCK_SUFFIX.length());
+                if (!new File(dir, key).exists())
+                    delete(key, true);
+            }
+        }
+    }
+
+    /**
+     * Deletes an entry, unless some thread or process pins it or is downloading it.
+     *
+     * @param lockFile
+     *      Whether to delete the lock file as well. Lock files of evicted entries are kept,
+     *      since processes waiting for the lock would end up locking a deleted file.
+     * @return true if the entry was deleted.
+     */
+    private boolean delete(String key, boolean lockFile) {
+        synchronized (lockFor(key)) {
+            File lf = lockFile(key);
+            synchronized (pins) {
+                if (pins.containsKey(lf))
+                    return false;
+            }
+            try {
+                RandomAccessFile file = new RandomAccessFile(lf, "rw");
+                try {
+                    FileLock fileLock = file.getChannel().tryLock();
+                    if (fileLock == null)
+                        return false; // pinned or being downloaded by another process
+                    try {
+                        Util.deleteRecursive(new File(dir, key));
+                        if (lockFile)
+                            lf.delete();
+                        return true;
+                    } finally {
+                        fileLock.release();
+                    }
+                } finally {
+                    file.close();
+                }
+            } catch (IOException x) {
+                // in use on a platform that refuses to delete open files, try the next one
+                return false;
+            }
+        }
+    }
+
+    private static long size(File f) {
+        if (f.isFile())
+            return f.length();
+        long s = 0;
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children)
+                s += size(c);
+        }
+        return s;
+    }
+
+    private static final String LOCK_SUFFIX = ".lock";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Lock files without an entry are only removed when older than this, as a process
+     * may just have created one to download the entry.
+     */
+    private static final long ABANDONED_LOCK_AGE = 60 * 60 * 1000;
+
+    /**
+     * Default size limit of the cache, in bytes.
+     */
+    public static long MAX_SIZE = Long.getLong(NodeArtifactCache.class.getName() + ".maxSize", 2L * 1024 * 1024 * 1024);
+}
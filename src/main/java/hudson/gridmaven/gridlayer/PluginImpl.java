@@ -67,7 +67,6 @@ public class PluginImpl extends Plugin {
     public String masterHostName;
     private Configuration nameConf;
     private Configuration dataConf;
-    private boolean format = Boolean.getBoolean("hadoop.format");
     private HadoopInstance hadoop;
     private boolean hadoopInstantiated = false;
 
@@ -217,9 +216,7 @@ public class PluginImpl extends Plugin {
         File root = Hudson.getInstance().getRootDir();
         File hadoopRoot = new File(root,"hadoop");
         String hdfsUrl = getHdfsUrl();
-        
-        if(hadoopRoot.mkdirs())
-            format = true;
+        hadoopRoot.mkdirs();
         
         Hudson.getInstance().getActions().add(page);
         nameConf = new Configuration();
@@ -228,17 +225,17 @@ public class PluginImpl extends Plugin {
         nameConf.set("dfs.http.address", "0.0.0.0:"+HTTP_PORT);
         // namespace node stores information here
         File namedir = new File(hadoopRoot, "namedir");
-        if(namedir.mkdirs())
-            format = true;
+        namedir.mkdirs();
         nameConf.set("dfs.name.dir", namedir.getPath());
         // dfs node stores information here
         File datadir = new File(hadoopRoot, "datadir");
-        if(datadir.mkdirs())
-            format = true;
+        datadir.mkdirs();
         nameConf.set("dfs.data.dir", datadir.getPath());
-        nameConf.setInt("dfs.replication",1);
+        MavenModuleSet.DESCRIPTOR.getHdfsSettings().applyTo(nameConf);
         //nameConf.set("fs.hdfs.impl","org.apache.hadoop.hdfs.DistributedFileSystem");
-        if(format) {
+        // keep the existing namespace, it is only formatted when there is none yet;
+        // NameNodeStartTask also formats on request with -Dhadoop.format=true
+        if(!NameNodeStartTask.hasNamespace(namedir)) {
             System.out.println("Formatting HDFS");
             NameNode.format(nameConf);
         }
@@ -270,6 +267,7 @@ public class PluginImpl extends Plugin {
     * Connects to this HDFS.
     * Workaround hdfs bug, there must be passed class with hdfs libs classloaded
     * otherwise hdfs internal classloader cannot find sources!
+    * The underlying client is shared process-wide, see {@link HdfsClients}.
     */
     public HadoopInstance initHdfs(Class c) {
         hadoop = new HadoopInstance(c);
@@ -25,6 +25,7 @@
 package hudson.gridmaven.gridlayer;
 
 import hudson.FilePath;
+import hudson.gridmaven.MavenModuleSet;
 import hudson.model.Computer;
 import hudson.model.TaskListener;
 import hudson.remoting.Callable;
@@ -41,6 +42,7 @@ class SlaveStartTask implements Callable<Void,IOException> {
     private final String hdfsUrl;
     private final String jobTrackerAddress;
     private final String address;
+    private final HdfsSettings settings;
 
     public SlaveStartTask(Computer c, TaskListener listener, String hdfsUrl, String address) throws MalformedURLException {
         this.rootPath = c.getNode().getRootPath();
@@ -48,13 +50,14 @@ class SlaveStartTask implements Callable<Void,IOException> {
         this.hdfsUrl = hdfsUrl;
         this.jobTrackerAddress = PluginImpl.get().getJobTrackerAddress();
         this.address = address;
+        this.settings = MavenModuleSet.DESCRIPTOR.getHdfsSettings();
     }
 
     // Start data node at destination
     public Void call() throws IOException {
         try {
             Channel channel = PluginImpl.createHadoopVM(new File(rootPath.getRemote()), listener);
-            channel.call(new DataNodeStartTask(hdfsUrl, rootPath.getRemote(), address));
+            channel.call(new DataNodeStartTask(hdfsUrl, rootPath.getRemote(), address, settings, listener));
             return null;
         } catch (InterruptedException e) {
             throw new IOException2(e);
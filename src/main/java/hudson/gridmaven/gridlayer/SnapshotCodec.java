@@ -0,0 +1,147 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 berserker.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.gridmaven.gridlayer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression applied to the blobs of the HDFS snapshot store.
+ *
+ * <p>
+ * The codec used for a module is recorded in its {@link SourceManifest}, so the
+ * slave always knows how to decode the blobs it fetches. Blobs of different codecs
+ * are stored under different names and never mix.
+ *
+ * @author Filip Hubik
+ */
+public enum SnapshotCodec {
+    NONE("none", "Uncompressed", "") {
+        @Override
+        public OutputStream encode(OutputStream out) {
+            return out;
+        }
+
+        @Override
+        public InputStream decode(InputStream in) {
+            return in;
+        }
+    },
+    GZIP("gzip", "Gzip", ".gz") {
+        @Override
+        public OutputStream encode(OutputStream out) throws IOException {
+            return new GZIPOutputStream(out, SourceManifest.BUFFER_SIZE);
+        }
+
+        @Override
+        public InputStream decode(InputStream in) throws IOException {
+            return new GZIPInputStream(in, SourceManifest.BUFFER_SIZE);
+        }
+    },
+    /**
+     * Deflate at its fastest level, which trades some ratio for a much cheaper
+     * compression on the master.
+     */
+    FAST("fast", "Fast (deflate, lowest level)", ".df") {
+        @Override
+        public OutputStream encode(OutputStream out) {
+            final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            return new DeflaterOutputStream(out, deflater, SourceManifest.BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream decode(InputStream in) {
+            final Inflater inflater = new Inflater();
+            return new InflaterInputStream(in, inflater, SourceManifest.BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+    };
+
+    private final String id;
+    private final String displayName;
+    private final String extension;
+
+    SnapshotCodec(String id, String displayName, String extension) {
+        this.id = id;
+        this.displayName = displayName;
+        this.extension = extension;
+    }
+
+    /**
+     * Name stored in manifests and in the job configuration.
+     */
+    public String getId() {
+        return id;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    /**
+     * Suffix of the blob names written with this codec.
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    public abstract OutputStream encode(OutputStream out) throws IOException;
+
+    public abstract InputStream decode(InputStream in) throws IOException;
+
+    /**
+     * Looks up a codec by its id, falling back to {@link #NONE} for null or unknown ids.
+     */
+    public static SnapshotCodec fromId(String id) {
+        for (SnapshotCodec c : values()) {
+            if (c.id.equals(id))
+                return c;
+        }
+        return NONE;
+    }
+}
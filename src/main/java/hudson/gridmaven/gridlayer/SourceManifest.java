@@ -0,0 +1,249 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 berserker.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.gridmaven.gridlayer;
+
+import hudson.Util;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Describes the sources of one module as a list of files and their content hashes.
+ *
+ * <p>
+ * The file contents themselves are stored once per hash in the HDFS blob store
+ * (see {@link GridRepositoryLayout#blobPath}), so a manifest is all that
+ * needs to be written for a module build whose files are already known to HDFS.
+ *
+ * <p>
+ * The serialized form is a line oriented text file:
+ * <pre>
+ * C &lt;codec>
+ * D &lt;path>
+ * F &lt;sha1> &lt;size> &lt;path>
+ * </pre>
+ * The codec line tells how the blobs of the manifest are encoded, see {@link SnapshotCodec}.
+ * Paths are relative to the module root, use '/' as separator and are sorted.
+ *
+ * @author Filip Hubik
+ */
+public final class SourceManifest implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * One file or directory of the manifest.
+     */
+    public static final class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final String path;
+        /**
+         * SHA-1 of the content, null for directories.
+         */
+        public final String hash;
+        public final long size;
+
+        public Entry(String path, String hash, long size) {
+            this.path = path;
+            this.hash = hash;
+            this.size = size;
+        }
+
+        public boolean isDirectory() {
+            return hash == null;
+        }
+    }
+
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+    private SnapshotCodec codec = SnapshotCodec.NONE;
+
+    public SnapshotCodec getCodec() {
+        return codec;
+    }
+
+    public void setCodec(SnapshotCodec codec) {
+        this.codec = codec;
+    }
+
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    public void add(Entry e) {
+        entries.put(e.path, e);
+    }
+
+    /**
+     * Scans a module directory and hashes all of its files.
+     *
+     * <p>
+     * Symbolic links to directories are not followed, so that link cycles can't
+     * make the scan run forever. Links to files are recorded with the content of
+     * the file they point to, unless that file lies outside the scanned directory.
+     *
+     * @param root
+     *      Either a directory, whose content is recorded relative to itself,
+     *      or a single file, which is recorded under its own name.
+     */
+    public static SourceManifest scan(File root) throws IOException {
+        SourceManifest m = new SourceManifest();
+        if (root.isDirectory()) {
+            m.scanChildren(root, "", root.getCanonicalPath() + File.separator);
+        } else if (root.isFile()) {
+            m.add(new Entry(root.getName(), hash(root), root.length()));
+        } else {
+            throw new IOException("No such file or directory: " + root);
+        }
+        return m;
+    }
+
+    private void scanChildren(File dir, String base, String canonicalRoot) throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null)
+            return;
+        for (File child : children) {
+            String name = base + child.getName();
+            if (Util.isSymlink(child)) {
+                if (child.isDirectory() || !child.getCanonicalPath().startsWith(canonicalRoot))
+                    continue;
+            }
+            if (child.isDirectory()) {
+                add(new Entry(name, null, 0));
+                scanChildren(child, name + "/", canonicalRoot);
+            } else {
+                add(new Entry(name, hash(child), child.length()));
+            }
+        }
+    }
+
+    /**
+     * Computes a digest identifying the whole content of the manifest.
+     * The codec does not take part in it, as it does not change the sources.
+     */
+    public String digest() {
+        MessageDigest md = newDigest();
+        try {
+            for (Entry e : entries.values()) {
+                md.update(toLine(e).getBytes(UTF8));
+                md.update((byte) '\n');
+            }
+        } catch (UnsupportedEncodingException x) {
+            throw new AssertionError(x);
+        }
+        return Util.toHexString(md.digest());
+    }
+
+    public void write(OutputStream out) throws IOException {
+        Writer w = new BufferedWriter(new OutputStreamWriter(out, UTF8));
+        w.write("C " + codec.getId());
+        w.write('\n');
+        for (Entry e : entries.values()) {
+            w.write(toLine(e));
+            w.write('\n');
+        }
+        w.flush();
+    }
+
+    public static SourceManifest read(InputStream in) throws IOException {
+        SourceManifest m = new SourceManifest();
+        BufferedReader r = new BufferedReader(new InputStreamReader(in, UTF8));
+        String line;
+        while ((line = r.readLine()) != null) {
+            if (line.length() == 0)
+                continue;
+            if (line.startsWith("C ")) {
+                String id = line.substring(2);
+                SnapshotCodec c = SnapshotCodec.fromId(id);
+                if (!c.getId().equals(id))
+                    throw new IOException("Unknown codec " + id);
+                m.setCodec(c);
+            } else if (line.startsWith("D ")) {
+                m.add(new Entry(line.substring(2), null, 0));
+            } else if (line.startsWith("F ")) {
+                String[] t = line.split(" ", 4);
+                if (t.length != 4)
+                    throw new IOException("Malformed manifest line: " + line);
+                m.add(new Entry(t[3], t[1], Long.parseLong(t[2])));
+            } else {
+                throw new IOException("Malformed manifest line: " + line);
+            }
+        }
+        return m;
+    }
+
+    private static String toLine(Entry e) {
+        if (e.isDirectory())
+            return "D " + e.path;
+        return "F " + e.hash + " " + e.size + " " + e.path;
+    }
+
+    /**
+     * Computes the SHA-1 of a file content.
+     */
+    public static String hash(File f) throws IOException {
+        MessageDigest md = newDigest();
+        InputStream in = new FileInputStream(f);
+        try {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buf)) >= 0)
+                md.update(buf, 0, len);
+        } finally {
+            in.close();
+        }
+        return Util.toHexString(md.digest());
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e); // every JVM has SHA-1
+        }
+    }
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String UTF8 = "UTF-8";
+}
@@ -24,6 +24,7 @@
 package hudson.gridmaven.gridlayer;
 
 import hudson.Extension;
+import hudson.gridmaven.MavenModuleSet;
 import hudson.model.Hudson;
 import hudson.model.Computer;
 import hudson.model.listeners.ItemListener;
@@ -66,7 +67,8 @@ public class StartupLoader extends ItemListener {
                 StreamTaskListener listener = new StreamTaskListener(System.out);
                 File root = Hudson.getInstance().getRootDir();
                 p.channel = PluginImpl.createHadoopVM(root, listener);
-                masterNameNode = new NameNodeStartTask(root, hdfsUrl, p.getHdfsAddress().getPort());
+                masterNameNode = new NameNodeStartTask(root, hdfsUrl, p.getHdfsAddress().getPort(),
+                        MavenModuleSet.DESCRIPTOR.getHdfsSettings());
                 p.channel.call(masterNameNode);
   
                 Computer c = Hudson.getInstance().toComputer();
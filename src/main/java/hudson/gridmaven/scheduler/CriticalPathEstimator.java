@@ -0,0 +1,172 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 berserker.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.gridmaven.scheduler;
+
+import hudson.gridmaven.InputFingerprintAction;
+import hudson.gridmaven.MavenBuild;
+import hudson.gridmaven.MavenModule;
+import hudson.gridmaven.MavenModuleSet;
+import hudson.model.AbstractProject;
+import hudson.model.Result;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Estimates how long the module builds of a {@link MavenModuleSet} still take
+ * once a module starts, along the longest chain of its downstream modules.
+ *
+ * <p>
+ * Durations are averaged over the recent module builds that actually ran Maven,
+ * see {@link #estimateDuration}. Modules that have never been built count as the
+ * average of the known ones. The estimates of a project are cached
+ * for {@link #TTL} milliseconds, since looking up build history is not cheap and
+ * the queue is sorted very often.
+ *
+ * @author Filip Hubik
+ */
+public class CriticalPathEstimator {
+
+    private static final class Estimate {
+        final long timestamp;
+        final Map<String, Long> remaining;
+
+        Estimate(long timestamp, Map<String, Long> remaining) {
+            this.timestamp = timestamp;
+            this.remaining = remaining;
+        }
+    }
+
+    private final Map<String, Estimate> cache = new HashMap<String, Estimate>();
+
+    /**
+     * Estimated time from the start of the given module to the end of the
+     * longest chain of downstream modules it starts, in milliseconds.
+     */
+    public long getRemaining(MavenModule module) {
+        MavenModuleSet project = module.getParent();
+        Estimate e;
+        synchronized (cache) {
+            e = cache.get(project.getFullName());
+            long now = System.currentTimeMillis();
+            if (e == null || now - e.timestamp > TTL) {
+                e = new Estimate(now, compute(project));
+                cache.put(project.getFullName(), e);
+            }
+        }
+        Long r = e.remaining.get(module.getName());
+        return r != null ? r : 0;
+    }
+
+    private static Map<String, Long> compute(MavenModuleSet project) {
+        Map<MavenModule, Long> durations = new HashMap<MavenModule, Long>();
+        long known = 0;
+        int count = 0;
+        for (MavenModule m : project.getDisabledModules(false)) {
+            long d = estimateDuration(m.getBuilds());
+            durations.put(m, d);
+            if (d >= 0) {
+                known += d;
+                count++;
+            }
+        }
+        long fallback = count > 0 ? known / count : 1;
+
+        Map<MavenModule, Long> remaining = new HashMap<MavenModule, Long>();
+        Set<MavenModule> visiting = new HashSet<MavenModule>();
+        Map<String, Long> r = new HashMap<String, Long>();
+        for (MavenModule m : durations.keySet())
+            r.put(m.getName(), remaining(m, project, durations, fallback, remaining, visiting));
+        return r;
+    }
+
+    /**
+     * Memoized depth-first walk, so every module and dependency is visited once.
+     */
+    private static long remaining(MavenModule m, MavenModuleSet project, Map<MavenModule, Long> durations,
+            long fallback, Map<MavenModule, Long> remaining, Set<MavenModule> visiting) {
+        Long r = remaining.get(m);
+        if (r != null)
+            return r;
+        if (!visiting.add(m))
+            return 0; // dependency cycle, don't count it twice
+
+        long longest = 0;
+        for (AbstractProject<?, ?> p : m.getDownstreamProjects()) {
+            if (p instanceof MavenModule && durations.containsKey(p) && ((MavenModule) p).getParent() == project)
+                longest = Math.max(longest, remaining((MavenModule) p, project, durations, fallback, remaining, visiting));
+        }
+        visiting.remove(m);
+
+        long d = durations.get(m);
+        long total = (d >= 0 ? d : fallback) + longest;
+        remaining.put(m, total);
+        return total;
+    }
+
+    /**
+     * Average duration of the last {@link #SAMPLES} completed builds, or -1 if there are none.
+     * Builds skipped as up to date are left out, unlike in
+     * {@link AbstractProject#getEstimatedDuration()}: they take seconds and would make
+     * a module look cheap right before its inputs change.
+     *
+     * @param builds
+     *      Builds of a module, newest first.
+     */
+    static long estimateDuration(Iterable<MavenBuild> builds) {
+        long total = 0;
+        int count = 0;
+        int seen = 0;
+        for (MavenBuild b : builds) {
+            if (count == SAMPLES || ++seen > LOOKBACK)
+                break;
+            Result r = b.getResult();
+            if (b.isBuilding() || r == null || r.isWorseThan(Result.UNSTABLE))
+                continue;
+            InputFingerprintAction a = b.getAction(InputFingerprintAction.class);
+            if (a != null && a.isUpToDate())
+                continue;
+            total += b.getDuration();
+            count++;
+        }
+        return count > 0 ? total / count : -1;
+    }
+
+    /**
+     * Number of builds a duration estimate is averaged over.
+     */
+    private static final int SAMPLES = 3;
+
+    /**
+     * Number of builds looked at for {@link #SAMPLES}, so that long runs of
+     * up-to-date builds don't load the whole history.
+     */
+    private static final int LOOKBACK = 20;
+
+    /**
+     * How long the estimates of a project are reused, in milliseconds.
+     */
+    public static long TTL = Long.getLong(CriticalPathEstimator.class.getName() + ".ttl", 60 * 1000);
+}
@@ -0,0 +1,251 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 berserker.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.gridmaven.scheduler;
+
+import hudson.gridmaven.InputFingerprintAction;
+import hudson.gridmaven.MavenBuild;
+import hudson.gridmaven.MavenModule;
+import hudson.gridmaven.gridlayer.GridArtifactRepository;
+import hudson.gridmaven.gridlayer.HadoopInstance;
+import hudson.gridmaven.gridlayer.HdfsClients;
+import hudson.gridmaven.gridlayer.PluginImpl;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.util.DaemonThreadFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Knows which nodes hold the data a module build needs.
+ *
+ * <p>
+ * A module prefers the node it was last built on, whose workspace is already
+ * synchronized with the sources, and the DataNodes holding most of the HDFS blocks
+ * of its upstream artifacts.
+ *
+ * <p>
+ * Finding the blocks takes NameNode and slave calls, which must not be made
+ * under the queue lock. The preference of a module is therefore computed in the
+ * background when the module is queued, see {@link #refresh}, and the queue only
+ * reads it. It is recomputed when it gets older than {@link #TTL} milliseconds.
+ *
+ * @author Filip Hubik
+ */
+public class DataLocality {
+
+    private static final class Preference {
+        final long timestamp;
+        final Set<String> nodeNames;
+
+        Preference(long timestamp, Set<String> nodeNames) {
+            this.timestamp = timestamp;
+            this.nodeNames = nodeNames;
+        }
+    }
+
+    private static final DataLocality INSTANCE = new DataLocality();
+
+    public static DataLocality get() {
+        return INSTANCE;
+    }
+
+    private final Map<String, Preference> cache = new HashMap<String, Preference>();
+
+    /**
+     * Modules whose preference is being computed. Guarded by {@link #cache}.
+     */
+    private final Set<String> pending = new HashSet<String>();
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new DaemonThreadFactory());
+
+    private DataLocality() {}
+
+    /**
+     * Nodes the given module should preferably be built on. May be empty.
+     * Never blocks; a missing or outdated preference is computed in the background.
+     */
+    public List<Node> getPreferredNodes(MavenModule module) {
+        Preference p;
+        synchronized (cache) {
+            p = cache.get(module.getFullName());
+        }
+        if (p == null || System.currentTimeMillis() - p.timestamp > TTL)
+            refresh(module);
+        if (p == null)
+            return new ArrayList<Node>();
+
+        Jenkins j = Jenkins.getInstance();
+        List<Node> nodes = new ArrayList<Node>();
+        for (String name : p.nodeNames) {
+            Node n = name.length() == 0 ? j : j.getNode(name);
+            if (n != null)
+                nodes.add(n);
+        }
+        return nodes;
+    }
+
+    /**
+     * Computes the preferred nodes of the module in the background,
+     * unless that is already in progress.
+     */
+    public void refresh(final MavenModule module) {
+        final String name = module.getFullName();
+        synchronized (cache) {
+            if (!pending.add(name))
+                return;
+        }
+        executor.submit(new Runnable() {
+            public void run() {
+                try {
+                    Preference p = new Preference(System.currentTimeMillis(), computeNodeNames(module));
+                    synchronized (cache) {
+                        cache.put(name, p);
+                    }
+                    prune();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Cannot compute the preferred nodes of " + name, e);
+                } finally {
+                    synchronized (cache) {
+                        pending.remove(name);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Forgets the preferences of modules that were deleted or renamed.
+     */
+    private void prune() {
+        Jenkins j = Jenkins.getInstance();
+        synchronized (cache) {
+            for (Iterator<String> it = cache.keySet().iterator(); it.hasNext();) {
+                if (j.getItemByFullName(it.next(), MavenModule.class) == null)
+                    it.remove();
+            }
+        }
+    }
+
+    private Set<String> computeNodeNames(MavenModule module) {
+        Set<String> names = new HashSet<String>();
+        Node last = module.getLastBuiltOn();
+        if (last != null)
+            names.add(last.getNodeName());
+
+        Set<String> hosts = upstreamBlockHosts(module);
+        if (hosts.isEmpty())
+            return names;
+
+        Jenkins j = Jenkins.getInstance();
+        List<Node> all = new ArrayList<Node>(j.getNodes());
+        all.add(j);
+        for (Node n : all) {
+            Computer c = n.toComputer();
+            if (c == null || c.isOffline())
+                continue;
+            try {
+                String host = c.getHostName();
+                if (host != null && hosts.contains(host))
+                    names.add(n.getNodeName());
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Cannot determine host name of " + n.getNodeName(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Hosts holding most bytes of the artifacts of the upstream modules.
+     */
+    private Set<String> upstreamBlockHosts(MavenModule module) {
+        Map<String, Long> bytes = new HashMap<String, Long>();
+        HadoopInstance hadoop = PluginImpl.get().getHdfs(getClass());
+        FileSystem fs = hadoop.getFs();
+        if (fs == null)
+            return new HashSet<String>();
+        try {
+            for (AbstractProject<?, ?> p : module.getUpstreamProjects()) {
+                if (!(p instanceof MavenModule))
+                    continue;
+                MavenModule u = (MavenModule) p;
+                try {
+                    MavenBuild last = u.getLastSuccessfulBuild();
+                    Path dir = GridArtifactRepository.resolve(fs, u.getModuleName().groupId,
+                            u.getModuleName().artifactId, u.getVersion(),
+                            last != null ? InputFingerprintAction.artifactsBuildId(last) : null);
+                    if (dir == null)
+                        continue;
+                    for (Map.Entry<String, Long> e : hadoop.getBlockHosts(dir.toString()).entrySet()) {
+                        Long b = bytes.get(e.getKey());
+                        bytes.put(e.getKey(), (b != null ? b : 0) + e.getValue());
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Cannot locate blocks of " + u.getFullName(), e);
+                }
+            }
+        } finally {
+            HdfsClients.release(fs);
+        }
+        return busiestHosts(bytes);
+    }
+
+    /**
+     * Hosts holding the most bytes, several on a tie. Empty if no host holds any.
+     */
+    static Set<String> busiestHosts(Map<String, Long> bytes) {
+        long max = 0;
+        for (long b : bytes.values())
+            max = Math.max(max, b);
+        Set<String> hosts = new HashSet<String>();
+        for (Map.Entry<String, Long> e : bytes.entrySet()) {
+            if (max > 0 && e.getValue() == max)
+                hosts.add(e.getKey());
+        }
+        return hosts;
+    }
+
+    /**
+     * How long the preferred nodes of a module are reused, in milliseconds.
+     */
+    public static long TTL = Long.getLong(DataLocality.class.getName() + ".ttl", 30 * 1000);
+
+    private static final Logger LOGGER = Logger.getLogger(DataLocality.class.getName());
+}
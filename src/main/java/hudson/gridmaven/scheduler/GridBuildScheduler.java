@@ -0,0 +1,289 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 berserker.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.gridmaven.scheduler;
+
+import hudson.console.ModelHyperlinkNote;
+import hudson.gridmaven.MavenBuild;
+import hudson.gridmaven.MavenModule;
+import hudson.gridmaven.MavenModuleSet;
+import hudson.gridmaven.MavenModuleSetBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Cause.UpstreamCause;
+import hudson.model.Label;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Drives the module builds of a {@link MavenModuleSetBuild} through the grid.
+ *
+ * <p>
+ * Modules are grouped into waves by their {@link MavenModule#depLevel}, but a
+ * module does not wait for its whole wave: it is queued as soon as all of its
+ * upstream modules in the same {@link MavenModuleSet} have been built successfully
+ * for the same module set build. Independent modules therefore run concurrently
+ * on every grid labelled executor.
+ *
+ * <p>
+ * The progress of a module set build is kept in memory. After a restart it is
+ * rebuilt from the {@link GridScheduleAction}s of the module builds and of the
+ * queue once a module build of the latest module set build finishes. Module builds
+ * triggered by hand, or belonging to an older module set build, do not schedule
+ * anything.
+ *
+ * @author Filip Hubik
+ */
+public final class GridBuildScheduler {
+
+    /**
+     * Progress of the latest module set build, keyed by the full name of its {@link MavenModuleSet}.
+     */
+    private static final Map<String, Schedule> schedules = new HashMap<String, Schedule>();
+
+    private static final class Schedule {
+        final int setBuildNumber;
+        /**
+         * Names of the modules queued for this module set build.
+         */
+        final Set<String> scheduled = new HashSet<String>();
+        /**
+         * Names of the modules built successfully for this module set build.
+         */
+        final Set<String> completed = new HashSet<String>();
+
+        Schedule(int setBuildNumber) {
+            this.setBuildNumber = setBuildNumber;
+        }
+    }
+
+    private GridBuildScheduler() {}
+
+    /**
+     * Starts building the modules of a finished module set build.
+     * Queues every module that has no upstream module in the same project.
+     */
+    public static void start(MavenModuleSetBuild build, TaskListener listener) throws IOException {
+        PrintStream logger = listener.getLogger();
+        MavenModuleSet project = build.getProject();
+        Label label = Jenkins.getInstance().getLabelAtom(project.getGridLabel());
+
+        Schedule schedule = new Schedule(build.getNumber());
+        synchronized (schedules) {
+            schedules.put(project.getFullName(), schedule);
+        }
+
+        Map<Integer, List<MavenModule>> waves = new TreeMap<Integer, List<MavenModule>>();
+        List<MavenModule> ready = new ArrayList<MavenModule>();
+        for (MavenModule m : project.getDisabledModules(false)) {
+            prepare(m, label);
+            List<MavenModule> wave = waves.get(m.depLevel);
+            if (wave == null) {
+                wave = new ArrayList<MavenModule>();
+                waves.put(m.depLevel, wave);
+            }
+            wave.add(m);
+            if (upstreamModules(m).isEmpty())
+                ready.add(m);
+        }
+
+        for (Map.Entry<Integer, List<MavenModule>> e : waves.entrySet()) {
+            StringBuilder names = new StringBuilder();
+            for (MavenModule m : e.getValue()) {
+                if (names.length() > 0)
+                    names.append(", ");
+                names.append(m.getDisplayName());
+            }
+            logger.println("Wave " + e.getKey() + " (" + e.getValue().size() + " modules): " + names);
+        }
+
+        synchronized (schedule) {
+            for (MavenModule m : ready)
+                schedule.scheduled.add(m.getName());
+        }
+        for (MavenModule m : ready)
+            schedule(m, build, schedule, logger);
+    }
+
+    /**
+     * Called when a module build finishes. Queues the downstream modules
+     * whose upstream modules are now all built.
+     */
+    public static void onCompleted(MavenBuild build, TaskListener listener) {
+        GridScheduleAction action = build.getAction(GridScheduleAction.class);
+        if (action == null)
+            return; // not started by the scheduler
+
+        MavenModule module = build.getProject();
+        MavenModuleSet project = module.getParent();
+        Schedule schedule;
+        synchronized (schedules) {
+            schedule = schedules.get(project.getFullName());
+            if (schedule == null) {
+                // Jenkins restarted since the module set build started
+                schedule = restore(project, action.getSetBuildNumber());
+                if (schedule != null)
+                    schedules.put(project.getFullName(), schedule);
+            }
+        }
+        if (schedule == null || schedule.setBuildNumber != action.getSetBuildNumber())
+            return; // superseded by a newer module set build
+
+        PrintStream logger = listener.getLogger();
+        Result result = build.getResult();
+        if (result == null || result.isWorseThan(Result.UNSTABLE)) {
+            logger.println("Module failed, its downstream modules will not be built");
+            return;
+        }
+
+        Map<String, MavenModule> downstream = new LinkedHashMap<String, MavenModule>();
+        Map<String, List<String>> upstreams = new LinkedHashMap<String, List<String>>();
+        for (AbstractProject<?, ?> p : module.getDownstreamProjects()) {
+            if (!(p instanceof MavenModule) || p.isDisabled())
+                continue;
+            MavenModule d = (MavenModule) p;
+            if (d.getParent() != project)
+                continue;
+            List<String> names = new ArrayList<String>();
+            for (MavenModule u : upstreamModules(d))
+                names.add(u.getName());
+            downstream.put(d.getName(), d);
+            upstreams.put(d.getName(), names);
+        }
+
+        List<String> ready;
+        synchronized (schedule) {
+            schedule.completed.add(module.getName());
+            ready = claimReady(upstreams, schedule.scheduled, schedule.completed);
+        }
+        for (String d : ready)
+            schedule(downstream.get(d), build, schedule, logger);
+    }
+
+    /**
+     * Picks the candidate modules whose upstream modules have all completed
+     * and that are not scheduled yet, and marks them scheduled.
+     *
+     * @param upstreams
+     *      Names of the upstream modules, keyed by the name of each candidate module.
+     * @return
+     *      Names of the modules to queue now, in the order of the candidates.
+     */
+    static List<String> claimReady(Map<String, List<String>> upstreams, Set<String> scheduled, Set<String> completed) {
+        List<String> ready = new ArrayList<String>();
+        for (Map.Entry<String, List<String>> e : upstreams.entrySet()) {
+            if (!scheduled.contains(e.getKey()) && completed.containsAll(e.getValue())) {
+                scheduled.add(e.getKey());
+                ready.add(e.getKey());
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Rebuilds the progress of a module set build from the module builds and queue items
+     * it scheduled, or returns null if it is not the latest module set build.
+     */
+    private static Schedule restore(MavenModuleSet project, int setBuildNumber) {
+        MavenModuleSetBuild setBuild = project.getLastBuild();
+        if (setBuild == null || setBuild.getNumber() != setBuildNumber)
+            return null;
+
+        Schedule schedule = new Schedule(setBuildNumber);
+        Queue queue = Jenkins.getInstance().getQueue();
+        for (MavenModule m : project.getModules()) {
+            Queue.Item item = queue.getItem(m);
+            if (item != null && isScheduledBy(item.getAction(GridScheduleAction.class), setBuildNumber))
+                schedule.scheduled.add(m.getName());
+            for (MavenBuild b : m.getBuilds()) {
+                if (b.getTimeInMillis() < setBuild.getTimeInMillis())
+                    break; // older builds, newest come first
+                if (!isScheduledBy(b.getAction(GridScheduleAction.class), setBuildNumber))
+                    continue;
+                schedule.scheduled.add(m.getName());
+                Result result = b.getResult();
+                if (!b.isBuilding() && result != null && result.isBetterOrEqualTo(Result.UNSTABLE))
+                    schedule.completed.add(m.getName());
+            }
+        }
+        LOGGER.log(Level.FINE, "Restored the schedule of {0} #{1}: {2} scheduled, {3} completed",
+                new Object[] {project.getFullName(), setBuildNumber, schedule.scheduled.size(), schedule.completed.size()});
+        return schedule;
+    }
+
+    private static boolean isScheduledBy(GridScheduleAction action, int setBuildNumber) {
+        return action != null && action.getSetBuildNumber() == setBuildNumber;
+    }
+
+    /**
+     * Active upstream modules of the given module in its own {@link MavenModuleSet}.
+     */
+    private static List<MavenModule> upstreamModules(MavenModule m) {
+        List<MavenModule> r = new ArrayList<MavenModule>();
+        for (AbstractProject<?, ?> p : m.getUpstreamProjects()) {
+            if (p instanceof MavenModule && !p.isDisabled() && ((MavenModule) p).getParent() == m.getParent())
+                r.add((MavenModule) p);
+        }
+        return r;
+    }
+
+    /**
+     * Pins the module to the grid nodes. Only saves the module when something changes.
+     */
+    private static void prepare(MavenModule m, Label label) throws IOException {
+        if (label != null && !label.equals(m.getAssignedLabel()))
+            m.setAssignedLabel(label);
+        // upstream ordering is enforced by the scheduler itself
+        if (m.blockBuildWhenUpstreamBuilding())
+            m.setBlockBuildWhenUpstreamBuilding(false);
+    }
+
+    private static void schedule(MavenModule m, Run<?, ?> cause, Schedule schedule, PrintStream logger) {
+        String name = ModelHyperlinkNote.encodeTo(m) + " #" + m.getNextBuildNumber();
+        // the upstream artifacts are published by now, find where their blocks are
+        DataLocality.get().refresh(m);
+        if (m.scheduleBuild2(m.getQuietPeriod(), new UpstreamCause(cause),
+                new GridScheduleAction(schedule.setBuildNumber)) != null) {
+            logger.println(hudson.tasks.Messages.BuildTrigger_Triggering(name));
+        } else {
+            LOGGER.log(Level.FINE, "{0} was not queued", m.getFullName());
+            logger.println(hudson.tasks.Messages.BuildTrigger_InQueue(name));
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(GridBuildScheduler.class.getName());
+}
@@ -0,0 +1,95 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 berserker.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.gridmaven.scheduler;
+
+import hudson.Extension;
+import hudson.gridmaven.MavenModule;
+import hudson.model.Queue.BuildableItem;
+import hudson.model.queue.QueueSorter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Orders queued grid module builds by their remaining critical path, so that
+ * modules heading a long chain of downstream modules get executors first.
+ *
+ * <p>
+ * Only the positions taken by {@link MavenModule} items are reordered among
+ * themselves, every other item keeps its place in the queue.
+ *
+ * <p>
+ * Jenkins uses a single {@link QueueSorter}, the first registered one, and only logs
+ * a warning about the others. This sorter and the one of another plugin, e.g. a priority
+ * sorter, therefore exclude each other; don't combine such plugins with grid builds.
+ *
+ * @author Filip Hubik
+ */
+@Extension
+public class GridQueueSorter extends QueueSorter {
+
+    private final CriticalPathEstimator estimator = new CriticalPathEstimator();
+
+    @Override
+    public void sortBuildableItems(List<BuildableItem> buildables) {
+        Map<BuildableItem, Long> remaining = new IdentityHashMap<BuildableItem, Long>();
+        for (BuildableItem b : buildables) {
+            if (b.task instanceof MavenModule)
+                remaining.put(b, estimator.getRemaining((MavenModule) b.task));
+        }
+        sort(buildables, remaining);
+    }
+
+    /**
+     * Orders the items with an estimate by decreasing estimate, within the positions
+     * they take. The estimates are taken up front, so the order stays consistent while
+     * they are being recomputed.
+     */
+    static <T> void sort(List<T> items, final Map<T, Long> remaining) {
+        List<Integer> slots = new ArrayList<Integer>();
+        List<T> sorted = new ArrayList<T>();
+        for (int i = 0; i < items.size(); i++) {
+            if (remaining.containsKey(items.get(i))) {
+                slots.add(i);
+                sorted.add(items.get(i));
+            }
+        }
+        if (sorted.size() < 2)
+            return;
+
+        // Collections.sort is stable, equally long paths stay in queue order
+        Collections.sort(sorted, new Comparator<T>() {
+            public int compare(T lhs, T rhs) {
+                long l = remaining.get(lhs);
+                long r = remaining.get(rhs);
+                return l > r ? -1 : l < r ? 1 : 0;
+            }
+        });
+        for (int i = 0; i < slots.size(); i++)
+            items.set(slots.get(i), sorted.get(i));
+    }
+}
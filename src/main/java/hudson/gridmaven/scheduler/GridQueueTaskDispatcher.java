@@ -29,6 +29,7 @@ import hudson.gridmaven.MavenModule;
 import hudson.gridmaven.MavenModuleSet;
 import hudson.gridmaven.MavenModuleSet.DescriptorImpl;
 import hudson.model.AbstractProject;
+import hudson.model.Computer;
 import hudson.model.Label;
 import hudson.model.Node;
 import hudson.model.Queue;
@@ -36,6 +37,7 @@ import hudson.model.Queue.BuildableItem;
 import hudson.model.queue.QueueTaskDispatcher;
 import hudson.model.queue.CauseOfBlockage;
 import hudson.tasks.Maven;
+import java.util.List;
 import jenkins.model.Jenkins;
 
 /**
@@ -64,6 +66,8 @@ public class GridQueueTaskDispatcher extends QueueTaskDispatcher {
         if (t instanceof hudson.gridmaven.MavenModuleSet || t instanceof hudson.gridmaven.MavenModule){
             if (t instanceof hudson.gridmaven.MavenModuleSet && !(node instanceof Jenkins))
                 return new BecauseOfGridMaven();
+            if (t instanceof MavenModule)
+                return checkLocality(node, item, (MavenModule) t);
     //                else if (item.task instanceof MavenModule && l.getName() == ((MavenModuleSet.DescriptorImpl)descriptor).getGridJobsLabel()) {
     //                    return null;
     //                }
@@ -80,6 +84,42 @@ public class GridQueueTaskDispatcher extends QueueTaskDispatcher {
     //               return new BecauseOfSmartJenkinsSchedule(); 
     }
 
+    /**
+     * Keeps a module build away from nodes that do not hold its data for a
+     * short while, as long as a node holding the data could take it.
+     */
+    private CauseOfBlockage checkLocality(Node node, BuildableItem item, MavenModule module) {
+        if (System.currentTimeMillis() - item.getInQueueSince() > LOCALITY_WAIT)
+            return null;
+
+        List<Node> preferred = DataLocality.get().getPreferredNodes(module);
+        if (preferred.isEmpty() || preferred.contains(node))
+            return null;
+
+        Label l = item.getAssignedLabel();
+        for (Node n : preferred) {
+            Computer c = n.toComputer();
+            if (c != null && c.isOnline() && c.isAcceptingTasks() && c.countIdle() > 0
+                    && (l == null || l.contains(n)))
+                return new BecauseOfDataLocality();
+        }
+        return null;
+    }
+
+    /**
+     * How long a module build waits for a node holding its data, in milliseconds.
+     */
+    public static long LOCALITY_WAIT = Long.getLong(GridQueueTaskDispatcher.class.getName() + ".localityWait", 10 * 1000);
+
+    private static class BecauseOfDataLocality extends CauseOfBlockage {
+
+            @Override
+            public String getShortDescription() {
+                    return "Waiting for a grid node holding the module data";
+            }
+
+    }
+
     private static class BecauseOfGridMaven extends CauseOfBlockage {
 
             @Override
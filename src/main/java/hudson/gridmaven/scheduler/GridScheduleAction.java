@@ -0,0 +1,63 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2013 berserker.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.gridmaven.scheduler;
+
+import hudson.model.Action;
+import hudson.model.FoldableAction;
+import hudson.model.InvisibleAction;
+import hudson.model.Queue;
+import java.util.List;
+
+/**
+ * Marks a module build queued by {@link GridBuildScheduler} with the
+ * number of the module set build it belongs to.
+ *
+ * <p>
+ * When the module is already in the queue, the queued item takes over the
+ * mark of the newest module set build, so its completion still drives the schedule.
+ *
+ * @author Filip Hubik
+ */
+public class GridScheduleAction extends InvisibleAction implements FoldableAction {
+
+    private final int setBuildNumber;
+
+    public GridScheduleAction(int setBuildNumber) {
+        this.setBuildNumber = setBuildNumber;
+    }
+
+    public int getSetBuildNumber() {
+        return setBuildNumber;
+    }
+
+    public void foldIntoExisting(Queue.Item item, Queue.Task owner, List<Action> otherActions) {
+        GridScheduleAction existing = item.getAction(GridScheduleAction.class);
+        if (existing != null) {
+            if (existing.setBuildNumber >= setBuildNumber)
+                return;
+            item.getActions().remove(existing);
+        }
+        item.getActions().add(this);
+    }
+}
@@ -0,0 +1,215 @@
+package hudson.gridmaven;
+
+import static org.mockito.Mockito.when;
+import hudson.Util;
+import hudson.gridmaven.gridlayer.ArtifactIndex;
+import hudson.gridmaven.gridlayer.GridArtifactRepository;
+import hudson.gridmaven.gridlayer.GridRepositoryLayout;
+import hudson.gridmaven.gridlayer.RootedLocalFileSystem;
+import hudson.gridmaven.gridlayer.SourceManifest;
+import hudson.model.AbstractProject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.google.common.collect.Lists;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest( { MavenModuleSet.class, MavenModule.class, MavenBuild.class, AbstractProject.class })
+public class InputFingerprintActionTest {
+
+    private static final int SET_BUILD = 3;
+
+    private File tmp;
+    private RootedLocalFileSystem fs;
+    private MavenModuleSet job;
+    private MavenModule module;
+
+    @Before
+    public void before() throws IOException {
+        tmp = Util.createTempDir();
+        fs = new RootedLocalFileSystem(new File(tmp, "hdfs"));
+
+        job = PowerMockito.mock(MavenModuleSet.class);
+        when(job.getName()).thenReturn("job");
+        module = module("app");
+        when(job.getRootModule()).thenReturn(module);
+        upstream();
+
+        writeManifest("pom.xml", "aa11");
+    }
+
+    @After
+    public void after() throws IOException {
+        Util.deleteRecursive(tmp);
+    }
+
+    @Test
+    public void testStable() throws IOException {
+        String fp = compute();
+        Assert.assertNotNull(fp);
+        Assert.assertEquals(fp, compute());
+    }
+
+    @Test
+    public void testGoalsAndOpts() throws IOException {
+        String fp = compute();
+        Assert.assertFalse(fp.equals(InputFingerprintAction.compute(fs, module, SET_BUILD, "clean verify", "-Xmx512m")));
+        Assert.assertFalse(fp.equals(InputFingerprintAction.compute(fs, module, SET_BUILD, "clean install", "-Xmx1g")));
+    }
+
+    @Test
+    public void testSources() throws IOException {
+        String fp = compute();
+        writeManifest("pom.xml", "bb22");
+        Assert.assertFalse(fp.equals(compute()));
+    }
+
+    @Test
+    public void testUpstreamArtifacts() throws IOException {
+        MavenModule lib = module("lib");
+        publish(lib, 1, "cc33");
+        upstream(lib);
+        String fp = compute();
+        Assert.assertNotNull(fp);
+
+        // a rebuild of the upstream module that produced the same artifacts
+        publish(lib, 2, "cc33");
+        Assert.assertEquals(fp, compute());
+
+        publish(lib, 3, "dd44");
+        Assert.assertFalse(fp.equals(compute()));
+    }
+
+    @Test
+    public void testUpstreamOrder() throws IOException {
+        MavenModule lib = module("lib");
+        MavenModule util = module("util");
+        publish(lib, 1, "cc33");
+        publish(util, 1, "dd44");
+        upstream(lib, util);
+        String fp = compute();
+        upstream(util, lib);
+        Assert.assertEquals(fp, compute());
+    }
+
+    @Test
+    public void testUnpublishedUpstream() throws IOException {
+        upstream(module("lib"));
+        Assert.assertNull(compute());
+    }
+
+    @Test
+    public void testMissingManifest() throws IOException {
+        fs.toFile(manifestPath()).delete();
+        Assert.assertNull(compute());
+    }
+
+    @Test
+    public void testManifestOfSetBuild() throws IOException {
+        String fp = compute();
+        // a newer module set build took a snapshot of other sources
+        writeManifest(SET_BUILD + 1, "pom.xml", "bb22");
+        Assert.assertEquals(fp, compute());
+        // module builds started on their own take the newest snapshot
+        Assert.assertEquals(compute(SET_BUILD + 1), compute(0));
+        Assert.assertFalse(fp.equals(compute(0)));
+        Assert.assertNull(compute(SET_BUILD - 1));
+    }
+
+    @Test
+    public void testUnreadableManifest() throws IOException {
+        File f = fs.toFile(manifestPath());
+        f.delete();
+        f.mkdirs();
+        Assert.assertNull(compute());
+    }
+
+    private String compute() {
+        return compute(SET_BUILD);
+    }
+
+    private String compute(int setBuildNumber) {
+        return InputFingerprintAction.compute(fs, module, setBuildNumber, "clean install", "-Xmx512m");
+    }
+
+    private MavenModule module(String artifactId) {
+        MavenModule m = PowerMockito.mock(MavenModule.class);
+        when(m.getParent()).thenReturn(job);
+        when(m.getModuleName()).thenReturn(new ModuleName("org.acme", artifactId));
+        when(m.getVersion()).thenReturn("1.0");
+        return m;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void upstream(MavenModule... modules) {
+        List<AbstractProject> upstream = Lists.<AbstractProject>newArrayList(modules);
+        when(module.getUpstreamProjects()).thenReturn(upstream);
+    }
+
+    private String manifestPath() {
+        return manifestPath(SET_BUILD);
+    }
+
+    private String manifestPath(int setBuildNumber) {
+        return GridRepositoryLayout.manifestPath("job", "org.acme.app-1.0", "app", "1.0", setBuildNumber);
+    }
+
+    private void writeManifest(String path, String hash) throws IOException {
+        writeManifest(SET_BUILD, path, hash);
+    }
+
+    private void writeManifest(int setBuildNumber, String path, String hash) throws IOException {
+        SourceManifest m = new SourceManifest();
+        m.add(new SourceManifest.Entry(path, hash, 4));
+        File f = fs.toFile(manifestPath(setBuildNumber));
+        f.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(f);
+        try {
+            m.write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Publishes a build of an upstream module whose main artifact has the given checksum,
+     * and makes it the last successful one.
+     */
+    private void publish(MavenModule m, int number, String sha1) throws IOException {
+        ArtifactIndex index = new ArtifactIndex();
+        File jar = new File(tmp, "artifact.jar");
+        FileUtils.writeStringToFile(jar, sha1);
+        index.add(jar, "artifact.jar", "jar", null, "jar");
+        File indexFile = new File(tmp, ArtifactIndex.FILE_NAME);
+        OutputStream out = new FileOutputStream(indexFile);
+        try {
+            index.write(out);
+        } finally {
+            out.close();
+        }
+        GridArtifactRepository.publish(fs, "org.acme", m.getModuleName().artifactId, "1.0",
+                GridRepositoryLayout.buildId("job", number),
+                Collections.singletonMap(ArtifactIndex.FILE_NAME, indexFile));
+
+        MavenBuild b = PowerMockito.mock(MavenBuild.class);
+        when(b.getParent()).thenReturn(m);
+        when(b.getNumber()).thenReturn(number);
+        when(m.getLastSuccessfulBuild()).thenReturn(b);
+    }
+}
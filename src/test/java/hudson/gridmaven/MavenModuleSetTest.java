@@ -0,0 +1,103 @@
+package hudson.gridmaven;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import hudson.model.AbstractProject;
+import hudson.model.DependencyGraph;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Unit test for the dependency level computation of {@link MavenModuleSet}.
+ */
+public class MavenModuleSetTest {
+
+    @Test
+    @SuppressWarnings("rawtypes")
+    public void testDepLevelsOfDiamond() {
+        MavenModule root = mock(MavenModule.class);
+        MavenModule left = mock(MavenModule.class);
+        MavenModule right = mock(MavenModule.class);
+        MavenModule bottom = mock(MavenModule.class);
+
+        DependencyGraph graph = mock(DependencyGraph.class);
+        when(graph.getUpstream(root)).thenReturn(Collections.<AbstractProject>emptyList());
+        when(graph.getUpstream(left)).thenReturn(Lists.<AbstractProject>newArrayList(root));
+        when(graph.getUpstream(right)).thenReturn(Lists.<AbstractProject>newArrayList(root));
+        when(graph.getUpstream(bottom)).thenReturn(Lists.<AbstractProject>newArrayList(left, right, root));
+
+        List<MavenModule> modules = Lists.newArrayList(bottom, right, left, root);
+        Map<MavenModule, Integer> levels = MavenModuleSet.computeDepLevels(modules, graph);
+
+        Assert.assertEquals(0, levels.get(root).intValue());
+        Assert.assertEquals(1, levels.get(left).intValue());
+        Assert.assertEquals(1, levels.get(right).intValue());
+        Assert.assertEquals(2, levels.get(bottom).intValue());
+    }
+
+    @Test
+    @SuppressWarnings("rawtypes")
+    public void testUpstreamModuleOfAnotherProject() {
+        MavenModule external = mock(MavenModule.class);
+        external.depLevel = 3;
+        MavenModule module = mock(MavenModule.class);
+
+        DependencyGraph graph = mock(DependencyGraph.class);
+        when(graph.getUpstream(module)).thenReturn(Lists.<AbstractProject>newArrayList(external));
+
+        Map<MavenModule, Integer> levels = MavenModuleSet.computeDepLevels(
+                Collections.singletonList(module), graph);
+
+        Assert.assertEquals(4, levels.get(module).intValue());
+    }
+
+    @Test
+    @SuppressWarnings("rawtypes")
+    public void testDepLevelsOfCycle() {
+        MavenModule root = mock(MavenModule.class);
+        MavenModule a = mock(MavenModule.class);
+        MavenModule b = mock(MavenModule.class);
+        MavenModule below = mock(MavenModule.class);
+
+        DependencyGraph graph = mock(DependencyGraph.class);
+        when(graph.getUpstream(root)).thenReturn(Collections.<AbstractProject>emptyList());
+        when(graph.getUpstream(a)).thenReturn(Lists.<AbstractProject>newArrayList(root, b));
+        when(graph.getUpstream(b)).thenReturn(Lists.<AbstractProject>newArrayList(root, a));
+        when(graph.getUpstream(below)).thenReturn(Lists.<AbstractProject>newArrayList(a));
+
+        List<MavenModule> modules = Lists.newArrayList(below, b, a, root);
+        Map<MavenModule, Integer> levels = MavenModuleSet.computeDepLevels(modules, graph);
+
+        Assert.assertEquals(4, levels.size());
+        Assert.assertEquals(0, levels.get(root).intValue());
+        // the cycle is broken at one of its modules, none is taken for a root
+        Assert.assertTrue(levels.get(a) > 0);
+        Assert.assertTrue(levels.get(b) > 0);
+        Assert.assertFalse(levels.get(a).equals(levels.get(b)));
+        Assert.assertTrue(levels.get(below) > levels.get(a));
+    }
+
+    @Test
+    @SuppressWarnings("rawtypes")
+    public void testDepLevelsOfCycleWithoutRoot() {
+        MavenModule a = mock(MavenModule.class);
+        MavenModule b = mock(MavenModule.class);
+
+        DependencyGraph graph = mock(DependencyGraph.class);
+        when(graph.getUpstream(a)).thenReturn(Lists.<AbstractProject>newArrayList(b));
+        when(graph.getUpstream(b)).thenReturn(Lists.<AbstractProject>newArrayList(a));
+
+        Map<MavenModule, Integer> levels = MavenModuleSet.computeDepLevels(Lists.newArrayList(a, b), graph);
+
+        Assert.assertEquals(1, Math.min(levels.get(a), levels.get(b)));
+        Assert.assertEquals(2, Math.max(levels.get(a), levels.get(b)));
+    }
+}
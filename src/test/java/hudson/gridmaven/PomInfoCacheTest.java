@@ -0,0 +1,125 @@
+package hudson.gridmaven;
+
+import hudson.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.project.MavenProject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PomInfoCacheTest {
+
+    private File dir;
+    private File pom;
+    private File modulePom;
+    private File parentPom;
+    private PomInfoCache cache;
+    private Properties properties;
+
+    @Before
+    public void before() throws IOException {
+        dir = Util.createTempDir();
+        File ws = new File(dir, "ws");
+        pom = write(new File(ws, "pom.xml"), "<project><version>${revision}</version></project>");
+        modulePom = write(new File(ws, "core/pom.xml"), "<project/>");
+        // a <relativePath> parent that is not a module of the reactor
+        parentPom = write(new File(dir, "parent/pom.xml"), "<project><packaging>pom</packaging></project>");
+        cache = new PomInfoCache(ws.getPath());
+
+        properties = new Properties();
+        properties.setProperty("revision", "1.0");
+        properties.setProperty("BUILD_NUMBER", "1");
+    }
+
+    @After
+    public void after() throws IOException {
+        Util.deleteRecursive(dir);
+    }
+
+    @Test
+    public void testHit() {
+        store();
+        List<PomInfo> infos = cache.load("settings", properties);
+        Assert.assertNotNull(infos);
+        Assert.assertEquals(1, infos.size());
+        Assert.assertEquals("app", infos.get(0).name.artifactId);
+    }
+
+    @Test
+    public void testEmpty() {
+        Assert.assertNull(cache.load("settings", properties));
+    }
+
+    @Test
+    public void testSettingsChanged() {
+        store();
+        Assert.assertNull(cache.load("other settings", properties));
+    }
+
+    @Test
+    public void testPomChanged() throws IOException {
+        store();
+        write(modulePom, "<project><modules/></project>");
+        Assert.assertNull(cache.load("settings", properties));
+    }
+
+    @Test
+    public void testParentPomChanged() throws IOException {
+        store();
+        write(parentPom, "<project><packaging>pom</packaging><version>2</version></project>");
+        Assert.assertNull(cache.load("settings", properties));
+    }
+
+    @Test
+    public void testPomDeleted() {
+        store();
+        modulePom.delete();
+        Assert.assertNull(cache.load("settings", properties));
+    }
+
+    @Test
+    public void testReferencedPropertyChanged() {
+        store();
+        properties.setProperty("revision", "1.1");
+        Assert.assertNull(cache.load("settings", properties));
+    }
+
+    @Test
+    public void testUnreferencedPropertyChanged() {
+        store();
+        properties.setProperty("BUILD_NUMBER", "2");
+        Assert.assertNotNull(cache.load("settings", properties));
+    }
+
+    @Test
+    public void testCorruptedCache() throws IOException {
+        store();
+        write(new File(dir, "ws@pomcache/pominfo.ser"), "garbage");
+        Assert.assertNull(cache.load("settings", properties));
+    }
+
+    private void store() {
+        MavenProject project = new MavenProject();
+        project.setGroupId("org.acme");
+        project.setArtifactId("app");
+        project.setVersion("1.0");
+        project.setPackaging("pom");
+        List<PomInfo> infos = Collections.singletonList(new PomInfo(project, null, ""));
+        cache.store("settings", Arrays.asList(pom, modulePom, parentPom), properties, infos);
+    }
+
+    private static File write(File f, String content) throws IOException {
+        FileUtils.writeStringToFile(f, content);
+        return f;
+    }
+}
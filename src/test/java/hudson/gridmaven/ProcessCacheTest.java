@@ -0,0 +1,267 @@
+package hudson.gridmaven;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import hudson.gridmaven.ProcessCache.MavenProcess;
+import hudson.model.BuildListener;
+import hudson.model.JDK;
+import hudson.model.StreamBuildListener;
+import hudson.model.TaskListener;
+import hudson.remoting.Callable;
+import hudson.remoting.Channel;
+import hudson.remoting.VirtualChannel;
+import hudson.tasks.Maven.MavenInstallation;
+import hudson.util.NullStream;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+/**
+ * Tests which cached Maven processes are reused and which are evicted.
+ * The processes are stood in for by channels that run the callables in the test JVM.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest( { Channel.class })
+public class ProcessCacheTest {
+
+    private final VirtualChannel owner = mock(VirtualChannel.class);
+    private final BuildListener listener = new StreamBuildListener(new NullStream());
+    private final Map<MavenProcess, Channel> channels = new HashMap<MavenProcess, Channel>();
+
+    private int maxAge;
+    private double maxHeapOccupancy;
+    private double maxPermOccupancy;
+
+    @Before
+    public void before() {
+        maxAge = ProcessCache.MAX_AGE;
+        maxHeapOccupancy = ProcessCache.MAX_HEAP_OCCUPANCY;
+        maxPermOccupancy = ProcessCache.MAX_PERM_OCCUPANCY;
+        // the health checks measure the test JVM, which must not look leaky
+        ProcessCache.MAX_HEAP_OCCUPANCY = 1.0;
+        ProcessCache.MAX_PERM_OCCUPANCY = 1.0;
+    }
+
+    @After
+    public void after() {
+        ProcessCache.MAX_AGE = maxAge;
+        ProcessCache.MAX_HEAP_OCCUPANCY = maxHeapOccupancy;
+        ProcessCache.MAX_PERM_OCCUPANCY = maxPermOccupancy;
+    }
+
+    @Test
+    public void testReuse() throws Throwable {
+        ProcessCache cache = new ProcessCache(2);
+        MavenProcess p = get(cache, "-Xmx1g");
+        p.recycle();
+        Assert.assertSame(p, get(cache, "-Xmx1g"));
+        // another configuration needs its own process
+        p.recycle();
+        Assert.assertNotSame(p, get(cache, "-Xmx2g"));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Throwable {
+        ProcessCache cache = new ProcessCache(2);
+        MavenProcess p1 = get(cache, "-Xmx1g");
+        MavenProcess p2 = get(cache, "-Xmx1g");
+        MavenProcess p3 = get(cache, "-Xmx1g");
+        recycle(p1, p2, p3);
+
+        assertDiscarded(p1);
+        assertKept(p2);
+        assertKept(p3);
+    }
+
+    @Test
+    public void testEvictsLeastRequestedConfigurationFirst() throws Throwable {
+        ProcessCache cache = new ProcessCache(2);
+        MavenProcess p1 = get(cache, "-Xmx1g");
+        MavenProcess p2 = get(cache, "-Xmx1g");
+        MavenProcess rare = get(cache, "-Xmx2g");
+        // the rarely requested one goes, though it was used last
+        recycle(p1, p2, rare);
+
+        assertDiscarded(rare);
+        assertKept(p1);
+        assertKept(p2);
+    }
+
+    @Test
+    public void testNoCache() throws Throwable {
+        MavenProcess p = get(new ProcessCache(0), "-Xmx1g");
+        p.recycle();
+        assertDiscarded(p);
+    }
+
+    @Test
+    public void testMaxAge() throws Throwable {
+        ProcessCache.MAX_AGE = 1;
+        ProcessCache cache = new ProcessCache(2);
+        MavenProcess p = get(cache, "-Xmx1g");
+        p.recycle();
+        Assert.assertSame(p, get(cache, "-Xmx1g"));
+        p.recycle();
+        assertDiscarded(p);
+    }
+
+    @Test
+    public void testUnlimitedAge() throws Throwable {
+        ProcessCache.MAX_AGE = 0;
+        ProcessCache cache = new ProcessCache(2);
+        MavenProcess p = get(cache, "-Xmx1g");
+        for (int i = 0; i < 3; i++) {
+            p.recycle();
+            Assert.assertSame(p, get(cache, "-Xmx1g"));
+        }
+        p.recycle();
+        assertKept(p);
+    }
+
+    @Test
+    public void testConcurrentGetClaimsEachProcessOnce() throws Throwable {
+        final ProcessCache cache = new ProcessCache(4);
+        recycle(get(cache, "-Xmx1g"), get(cache, "-Xmx1g"), get(cache, "-Xmx1g"), get(cache, "-Xmx1g"));
+
+        final CountDownLatch go = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<MavenProcess>> results = new ArrayList<Future<MavenProcess>>();
+            for (int i = 0; i < 8; i++) {
+                final Factory factory = new Factory("-Xmx1g", channel());
+                results.add(pool.submit(new java.util.concurrent.Callable<MavenProcess>() {
+                    public MavenProcess call() throws Exception {
+                        go.await();
+                        return cache.get(owner, listener, factory);
+                    }
+                }));
+            }
+            go.countDown();
+            Set<MavenProcess> claimed = Collections.newSetFromMap(new IdentityHashMap<MavenProcess, Boolean>());
+            for (Future<MavenProcess> r : results)
+                Assert.assertTrue("handed out twice", claimed.add(r.get()));
+            Assert.assertEquals(8, claimed.size());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSlowNodeDoesNotHoldUpPrewarm() throws Throwable {
+        ProcessCache cache = new ProcessCache(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        cache.prewarm(owner, new Factory("-Xmx1g", channel()) {
+            @Override
+            public ProcessCache.NewProcess newProcess(BuildListener listener, OutputStream out) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return super.newProcess(listener, out);
+            }
+        }, 1);
+        try {
+            cache.prewarm(mock(VirtualChannel.class), new Factory("-Xmx1g", channel()) {
+                @Override
+                public ProcessCache.NewProcess newProcess(BuildListener listener, OutputStream out) {
+                    started.countDown();
+                    return super.newProcess(listener, out);
+                }
+            }, 1);
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private MavenProcess get(ProcessCache cache, String mavenOpts) throws Throwable {
+        Channel channel = channel();
+        MavenProcess p = cache.get(owner, listener, new Factory(mavenOpts, channel));
+        if (!channels.containsKey(p))
+            channels.put(p, channel);
+        return p;
+    }
+
+    /**
+     * Returns the processes to the cache in the given order, one after another.
+     */
+    private static void recycle(MavenProcess... processes) throws Exception {
+        for (MavenProcess p : processes) {
+            p.recycle();
+            Thread.sleep(5); // so that they differ in when they were last used
+        }
+    }
+
+    private void assertDiscarded(MavenProcess p) throws Exception {
+        verify(channels.get(p)).close();
+    }
+
+    private void assertKept(MavenProcess p) throws Exception {
+        verify(channels.get(p), never()).close();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Channel channel() throws Throwable {
+        Channel channel = PowerMockito.mock(Channel.class);
+        when(channel.call(Matchers.any(Callable.class))).thenAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                return ((Callable<?, ?>) invocation.getArguments()[0]).call();
+            }
+        });
+        return channel;
+    }
+
+    private static class Factory implements ProcessCache.Factory {
+        private final String mavenOpts;
+        private final Channel channel;
+
+        Factory(String mavenOpts, Channel channel) {
+            this.mavenOpts = mavenOpts;
+            this.channel = channel;
+        }
+
+        public ProcessCache.NewProcess newProcess(BuildListener listener, OutputStream out) {
+            return new ProcessCache.NewProcess(channel, null);
+        }
+
+        public String getMavenOpts() {
+            return mavenOpts;
+        }
+
+        public MavenInstallation getMavenInstallation(TaskListener listener) {
+            return null;
+        }
+
+        public JDK getJava(TaskListener listener) {
+            return null;
+        }
+    }
+}
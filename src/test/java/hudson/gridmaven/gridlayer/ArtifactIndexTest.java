@@ -0,0 +1,129 @@
+package hudson.gridmaven.gridlayer;
+
+import hudson.Util;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link ArtifactIndex}.
+ */
+public class ArtifactIndexTest {
+
+    private File dir;
+    private File pom;
+    private File jar;
+    private File sources;
+
+    @Before
+    public void before() throws IOException {
+        dir = Util.createTempDir();
+        pom = write("app-1.0.pom", "<project/>");
+        jar = write("app-1.0.jar", "main");
+        sources = write("app-1.0-sources.jar", "sources");
+    }
+
+    @After
+    public void after() throws IOException {
+        Util.deleteRecursive(dir);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        ArtifactIndex index = index();
+        ArtifactIndex read = roundTrip(index);
+
+        Assert.assertEquals(3, read.getEntries().size());
+        Assert.assertEquals(index.digest(), read.digest());
+        Assert.assertEquals("app-1.0.pom", read.getPom().fileName);
+        Assert.assertEquals("app-1.0.jar", read.getMain().fileName);
+        Assert.assertNull(read.getMain().classifier);
+
+        ArtifactIndex.Entry attached = read.getEntries().get(2);
+        Assert.assertEquals("sources", attached.classifier);
+        Assert.assertEquals("java-source", attached.type);
+        Assert.assertEquals(SourceManifest.hash(sources), attached.sha1);
+        Assert.assertEquals(sources.length(), attached.size);
+    }
+
+    @Test
+    public void testPomOnlyModule() throws IOException {
+        ArtifactIndex index = new ArtifactIndex();
+        index.add(pom, pom.getName(), "pom", null, "pom");
+        ArtifactIndex read = roundTrip(index);
+        Assert.assertNotNull(read.getPom());
+        Assert.assertNull(read.getMain());
+    }
+
+    @Test
+    public void testEmptyClassifierIsNone() throws IOException {
+        ArtifactIndex index = new ArtifactIndex();
+        Assert.assertNull(index.add(jar, jar.getName(), "jar", "", "jar").classifier);
+    }
+
+    @Test
+    public void testDigestChangesWithContent() throws IOException {
+        String before = index().digest();
+        write("app-1.0.jar", "rebuilt");
+        Assert.assertFalse(before.equals(index().digest()));
+    }
+
+    @Test
+    public void testVerify() throws IOException {
+        ArtifactIndex.Entry e = index().getMain();
+        e.verify(jar);
+
+        write("app-1.0.jar", "nope"); // same size, other content
+        try {
+            e.verify(jar);
+            Assert.fail("modified file accepted");
+        } catch (IOException x) {
+            // expected
+        }
+
+        write("app-1.0.jar", "truncated and longer");
+        try {
+            e.verify(jar);
+            Assert.fail("file of another size accepted");
+        } catch (IOException x) {
+            // expected
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformedLine() throws IOException {
+        ArtifactIndex.read(new ByteArrayInputStream("abc 3 jar\n".getBytes("UTF-8")));
+    }
+
+    private ArtifactIndex index() throws IOException {
+        ArtifactIndex index = new ArtifactIndex();
+        index.add(pom, pom.getName(), "pom", null, "pom");
+        index.add(jar, jar.getName(), "jar", null, "jar");
+        index.add(sources, sources.getName(), "java-source", "sources", "jar");
+        return index;
+    }
+
+    private static ArtifactIndex roundTrip(ArtifactIndex index) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        index.write(out);
+        return ArtifactIndex.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private File write(String name, String content) throws IOException {
+        File f = new File(dir, name);
+        FileWriter w = new FileWriter(f);
+        try {
+            w.write(content);
+        } finally {
+            w.close();
+        }
+        return f;
+    }
+}
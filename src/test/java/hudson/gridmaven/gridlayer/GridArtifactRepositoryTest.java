@@ -0,0 +1,127 @@
+package hudson.gridmaven.gridlayer;
+
+import hudson.Util;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link GridArtifactRepository}.
+ */
+public class GridArtifactRepositoryTest {
+
+    private File tmp;
+    private RootedLocalFileSystem fs;
+
+    @Before
+    public void before() throws IOException {
+        tmp = Util.createTempDir();
+        fs = new RootedLocalFileSystem(new File(tmp, "hdfs"));
+    }
+
+    @After
+    public void after() throws IOException {
+        Util.deleteRecursive(tmp);
+    }
+
+    @Test
+    public void testPublishAndResolveLatest() throws IOException {
+        Path dir = publish("job-1", "one");
+        Assert.assertEquals(GridRepositoryLayout.buildDir("org.acme", "app", "1.0", "job-1"), path(dir));
+        Assert.assertEquals("one", FileUtils.readFileToString(fs.toFile(path(dir) + "/app-1.0.jar")));
+        Assert.assertEquals(path(dir), path(resolve(null)));
+    }
+
+    @Test
+    public void testLatestFollowsNewestPublication() throws IOException {
+        publish("job-1", "one");
+        publish("other-7", "two");
+        Assert.assertEquals("other-7", resolve(null).getName());
+        // older builds stay reachable by their id
+        Assert.assertEquals("job-1", resolve("job-1").getName());
+    }
+
+    @Test
+    public void testPinnedBuildIsNeverSubstituted() throws IOException {
+        publish("job-1", "one");
+        Assert.assertNull(resolve("job-2"));
+    }
+
+    @Test
+    public void testNeverPublished() throws IOException {
+        Assert.assertNull(resolve(null));
+        Assert.assertNull(resolve("job-1"));
+    }
+
+    @Test
+    public void testMissingPointerFallsBackToNewestBuild() throws IOException {
+        Path older = publish("job-1", "one");
+        Path newer = publish("job-2", "two");
+        fs.toFile(path(older)).setLastModified(System.currentTimeMillis() - 60000);
+        fs.toFile(path(newer)).setLastModified(System.currentTimeMillis());
+        fs.toFile(GridRepositoryLayout.latestPointer("org.acme", "app", "1.0")).delete();
+        Assert.assertEquals("job-2", resolve(null).getName());
+    }
+
+    @Test
+    public void testRepublishReplacesBuild() throws IOException {
+        publish("job-1", "one");
+        Path dir = publish("job-1", "rerun");
+        Assert.assertEquals("rerun", FileUtils.readFileToString(fs.toFile(path(dir) + "/app-1.0.jar")));
+    }
+
+    @Test
+    public void testNoTemporaryFilesLeft() throws IOException {
+        publish("job-1", "one");
+        publish("job-2", "two");
+        for (String name : fs.toFile(GridRepositoryLayout.artifactDir("org.acme", "app", "1.0")).list())
+            Assert.assertFalse(name, name.contains(".part-"));
+    }
+
+    @Test
+    public void testInterruptedPublicationLeavesPreviousBuild() throws IOException {
+        publish("job-1", "one");
+        Thread.currentThread().interrupt();
+        try {
+            publish("job-2", "two");
+            Assert.fail("publication should have been interrupted");
+        } catch (InterruptedIOException e) {
+            // expected
+        }
+        Assert.assertFalse(Thread.interrupted());
+        Assert.assertNull(resolve("job-2"));
+        Assert.assertEquals("job-1", resolve(null).getName());
+        for (String name : fs.toFile(GridRepositoryLayout.artifactDir("org.acme", "app", "1.0")).list())
+            Assert.assertFalse(name, name.contains(".part-"));
+    }
+
+    private Path publish(String buildId, String content) throws IOException {
+        File jar = new File(tmp, "app.jar");
+        FileWriter w = new FileWriter(jar);
+        try {
+            w.write(content);
+        } finally {
+            w.close();
+        }
+        Map<String, File> files = Collections.singletonMap("app-1.0.jar", jar);
+        return GridArtifactRepository.publish(fs, "org.acme", "app", "1.0", buildId, files);
+    }
+
+    private Path resolve(String buildId) throws IOException {
+        return GridArtifactRepository.resolve(fs, "org.acme", "app", "1.0", buildId);
+    }
+
+    private static String path(Path p) {
+        return p.toUri().getPath();
+    }
+}
@@ -0,0 +1,301 @@
+package hudson.gridmaven.gridlayer;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import hudson.Util;
+import hudson.gridmaven.MavenBuild;
+import hudson.gridmaven.MavenModule;
+import hudson.gridmaven.MavenModuleSet;
+import hudson.gridmaven.MavenModuleSetBuild;
+import hudson.gridmaven.ModuleName;
+import hudson.util.RunList;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.core.classloader.annotations.SuppressStaticInitializationFor;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+/**
+ * Unit test for {@link GridRepositoryCollector}.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest( { Jenkins.class, MavenModuleSet.class, MavenModuleSetBuild.class, MavenModule.class, MavenBuild.class })
+@SuppressStaticInitializationFor("jenkins.model.Jenkins")
+public class GridRepositoryCollectorTest {
+
+    private static final long OLD = System.currentTimeMillis() - 24 * 60 * 60 * 1000;
+
+    private File tmp;
+    private RootedLocalFileSystem fs;
+    private List<MavenModuleSet> jobs;
+
+    @Before
+    public void before() throws IOException {
+        tmp = Util.createTempDir();
+        fs = new RootedLocalFileSystem(new File(tmp, "hdfs"));
+        jobs = new ArrayList<MavenModuleSet>();
+
+        Jenkins jenkins = mock(Jenkins.class);
+        PowerMockito.mockStatic(Jenkins.class);
+        when(Jenkins.getInstance()).thenReturn(jenkins);
+        when(jenkins.getAllItems(MavenModuleSet.class)).thenReturn(jobs);
+    }
+
+    @After
+    public void after() throws IOException {
+        Util.deleteRecursive(tmp);
+    }
+
+    @Test
+    public void testSweepsBuildsNobodyRetains() throws IOException {
+        job("job", 0, 2);
+        publishBuild("job-1", OLD);
+        publishBuild("gone-4", OLD);
+        publishBuild("job-2", OLD);
+        publishBuild("job-3", OLD);
+        writeLatest("job-3");
+
+        GridRepositoryCollector.collect(fs);
+
+        Assert.assertFalse(buildExists("job-1"));
+        Assert.assertFalse(buildExists("gone-4"));
+        Assert.assertTrue(buildExists("job-2"));
+        // whatever readers resolve as latest is kept
+        Assert.assertTrue(buildExists("job-3"));
+    }
+
+    @Test
+    public void testKeepsBuildsPublishedMeanwhile() throws IOException {
+        job("job", 0, 2);
+        publishBuild("job-2", OLD);
+        publishBuild("job-3", System.currentTimeMillis());
+        writeLatest("job-2");
+
+        GridRepositoryCollector.collect(fs);
+
+        Assert.assertTrue(buildExists("job-3"));
+    }
+
+    @Test
+    public void testQuota() throws IOException {
+        job("job", 1, 1, 2, 3);
+        publishBuild("job-1", OLD, 600 * 1024);
+        publishBuild("job-2", OLD, 600 * 1024);
+        publishBuild("job-3", OLD, 600 * 1024);
+        writeLatest("job-3");
+
+        GridRepositoryCollector.collect(fs);
+
+        // the latest build does not count against the quota
+        Assert.assertTrue(buildExists("job-3"));
+        Assert.assertTrue(buildExists("job-2"));
+        Assert.assertFalse(buildExists("job-1"));
+    }
+
+    @Test
+    public void testMarksBlobsOfRetainedManifests() throws IOException {
+        job("job", 0);
+        String live = blob("aa11", OLD);
+        String dead = blob("bb22", OLD);
+        String fresh = blob("cc33", System.currentTimeMillis());
+        writeManifest(manifestPath("job"), "aa11", OLD);
+        writeManifest(manifestPath("removed"), "bb22", OLD);
+
+        GridRepositoryCollector.collect(fs);
+
+        Assert.assertTrue(fs.toFile(manifestPath("job")).isFile());
+        Assert.assertFalse(fs.toFile(GridRepositoryLayout.MANIFESTS + "/removed").exists());
+        Assert.assertTrue(fs.toFile(live).isFile());
+        Assert.assertFalse(fs.toFile(dead).exists());
+        // may belong to a manifest being written
+        Assert.assertTrue(fs.toFile(fresh).isFile());
+    }
+
+    @Test
+    public void testKeepsManifestsOfRetainedSetBuilds() throws IOException {
+        MavenModuleSet job = job("job", 0);
+        setBuilds(job, 2);
+        writeManifest(manifestPath("job", 1), "aa11", OLD);
+        writeManifest(manifestPath("job", 2), "bb22", OLD);
+        writeManifest(manifestPath("job", 3), "cc33", OLD);
+        String legacy = GridRepositoryLayout.MANIFESTS + "/job/org.acme.app-1.0/app-1.0.manifest";
+        write(legacy, "", OLD);
+
+        GridRepositoryCollector.collect(fs);
+
+        Assert.assertFalse(fs.toFile(manifestPath("job", 1)).exists());
+        Assert.assertTrue(fs.toFile(manifestPath("job", 2)).isFile());
+        // the newest one serves module builds started on their own
+        Assert.assertTrue(fs.toFile(manifestPath("job", 3)).isFile());
+        Assert.assertFalse(fs.toFile(legacy).exists());
+    }
+
+    @Test
+    public void testSweepsBlobsWhileBuilding() throws IOException {
+        MavenModuleSet job = job("job", 0);
+        when(job.isBuilding()).thenReturn(true);
+        String dead = blob("bb22", OLD);
+
+        GridRepositoryCollector.collect(fs);
+
+        Assert.assertFalse(fs.toFile(dead).exists());
+    }
+
+    @Test
+    public void testKeepsBlobsReusedMeanwhile() throws IOException {
+        job("job", 0);
+        final String reused = blob("bb22", OLD);
+        String dead = blob("bb33", OLD);
+        RootedLocalFileSystem snapshotting = new RootedLocalFileSystem(new File(tmp, "hdfs")) {
+            @Override
+            public FileStatus[] listStatus(Path f) throws IOException {
+                // a snapshot taken after the manifests were marked
+                if (f.toUri().getPath().equals(GridRepositoryLayout.BLOBS))
+                    Assert.assertTrue(GridRepositoryCollector.reuse(this, new Path(reused)));
+                return super.listStatus(f);
+            }
+        };
+
+        GridRepositoryCollector.collect(snapshotting);
+
+        Assert.assertTrue(fs.toFile(reused).isFile());
+        Assert.assertFalse(fs.toFile(dead).exists());
+        Assert.assertFalse(GridRepositoryCollector.reuse(fs, new Path(dead)));
+    }
+
+    @Test
+    public void testRemovesAbandonedTemporaryFiles() throws IOException {
+        job("job", 0);
+        String stale = GridRepositoryLayout.BLOBS + "/dd/dd44.part-1";
+        String current = GridRepositoryLayout.BLOBS + "/dd/dd44.part-2";
+        write(stale, "x", OLD);
+        write(current, "x", System.currentTimeMillis());
+
+        GridRepositoryCollector.collect(fs);
+
+        Assert.assertFalse(fs.toFile(stale).exists());
+        Assert.assertTrue(fs.toFile(current).exists());
+    }
+
+    /**
+     * A job with one module, "org.acme:app:1.0", which is also the root module.
+     *
+     * @param quota
+     *      Repository quota in MB, 0 for none.
+     */
+    @SuppressWarnings("unchecked")
+    private MavenModuleSet job(String name, int quota, int... buildNumbers) {
+        MavenModuleSet job = PowerMockito.mock(MavenModuleSet.class);
+        MavenModule module = PowerMockito.mock(MavenModule.class);
+        when(job.getName()).thenReturn(name);
+        when(job.getRepositoryQuota()).thenReturn(quota);
+        when(job.getRootModule()).thenReturn(module);
+        when(job.getModules()).thenReturn(Collections.singletonList(module));
+        when(module.getParent()).thenReturn(job);
+        when(module.getModuleName()).thenReturn(new ModuleName("org.acme", "app"));
+        when(module.getVersion()).thenReturn("1.0");
+
+        List<MavenBuild> builds = new ArrayList<MavenBuild>();
+        for (int n : buildNumbers) {
+            MavenBuild b = PowerMockito.mock(MavenBuild.class);
+            when(b.getParent()).thenReturn(module);
+            when(b.getNumber()).thenReturn(n);
+            builds.add(b);
+        }
+        RunList<MavenBuild> runs = mock(RunList.class);
+        when(runs.iterator()).thenReturn(builds.iterator());
+        when(module.getBuilds()).thenReturn(runs);
+        setBuilds(job);
+
+        jobs.add(job);
+        return job;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void setBuilds(MavenModuleSet job, int... buildNumbers) {
+        List<MavenModuleSetBuild> builds = new ArrayList<MavenModuleSetBuild>();
+        for (int n : buildNumbers) {
+            MavenModuleSetBuild b = PowerMockito.mock(MavenModuleSetBuild.class);
+            when(b.getNumber()).thenReturn(n);
+            builds.add(b);
+        }
+        RunList<MavenModuleSetBuild> runs = mock(RunList.class);
+        when(runs.iterator()).thenReturn(builds.iterator());
+        when(job.getBuilds()).thenReturn(runs);
+    }
+
+    private static String manifestPath(String job) {
+        return manifestPath(job, 1);
+    }
+
+    private static String manifestPath(String job, int setBuildNumber) {
+        return GridRepositoryLayout.manifestPath(job, "org.acme.app-1.0", "app", "1.0", setBuildNumber);
+    }
+
+    private void publishBuild(String buildId, long time) throws IOException {
+        publishBuild(buildId, time, 10);
+    }
+
+    private void publishBuild(String buildId, long time, int size) throws IOException {
+        String dir = GridRepositoryLayout.buildDir("org.acme", "app", "1.0", buildId);
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < size; i++)
+            content.append('x');
+        write(dir + "/app-1.0.jar", content.toString(), time);
+        fs.toFile(dir).setLastModified(time);
+    }
+
+    private boolean buildExists(String buildId) {
+        return fs.toFile(GridRepositoryLayout.buildDir("org.acme", "app", "1.0", buildId)).isDirectory();
+    }
+
+    private void writeLatest(String buildId) throws IOException {
+        write(GridRepositoryLayout.latestPointer("org.acme", "app", "1.0"), buildId + "\n", OLD);
+    }
+
+    private String blob(String hash, long time) throws IOException {
+        String path = GridRepositoryLayout.blobPath(hash, SnapshotCodec.NONE);
+        write(path, hash, time);
+        return path;
+    }
+
+    private void writeManifest(String path, String hash, long time) throws IOException {
+        SourceManifest m = new SourceManifest();
+        m.add(new SourceManifest.Entry("pom.xml", hash, 4));
+        File f = fs.toFile(path);
+        f.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(f);
+        try {
+            m.write(out);
+        } finally {
+            out.close();
+        }
+        // the manifest, its module, root module and job directories
+        for (int i = 0; i < 4; i++, f = f.getParentFile())
+            f.setLastModified(time);
+    }
+
+    private void write(String path, String content, long time) throws IOException {
+        File f = fs.toFile(path);
+        FileUtils.writeStringToFile(f, content);
+        f.setLastModified(time);
+    }
+}
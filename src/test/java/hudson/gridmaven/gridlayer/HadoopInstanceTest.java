@@ -0,0 +1,114 @@
+package hudson.gridmaven.gridlayer;
+
+import hudson.Util;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.FileSystem;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for storing module sources with {@link HadoopInstance#snapshotAndInsert}.
+ */
+public class HadoopInstanceTest {
+
+    private File tmp;
+    private RootedLocalFileSystem fs;
+    private HadoopInstance hadoop;
+
+    @Before
+    public void before() throws IOException {
+        tmp = Util.createTempDir();
+        fs = new RootedLocalFileSystem(new File(tmp, "hdfs"));
+        // clients are process-wide, keep the tests apart
+        final String key = "hdfs://" + tmp.getName() + "/";
+        hadoop = new HadoopInstance(HadoopInstanceTest.class) {
+            @Override
+            FileSystem fs() throws IOException {
+                return HdfsClients.acquire(key, new HdfsClients.Connector() {
+                    public FileSystem connect() {
+                        return fs;
+                    }
+                });
+            }
+        };
+    }
+
+    @After
+    public void after() throws IOException {
+        Util.deleteRecursive(tmp);
+    }
+
+    @Test
+    public void testStoresContentOnce() throws IOException {
+        File module = module("a");
+        HadoopInstance.SnapshotResult first = hadoop.snapshotAndInsert(module.getPath(), "/manifest/a-1", SnapshotCodec.NONE);
+        Assert.assertEquals(2, first.files);
+        Assert.assertEquals(2, first.uploadedFiles);
+        Assert.assertEquals(new File(module, "pom.xml").length() + new File(module, "src/A.java").length(),
+                first.uploadedBytes);
+
+        HadoopInstance.SnapshotResult second = hadoop.snapshotAndInsert(module.getPath(), "/manifest/a-2", SnapshotCodec.NONE);
+        Assert.assertEquals(2, second.files);
+        Assert.assertEquals(0, second.uploadedFiles);
+        Assert.assertEquals(first.manifest.digest(), read("/manifest/a-2").digest());
+    }
+
+    @Test
+    public void testConcurrentModules() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<HadoopInstance.SnapshotResult>> results = new ArrayList<Future<HadoopInstance.SnapshotResult>>();
+            for (int i = 0; i < 8; i++) {
+                final String source = module("m" + i).getPath();
+                final String manifest = "/manifest/m" + i;
+                results.add(pool.submit(new Callable<HadoopInstance.SnapshotResult>() {
+                    public HadoopInstance.SnapshotResult call() throws IOException {
+                        return hadoop.snapshotAndInsert(source, manifest, SnapshotCodec.NONE);
+                    }
+                }));
+            }
+            for (int i = 0; i < 8; i++) {
+                Assert.assertEquals(2, results.get(i).get().files);
+                // every file of every manifest can be fetched
+                for (SourceManifest.Entry e : read("/manifest/m" + i).getEntries()) {
+                    if (!e.isDirectory())
+                        Assert.assertTrue(e.path, fs.toFile(GridRepositoryLayout.blobPath(e.hash, SnapshotCodec.NONE)).isFile());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates a module sharing its pom with all other modules.
+     */
+    private File module(String name) throws IOException {
+        File dir = new File(tmp, "src/" + name);
+        FileUtils.writeStringToFile(new File(dir, "pom.xml"), "<project/>");
+        FileUtils.writeStringToFile(new File(dir, "src/A.java"), "class A { String name = \"" + name + "\"; }");
+        return dir;
+    }
+
+    private SourceManifest read(String path) throws IOException {
+        InputStream in = new FileInputStream(fs.toFile(path));
+        try {
+            return SourceManifest.read(in);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package hudson.gridmaven.gridlayer;
+
+import hudson.Util;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link HdfsClients}.
+ */
+public class HdfsClientsTest {
+
+    private File tmp;
+    private long checkInterval;
+    private final List<FakeClient> opened = new ArrayList<FakeClient>();
+    private String key;
+
+    private final HdfsClients.Connector connector = new HdfsClients.Connector() {
+        public FileSystem connect() throws IOException {
+            FakeClient fs = new FakeClient(tmp);
+            opened.add(fs);
+            return fs;
+        }
+    };
+
+    @Before
+    public void before() throws IOException {
+        tmp = Util.createTempDir();
+        checkInterval = HdfsClients.CHECK_INTERVAL;
+        // clients are process-wide, keep the tests apart
+        key = "hdfs://" + tmp.getName() + "/";
+    }
+
+    @After
+    public void after() throws IOException {
+        HdfsClients.CHECK_INTERVAL = checkInterval;
+        Util.deleteRecursive(tmp);
+    }
+
+    @Test
+    public void testSharesClient() throws IOException {
+        FileSystem a = HdfsClients.acquire(key, connector);
+        FileSystem b = HdfsClients.acquire(key, connector);
+        Assert.assertSame(a, b);
+        Assert.assertEquals(1, opened.size());
+        Assert.assertEquals(2, HdfsClients.users(a));
+
+        HdfsClients.release(a);
+        HdfsClients.release(b);
+        Assert.assertEquals(0, HdfsClients.users(a));
+        // kept for the next caller
+        Assert.assertFalse(opened.get(0).closed);
+        Assert.assertSame(a, HdfsClients.acquire(key, connector));
+        HdfsClients.release(a);
+    }
+
+    @Test
+    public void testClosesReplacedClientWhenReleased() throws IOException {
+        HdfsClients.CHECK_INTERVAL = -1;
+        FakeClient a = (FakeClient) HdfsClients.acquire(key, connector);
+        a.dead = true;
+
+        FileSystem b = HdfsClients.acquire(key, connector);
+        Assert.assertNotSame(a, b);
+        Assert.assertEquals(2, opened.size());
+        // still used by the first caller
+        Assert.assertFalse(a.closed);
+
+        HdfsClients.release(a);
+        Assert.assertTrue(a.closed);
+        Assert.assertFalse(opened.get(1).closed);
+        HdfsClients.release(b);
+        Assert.assertFalse(opened.get(1).closed);
+    }
+
+    @Test
+    public void testClosesUnusedReplacedClientRightAway() throws IOException {
+        HdfsClients.CHECK_INTERVAL = -1;
+        FakeClient a = (FakeClient) HdfsClients.acquire(key, connector);
+        HdfsClients.release(a);
+        a.dead = true;
+
+        FileSystem b = HdfsClients.acquire(key, connector);
+        Assert.assertNotSame(a, b);
+        Assert.assertTrue(a.closed);
+        HdfsClients.release(b);
+    }
+
+    @Test
+    public void testIgnoresForeignClients() throws IOException {
+        FakeClient fs = new FakeClient(tmp);
+        HdfsClients.release(fs);
+        HdfsClients.release(null);
+        Assert.assertFalse(fs.closed);
+    }
+
+    private static final class FakeClient extends RootedLocalFileSystem {
+        boolean dead;
+        boolean closed;
+
+        FakeClient(File root) throws IOException {
+            super(root);
+        }
+
+        @Override
+        public FileStatus getFileStatus(Path f) throws IOException {
+            if (dead)
+                throw new IOException("connection refused");
+            return super.getFileStatus(f);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package hudson.gridmaven.gridlayer;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link HdfsSettings}.
+ */
+public class HdfsSettingsTest {
+
+    private final HdfsSettings settings = new HdfsSettings(64L << 20, 3, 2L << 30);
+
+    @Test
+    public void testClientSettings() {
+        Configuration conf = new Configuration();
+        settings.applyTo(conf);
+        Assert.assertEquals(64L << 20, conf.getLong("dfs.block.size", 0));
+        Assert.assertEquals(3, conf.getInt("dfs.replication", 0));
+        // only data nodes reserve room
+        Assert.assertNull(conf.get("dfs.datanode.du.reserved"));
+    }
+
+    @Test
+    public void testDataNodeSettings() {
+        Configuration conf = new Configuration();
+        settings.applyToDataNode(conf);
+        Assert.assertEquals(64L << 20, conf.getLong("dfs.block.size", 0));
+        Assert.assertEquals(3, conf.getInt("dfs.replication", 0));
+        Assert.assertEquals(2L << 30, conf.getLong("dfs.datanode.du.reserved", 0));
+    }
+}
@@ -0,0 +1,106 @@
+package hudson.gridmaven.gridlayer;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import hudson.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.FileSystem;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonatype.aether.artifact.Artifact;
+import org.sonatype.aether.repository.WorkspaceReader;
+
+/**
+ * Unit test for {@link HdfsWorkspaceReader}.
+ */
+public class HdfsWorkspaceReaderTest {
+
+    private File tmp;
+    private RootedLocalFileSystem fs;
+    private WorkspaceReader reactor;
+    private Map<String, String> builds;
+    private HdfsWorkspaceReader reader;
+
+    @Before
+    public void before() throws IOException {
+        tmp = Util.createTempDir();
+        fs = new RootedLocalFileSystem(new File(tmp, "hdfs"));
+        reactor = mock(WorkspaceReader.class);
+        builds = new HashMap<String, String>();
+        reader = new HdfsWorkspaceReader(reactor, "hdfs://localhost:9000",
+                new NodeArtifactCache(new File(tmp, "cache"), 1024 * 1024), builds) {
+            @Override
+            FileSystem getFs() {
+                return fs;
+            }
+        };
+
+        publish("job-1", "first");
+        publish("job-2", "second");
+        // another job built the same artifact version last
+        publish("other-7", "other");
+        FileUtils.writeStringToFile(fs.toFile(GridRepositoryLayout.latestPointer("org.acme", "lib", "1.0")), "other-7\n");
+    }
+
+    @After
+    public void after() throws IOException {
+        reader.release();
+        Util.deleteRecursive(tmp);
+    }
+
+    @Test
+    public void testResolvesKeptBuild() throws IOException {
+        builds.put(HdfsWorkspaceReader.key("org.acme", "lib", "1.0"), "job-1");
+        File f = reader.findArtifact(artifact("org.acme", "lib", "1.0", "jar"));
+        Assert.assertEquals("first", FileUtils.readFileToString(f));
+        Assert.assertEquals(Collections.singletonList("1.0"),
+                reader.findVersions(artifact("org.acme", "lib", "1.0", "jar")));
+    }
+
+    @Test
+    public void testIgnoresArtifactsOfOtherJobs() {
+        Assert.assertNull(reader.findArtifact(artifact("org.acme", "lib", "1.0", "jar")));
+        Assert.assertTrue(reader.findVersions(artifact("org.acme", "lib", "1.0", "jar")).isEmpty());
+    }
+
+    @Test
+    public void testMissingFile() {
+        builds.put(HdfsWorkspaceReader.key("org.acme", "lib", "1.0"), "job-1");
+        Assert.assertNull(reader.findArtifact(artifact("org.acme", "lib", "1.0", "war")));
+        // the kept build is gone
+        builds.put(HdfsWorkspaceReader.key("org.acme", "lib", "1.0"), "job-3");
+        Assert.assertNull(reader.findArtifact(artifact("org.acme", "lib", "1.0", "jar")));
+    }
+
+    @Test
+    public void testReactorFirst() {
+        builds.put(HdfsWorkspaceReader.key("org.acme", "lib", "1.0"), "job-1");
+        Artifact a = artifact("org.acme", "lib", "1.0", "jar");
+        File inReactor = new File(tmp, "lib.jar");
+        when(reactor.findArtifact(a)).thenReturn(inReactor);
+        Assert.assertEquals(inReactor, reader.findArtifact(a));
+    }
+
+    private void publish(String buildId, String content) throws IOException {
+        FileUtils.writeStringToFile(fs.toFile(GridRepositoryLayout.buildDir("org.acme", "lib", "1.0", buildId)
+                + "/lib-1.0.jar"), content);
+    }
+
+    private static Artifact artifact(String groupId, String artifactId, String version, String extension) {
+        Artifact a = mock(Artifact.class);
+        when(a.getGroupId()).thenReturn(groupId);
+        when(a.getArtifactId()).thenReturn(artifactId);
+        when(a.getBaseVersion()).thenReturn(version);
+        when(a.getExtension()).thenReturn(extension);
+        return a;
+    }
+}
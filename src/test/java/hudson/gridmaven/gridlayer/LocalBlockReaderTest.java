@@ -0,0 +1,152 @@
+package hudson.gridmaven.gridlayer;
+
+import hudson.Util;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link LocalBlockReader}.
+ */
+public class LocalBlockReaderTest {
+
+    private File tmp;
+    private File dataDir;
+    private RootedLocalFileSystem fs;
+    private LocalBlockReader reader;
+
+    @Before
+    public void before() throws IOException {
+        tmp = Util.createTempDir();
+        dataDir = new File(tmp, "datanode");
+        fs = new RootedLocalFileSystem(new File(tmp, "hdfs"));
+        reader = new LocalBlockReader(fs, dataDir);
+    }
+
+    @After
+    public void after() throws IOException {
+        Util.deleteRecursive(tmp);
+    }
+
+    @Test
+    public void testFindsBlockWithItsGenerationStamp() throws IOException {
+        File f = storeBlock("current", 1, 1001, "hello ");
+        Assert.assertEquals(f, reader.localBlock(new Block(1, 6, 1001)));
+    }
+
+    @Test
+    public void testFindsBlockInSubdirectory() throws IOException {
+        File f = storeBlock("current/subdir3", 1, 1001, "hello ");
+        Assert.assertEquals(f, reader.localBlock(new Block(1, 6, 1001)));
+    }
+
+    @Test
+    public void testIgnoresOtherGeneration() throws IOException {
+        storeBlock("current", 1, 1001, "hello ");
+        Assert.assertNull(reader.localBlock(new Block(1, 6, 1002)));
+    }
+
+    @Test
+    public void testIgnoresIncompleteBlock() throws IOException {
+        storeBlock("current", 1, 1001, "hel");
+        Assert.assertNull(reader.localBlock(new Block(1, 6, 1001)));
+    }
+
+    @Test
+    public void testIgnoresBlockWithoutMetaFile() throws IOException {
+        File f = storeBlock("current", 1, 1001, "hello ");
+        new File(f.getPath() + "_1001.meta").delete();
+        Assert.assertNull(reader.localBlock(new Block(1, 6, 1001)));
+    }
+
+    @Test
+    public void testUnknownBlock() throws IOException {
+        storeBlock("current", 1, 1001, "hello ");
+        Assert.assertNull(reader.localBlock(new Block(2, 6, 1001)));
+    }
+
+    @Test
+    public void testScansOnlyOnce() throws IOException {
+        storeBlock("current", 1, 1001, "hello ");
+        Assert.assertNull(reader.localBlock(new Block(2, 6, 1001)));
+
+        // stored after the scan, read through the data node
+        storeBlock("current", 2, 1001, "world!");
+        Assert.assertNull(reader.localBlock(new Block(2, 6, 1001)));
+        Assert.assertNotNull(reader.localBlock(new Block(1, 6, 1001)));
+    }
+
+    @Test
+    public void testMixesLocalAndRemoteBlocks() throws IOException {
+        storeFile("hello world!");
+        storeBlock("current", 1, 1001, "hello ");
+
+        Assert.assertEquals("hello world!", read(twoBlocks()));
+        Assert.assertEquals(6, reader.getLocalBytes());
+        Assert.assertEquals(6, reader.getRemoteBytes());
+    }
+
+    @Test
+    public void testFallsBackWhenBlockFileIsGone() throws IOException {
+        storeFile("hello world!");
+        File f = storeBlock("current", 1, 1001, "hello ");
+        Assert.assertNotNull(reader.localBlock(new Block(1, 6, 1001)));
+
+        // the data node moved the block after the scan
+        f.delete();
+        Assert.assertEquals("hello world!", read(twoBlocks()));
+        Assert.assertEquals(0, reader.getLocalBytes());
+        Assert.assertEquals(12, reader.getRemoteBytes());
+    }
+
+    @Test
+    public void testWholeFileWithoutBlockLocations() throws IOException {
+        storeFile("hello world!");
+        Assert.assertEquals("hello world!", read(reader.open(new Path("/data/f"), null)));
+        Assert.assertEquals(12, reader.getRemoteBytes());
+    }
+
+    private InputStream twoBlocks() throws IOException {
+        List<LocatedBlock> blocks = Arrays.asList(
+                new LocatedBlock(new Block(1, 6, 1001), new DatanodeInfo[0], 0),
+                new LocatedBlock(new Block(2, 6, 1001), new DatanodeInfo[0], 6));
+        return reader.open(new Path("/data/f"), blocks);
+    }
+
+    private void storeFile(String content) throws IOException {
+        FileUtils.writeStringToFile(fs.toFile("/data/f"), content);
+    }
+
+    /**
+     * Stores a block file with its meta file, the way the data node lays them out.
+     */
+    private File storeBlock(String dir, long id, long generation, String content) throws IOException {
+        File f = new File(dataDir, dir + "/blk_" + id);
+        FileUtils.writeStringToFile(f, content);
+        FileUtils.writeStringToFile(new File(f.getPath() + "_" + generation + ".meta"), "");
+        return f;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            Util.copyStream(in, out);
+        } finally {
+            in.close();
+        }
+        return out.toString("UTF-8");
+    }
+}
@@ -0,0 +1,155 @@
+package hudson.gridmaven.gridlayer;
+
+import hudson.Util;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link LocalRepositoryInstaller}.
+ */
+public class LocalRepositoryInstallerTest {
+
+    private File tmp;
+    private File repo;
+    private LocalRepositoryInstaller installer;
+    private Properties props;
+
+    @Before
+    public void before() throws IOException {
+        tmp = Util.createTempDir();
+        repo = new File(tmp, "repository");
+        installer = new LocalRepositoryInstaller(repo);
+        props = new Properties();
+        props.setProperty("user.home", new File(tmp, "home").getPath());
+    }
+
+    @After
+    public void after() throws IOException {
+        Util.deleteRecursive(tmp);
+    }
+
+    @Test
+    public void testInstallsInRepositoryLayout() throws IOException {
+        installer.install("org.example", "lib", "1.0", "jar", file("lib.jar", "classes"), file("pom.xml", "<project/>"));
+
+        File dir = new File(repo, "org/example/lib/1.0");
+        Assert.assertEquals("classes", FileUtils.readFileToString(new File(dir, "lib-1.0.jar")));
+        Assert.assertEquals("<project/>", FileUtils.readFileToString(new File(dir, "lib-1.0.pom")));
+        // no temporary copies left behind
+        Assert.assertEquals(2, dir.list().length);
+    }
+
+    @Test
+    public void testInstallsPomPackaging() throws IOException {
+        installer.install("org.example", "parent", "1.0", "pom", null, file("pom.xml", "<project/>"));
+        Assert.assertEquals(Arrays.asList("parent-1.0.pom"), Arrays.asList(new File(repo, "org/example/parent/1.0").list()));
+    }
+
+    @Test
+    public void testReplacesInstalledArtifact() throws IOException {
+        installer.install("org.example", "lib", "1.0", "jar", file("lib.jar", "old"), file("pom.xml", "<project/>"));
+        installer.install("org.example", "lib", "1.0", "jar", file("lib.jar", "new"), file("pom.xml", "<project/>"));
+        Assert.assertEquals("new", FileUtils.readFileToString(new File(repo, "org/example/lib/1.0/lib-1.0.jar")));
+    }
+
+    @Test
+    public void testInstallsAttached() throws IOException {
+        installer.install("org.example", "lib", "1.0", "jar", file("lib.jar", "classes"), file("pom.xml", "<project/>"));
+        installer.installAttached("org.example", "lib", "1.0", "sources", "jar", file("src.jar", "sources"));
+        Assert.assertEquals("sources",
+                FileUtils.readFileToString(new File(repo, "org/example/lib/1.0/lib-1.0-sources.jar")));
+    }
+
+    @Test
+    public void testMergesVersionsInMetadata() throws IOException {
+        installer.install("org.example", "lib", "1.0", "jar", file("lib.jar", "a"), file("pom.xml", "<project/>"));
+        installer.install("org.example", "lib", "1.1", "jar", file("lib.jar", "b"), file("pom.xml", "<project/>"));
+        installer.install("org.example", "lib", "1.0", "jar", file("lib.jar", "c"), file("pom.xml", "<project/>"));
+
+        String metadata = FileUtils.readFileToString(new File(repo, "org/example/lib/maven-metadata-local.xml"));
+        Assert.assertTrue(metadata, metadata.contains("<groupId>org.example</groupId>"));
+        Assert.assertTrue(metadata, metadata.contains("<artifactId>lib</artifactId>"));
+        Assert.assertTrue(metadata, metadata.contains(
+                "<version>1.0</version>\n      <version>1.1</version>\n    </versions>"));
+    }
+
+    @Test
+    public void testMarksSnapshotAsLocalCopy() throws IOException {
+        installer.install("org.example", "lib", "1.0-SNAPSHOT", "jar", file("lib.jar", "a"), file("pom.xml", "<project/>"));
+
+        String metadata = FileUtils.readFileToString(new File(repo, "org/example/lib/1.0-SNAPSHOT/maven-metadata-local.xml"));
+        Assert.assertTrue(metadata, metadata.contains("<version>1.0-SNAPSHOT</version>"));
+        Assert.assertTrue(metadata, metadata.contains("<localCopy>true</localCopy>"));
+    }
+
+    @Test
+    public void testLocatesDefaultRepository() {
+        Assert.assertEquals(new File(tmp, "home/.m2/repository"), locate());
+    }
+
+    @Test
+    public void testLocatesRepositoryOfCommandLine() {
+        props.setProperty("maven.repo.local", "/from/property");
+        Assert.assertEquals(new File("/from/command"), locate("-Dmaven.repo.local=/from/command"));
+        Assert.assertEquals(new File("/from/property"), locate());
+        props.remove("maven.repo.local");
+        Assert.assertEquals(new File("/from/settings"), locate("-Dsettings.localRepository=/from/settings"));
+    }
+
+    @Test
+    public void testLocatesRepositoryOfUserSettings() throws IOException {
+        settings("home/.m2/settings.xml", "${user.home}/repo");
+        Assert.assertEquals(new File(tmp, "home/repo"), locate());
+
+        File other = settings("other.xml", "/other/repo");
+        Assert.assertEquals(new File("/other/repo"), locate("-s", other.getPath()));
+    }
+
+    @Test
+    public void testLocatesRepositoryOfGlobalSettings() throws IOException {
+        settings("maven/conf/settings.xml", "/global/repo");
+        Assert.assertEquals(new File("/global/repo"), locate());
+
+        File other = settings("global.xml", "/other/repo");
+        Assert.assertEquals(new File("/other/repo"), locate("-gs", other.getPath()));
+
+        // the user settings take precedence
+        settings("home/.m2/settings.xml", "/user/repo");
+        Assert.assertEquals(new File("/user/repo"), locate());
+    }
+
+    @Test
+    public void testInterpolatesProperties() throws IOException {
+        settings("home/.m2/settings.xml", "${repo.base}/repo");
+        Assert.assertEquals(new File("/base/repo"), locate("-Drepo.base=/base"));
+    }
+
+    private File locate(String... args) {
+        List<String> list = Arrays.asList(args);
+        return LocalRepositoryInstaller.locate(args.length > 0 ? list : Collections.<String>emptyList(),
+                props, new File(tmp, "maven").getPath());
+    }
+
+    private File settings(String path, String localRepository) throws IOException {
+        File f = new File(tmp, path);
+        FileUtils.writeStringToFile(f, "<settings>\n  <localRepository>" + localRepository
+                + "</localRepository>\n</settings>\n");
+        return f;
+    }
+
+    private File file(String name, String content) throws IOException {
+        File f = new File(tmp, name);
+        FileUtils.writeStringToFile(f, content);
+        return f;
+    }
+}
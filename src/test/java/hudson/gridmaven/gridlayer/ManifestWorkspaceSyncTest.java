@@ -0,0 +1,164 @@
+package hudson.gridmaven.gridlayer;
+
+import hudson.Util;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link ManifestWorkspaceSync}.
+ */
+public class ManifestWorkspaceSyncTest {
+
+    private File tmp;
+    private File source;
+    private File target;
+    private File state;
+    private RootedLocalFileSystem fs;
+
+    @Before
+    public void before() throws IOException {
+        tmp = Util.createTempDir();
+        source = new File(tmp, "source");
+        target = new File(tmp, "target");
+        state = new File(tmp, "state/module.manifest");
+        fs = new RootedLocalFileSystem(new File(tmp, "hdfs"));
+
+        new File(source, "src/main").mkdirs();
+        write(new File(source, "pom.xml"), "<project/>");
+        write(new File(source, "src/main/A.java"), "class A {}");
+        write(new File(source, "src/main/B.java"), "class B {}");
+    }
+
+    @After
+    public void after() throws IOException {
+        Util.deleteRecursive(tmp);
+    }
+
+    @Test
+    public void testFullSync() throws IOException {
+        ManifestWorkspaceSync sync = sync(publish(SnapshotCodec.NONE));
+        Assert.assertEquals(3, sync.getFetchedFiles());
+        Assert.assertEquals(0, sync.getDeletedFiles());
+        Assert.assertEquals("class A {}", read(new File(target, "src/main/A.java")));
+        Assert.assertTrue(state.isFile());
+    }
+
+    @Test
+    public void testCompressedBlobs() throws IOException {
+        sync(publish(SnapshotCodec.GZIP));
+        Assert.assertEquals("<project/>", read(new File(target, "pom.xml")));
+    }
+
+    @Test
+    public void testAddChangeDelete() throws IOException {
+        sync(publish(SnapshotCodec.NONE));
+
+        write(new File(source, "src/main/A.java"), "class A { int x; }");
+        write(new File(source, "src/main/C.java"), "class C {}");
+        new File(source, "src/main/B.java").delete();
+        ManifestWorkspaceSync sync = sync(publish(SnapshotCodec.NONE));
+
+        Assert.assertEquals(2, sync.getFetchedFiles());
+        Assert.assertEquals(1, sync.getDeletedFiles());
+        Assert.assertEquals("class A { int x; }", read(new File(target, "src/main/A.java")));
+        Assert.assertEquals("class C {}", read(new File(target, "src/main/C.java")));
+        Assert.assertFalse(new File(target, "src/main/B.java").exists());
+    }
+
+    @Test
+    public void testUnchanged() throws IOException {
+        SourceManifest m = publish(SnapshotCodec.NONE);
+        sync(m);
+        ManifestWorkspaceSync sync = sync(m);
+        Assert.assertEquals(0, sync.getFetchedFiles());
+        Assert.assertEquals(0, sync.getDeletedFiles());
+    }
+
+    @Test
+    public void testLocalModification() throws IOException {
+        SourceManifest m = publish(SnapshotCodec.NONE);
+        sync(m);
+
+        // a build that rewrote a source file in place
+        write(new File(target, "src/main/A.java"), "class A { generated }");
+        ManifestWorkspaceSync sync = sync(m);
+        Assert.assertEquals(1, sync.getFetchedFiles());
+        Assert.assertEquals("class A {}", read(new File(target, "src/main/A.java")));
+    }
+
+    @Test
+    public void testMissingStateSyncsEverything() throws IOException {
+        SourceManifest m = publish(SnapshotCodec.NONE);
+        sync(m);
+        state.delete();
+        Assert.assertEquals(3, sync(m).getFetchedFiles());
+    }
+
+    @Test
+    public void testCorruptedBlob() throws IOException {
+        SourceManifest m = publish(SnapshotCodec.NONE);
+        String hash = m.get("pom.xml").hash;
+        write(fs.toFile(GridRepositoryLayout.blobPath(hash, SnapshotCodec.NONE)), "<broken/>!");
+        try {
+            sync(m);
+            Assert.fail("corrupted blob accepted");
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertFalse(new File(target, "pom.xml").exists());
+        Assert.assertFalse(state.exists());
+    }
+
+    /**
+     * Stores the blobs of the source directory, like the master does before a build.
+     */
+    private SourceManifest publish(SnapshotCodec codec) throws IOException {
+        SourceManifest m = SourceManifest.scan(source);
+        m.setCodec(codec);
+        for (SourceManifest.Entry e : m.getEntries()) {
+            if (e.isDirectory())
+                continue;
+            File blob = fs.toFile(GridRepositoryLayout.blobPath(e.hash, codec));
+            blob.getParentFile().mkdirs();
+            InputStream in = new FileInputStream(new File(source, e.path));
+            OutputStream out = codec.encode(new FileOutputStream(blob));
+            try {
+                Util.copyStream(in, out);
+            } finally {
+                in.close();
+                out.close();
+            }
+        }
+        return m;
+    }
+
+    private ManifestWorkspaceSync sync(SourceManifest m) throws IOException {
+        ManifestWorkspaceSync sync = new ManifestWorkspaceSync(fs);
+        sync.sync(m, target, state);
+        return sync;
+    }
+
+    private static String read(File f) throws IOException {
+        return FileUtils.readFileToString(f);
+    }
+
+    private static void write(File f, String content) throws IOException {
+        FileWriter w = new FileWriter(f);
+        try {
+            w.write(content);
+        } finally {
+            w.close();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package hudson.gridmaven.gridlayer;
+
+import hudson.Util;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests which name directories {@link NameNodeStartTask} keeps instead of formatting.
+ */
+public class NameNodeStartTaskTest {
+
+    private File namedir;
+
+    @Before
+    public void before() throws IOException {
+        namedir = Util.createTempDir();
+    }
+
+    @After
+    public void after() throws IOException {
+        Util.deleteRecursive(namedir);
+    }
+
+    @Test
+    public void testEmptyDirectoryHasNoNamespace() {
+        Assert.assertFalse(NameNodeStartTask.hasNamespace(namedir));
+        Assert.assertFalse(NameNodeStartTask.hasNamespace(new File(namedir, "missing")));
+    }
+
+    @Test
+    public void testFormattedDirectoryHasNamespace() throws IOException {
+        new File(namedir, "current").mkdirs();
+        FileWriter w = new FileWriter(new File(namedir, "current/VERSION"));
+        try {
+            w.write("namespaceID=42\n");
+        } finally {
+            w.close();
+        }
+        Assert.assertTrue(NameNodeStartTask.hasNamespace(namedir));
+    }
+
+    @Test
+    public void testHalfFormattedDirectoryHasNoNamespace() {
+        // a format interrupted before VERSION was written
+        new File(namedir, "current/VERSION").mkdirs();
+        Assert.assertFalse(NameNodeStartTask.hasNamespace(namedir));
+    }
+}
@@ -0,0 +1,197 @@
+package hudson.gridmaven.gridlayer;
+
+import hudson.Util;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link NodeArtifactCache}.
+ */
+public class NodeArtifactCacheTest {
+
+    private File tmp;
+    private File dir;
+    private RootedLocalFileSystem fs;
+
+    @Before
+    public void before() throws IOException {
+        tmp = Util.createTempDir();
+        dir = new File(tmp, "cache");
+        fs = new RootedLocalFileSystem(new File(tmp, "hdfs"));
+    }
+
+    @After
+    public void after() throws IOException {
+        Util.deleteRecursive(tmp);
+    }
+
+    @Test
+    public void testMissThenHit() throws IOException {
+        NodeArtifactCache cache = new NodeArtifactCache(dir, 1024 * 1024);
+        FileStatus status = publish("a.jar", "first");
+        File cached = cache.get(fs, status);
+        Assert.assertEquals("a.jar", cached.getName());
+        Assert.assertEquals("first", FileUtils.readFileToString(cached));
+
+        // a hit does not read the repository any more
+        fs.toFile("/repo/a.jar").delete();
+        Assert.assertEquals(cached, cache.get(fs, status));
+        Assert.assertEquals("first", FileUtils.readFileToString(cached));
+    }
+
+    @Test
+    public void testRewrittenFileIsNewEntry() throws IOException {
+        NodeArtifactCache cache = new NodeArtifactCache(dir, 1024 * 1024);
+        File first = cache.get(fs, publish("a.jar", "first"));
+        File second = cache.get(fs, publish("a.jar", "second build"));
+        Assert.assertFalse(first.equals(second));
+        Assert.assertEquals("second build", FileUtils.readFileToString(second));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        NodeArtifactCache cache = new NodeArtifactCache(dir, 2500);
+        File a = cache.get(fs, publish("a.jar", content('a', 1000)));
+        File b = cache.get(fs, publish("b.jar", content('b', 1000)));
+        a.getParentFile().setLastModified(System.currentTimeMillis() - 60000);
+        b.getParentFile().setLastModified(System.currentTimeMillis() - 30000);
+        cache.release();
+        File c = cache.get(fs, publish("c.jar", content('c', 1000)));
+
+        Assert.assertFalse(a.exists());
+        Assert.assertTrue(b.isFile());
+        Assert.assertTrue(c.isFile());
+        // the entries of b and c, and the lock files of all three
+        Assert.assertEquals(5, dir.list().length);
+    }
+
+    @Test
+    public void testPinnedEntriesAreKept() throws IOException {
+        NodeArtifactCache cache = new NodeArtifactCache(dir, 1500);
+        NodeArtifactCache other = new NodeArtifactCache(dir, 1500);
+        File a = cache.get(fs, publish("a.jar", content('a', 1000)));
+        a.getParentFile().setLastModified(System.currentTimeMillis() - 60000);
+
+        File b = other.get(fs, publish("b.jar", content('b', 1000)));
+        Assert.assertTrue(a.isFile());
+        Assert.assertTrue(b.isFile());
+
+        cache.release();
+        other.release();
+        other.get(fs, publish("c.jar", content('c', 1000)));
+        Assert.assertFalse(a.exists());
+    }
+
+    @Test
+    public void testPinsAreCounted() throws IOException {
+        NodeArtifactCache cache = new NodeArtifactCache(dir, 1500);
+        NodeArtifactCache other = new NodeArtifactCache(dir, 1500);
+        FileStatus status = publish("a.jar", content('a', 1000));
+        File a = cache.get(fs, status);
+        other.get(fs, status);
+        a.getParentFile().setLastModified(System.currentTimeMillis() - 60000);
+
+        // still pinned by the other user
+        cache.release();
+        NodeArtifactCache third = new NodeArtifactCache(dir, 1500);
+        third.get(fs, publish("b.jar", content('b', 1000)));
+        Assert.assertTrue(a.isFile());
+
+        other.release();
+        third.release();
+        third.get(fs, publish("c.jar", content('c', 1000)));
+        Assert.assertFalse(a.exists());
+    }
+
+    @Test
+    public void testRecentlyUsedEntryIsKept() throws IOException {
+        NodeArtifactCache cache = new NodeArtifactCache(dir, 2500);
+        FileStatus a = publish("a.jar", content('a', 1000));
+        File cachedA = cache.get(fs, a);
+        File b = cache.get(fs, publish("b.jar", content('b', 1000)));
+        cachedA.getParentFile().setLastModified(System.currentTimeMillis() - 60000);
+        b.getParentFile().setLastModified(System.currentTimeMillis() - 30000);
+        cache.get(fs, a); // makes a the most recently used one
+        cache.release();
+
+        cache.get(fs, publish("c.jar", content('c', 1000)));
+        Assert.assertTrue(cachedA.isFile());
+        Assert.assertFalse(b.exists());
+    }
+
+    @Test
+    public void testRemovesAbandonedLockFiles() throws IOException {
+        dir.mkdirs();
+        File orphan = new File(dir, "0123abcd.lock");
+        FileUtils.writeStringToFile(orphan, "");
+        orphan.setLastModified(System.currentTimeMillis() - 24 * 60 * 60 * 1000);
+        // may have just been created for a download
+        File recent = new File(dir, "4567cdef.lock");
+        FileUtils.writeStringToFile(recent, "");
+        new NodeArtifactCache(dir, 1024 * 1024).get(fs, publish("a.jar", "first"));
+        Assert.assertFalse(orphan.exists());
+        Assert.assertTrue(recent.exists());
+    }
+
+    @Test
+    public void testKeyIsFileVersion() throws IOException {
+        FileStatus a = publish("a.jar", "same");
+        FileStatus b = new FileStatus(a.getLen(), false, 1, 1, a.getModificationTime(), new Path("/repo/b.jar"));
+        FileStatus rewritten = new FileStatus(a.getLen(), false, 1, 1, a.getModificationTime() + 1000, a.getPath());
+        Assert.assertEquals(NodeArtifactCache.cacheKey(a), NodeArtifactCache.cacheKey(
+                new FileStatus(a.getLen(), false, 3, 1, a.getModificationTime(), a.getPath())));
+        Assert.assertFalse(NodeArtifactCache.cacheKey(a).equals(NodeArtifactCache.cacheKey(b)));
+        Assert.assertFalse(NodeArtifactCache.cacheKey(a).equals(NodeArtifactCache.cacheKey(rewritten)));
+    }
+
+    @Test
+    public void testConcurrentRequests() throws Exception {
+        final NodeArtifactCache cache = new NodeArtifactCache(dir, 1024 * 1024);
+        final FileStatus status = publish("a.jar", content('a', 100000));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<File>> results = new ArrayList<Future<File>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<File>() {
+                    public File call() throws IOException {
+                        return cache.get(fs, status);
+                    }
+                }));
+            }
+            File first = results.get(0).get();
+            for (Future<File> r : results)
+                Assert.assertEquals(first, r.get());
+            Assert.assertEquals(100000, first.length());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private FileStatus publish(String name, String content) throws IOException {
+        File f = fs.toFile("/repo/" + name);
+        FileUtils.writeStringToFile(f, content);
+        return fs.getFileStatus(new Path("/repo/" + name));
+    }
+
+    private static String content(char c, int length) {
+        StringBuilder b = new StringBuilder(length);
+        for (int i = 0; i < length; i++)
+            b.append(c);
+        return b.toString();
+    }
+}
@@ -0,0 +1,59 @@
+package hudson.gridmaven.gridlayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+
+/**
+ * Local file system that keeps the absolute paths of the grid repository
+ * layout under a temporary directory, standing in for HDFS in unit tests.
+ */
+public class RootedLocalFileSystem extends RawLocalFileSystem {
+
+    private final File root;
+
+    public RootedLocalFileSystem(File root) throws IOException {
+        this.root = root;
+        initialize(URI.create("file:///"), new Configuration());
+    }
+
+    /**
+     * Local file behind an HDFS path.
+     */
+    public File toFile(String path) {
+        return new File(root, path);
+    }
+
+    @Override
+    public File pathToFile(Path path) {
+        return toFile(path.toUri().getPath());
+    }
+
+    /**
+     * Reports the path asked for, not the one on the local disk.
+     */
+    @Override
+    public FileStatus getFileStatus(Path f) throws IOException {
+        FileStatus s = super.getFileStatus(f);
+        return new FileStatus(s.getLen(), s.isDir(), s.getReplication(), s.getBlockSize(),
+                s.getModificationTime(), f.makeQualified(this));
+    }
+
+    @Override
+    public FileStatus[] listStatus(Path f) throws IOException {
+        File dir = pathToFile(f);
+        if (!dir.exists())
+            return null;
+        if (dir.isFile())
+            return new FileStatus[] {getFileStatus(f)};
+        String[] names = dir.list();
+        FileStatus[] r = new FileStatus[names.length];
+        for (int i = 0; i < names.length; i++)
+            r[i] = getFileStatus(new Path(f, names[i]));
+        return r;
+    }
+}
@@ -0,0 +1,89 @@
+package hudson.gridmaven.gridlayer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link SnapshotCodec}.
+ */
+public class SnapshotCodecTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        byte[] data = sample();
+        for (SnapshotCodec c : SnapshotCodec.values())
+            Assert.assertTrue(c.getId(), Arrays.equals(data, decode(c, encode(c, data))));
+    }
+
+    @Test
+    public void testEmptyContent() throws IOException {
+        for (SnapshotCodec c : SnapshotCodec.values())
+            Assert.assertEquals(c.getId(), 0, decode(c, encode(c, new byte[0])).length);
+    }
+
+    @Test
+    public void testCompression() throws IOException {
+        byte[] data = new byte[100000]; // zeroes compress well
+        Assert.assertEquals(data.length, encode(SnapshotCodec.NONE, data).length);
+        Assert.assertTrue(encode(SnapshotCodec.GZIP, data).length < data.length / 10);
+        Assert.assertTrue(encode(SnapshotCodec.FAST, data).length < data.length / 10);
+    }
+
+    @Test
+    public void testExtensionsDiffer() {
+        Set<String> extensions = new HashSet<String>();
+        for (SnapshotCodec c : SnapshotCodec.values())
+            Assert.assertTrue(c.getId(), extensions.add(c.getExtension()));
+    }
+
+    @Test
+    public void testFromId() {
+        for (SnapshotCodec c : SnapshotCodec.values())
+            Assert.assertSame(c, SnapshotCodec.fromId(c.getId()));
+        Assert.assertSame(SnapshotCodec.NONE, SnapshotCodec.fromId(null));
+        Assert.assertSame(SnapshotCodec.NONE, SnapshotCodec.fromId("bzip2"));
+    }
+
+    private static byte[] sample() {
+        byte[] data = new byte[3 * SourceManifest.BUFFER_SIZE + 17];
+        Random r = new Random(42);
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (i % 7 == 0 ? r.nextInt() : 'a' + i % 26);
+        return data;
+    }
+
+    private static byte[] encode(SnapshotCodec c, byte[] data) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        OutputStream out = c.encode(buf);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return buf.toByteArray();
+    }
+
+    private static byte[] decode(SnapshotCodec c, byte[] data) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        InputStream in = c.decode(new ByteArrayInputStream(data));
+        try {
+            byte[] b = new byte[4096];
+            int len;
+            while ((len = in.read(b)) >= 0)
+                buf.write(b, 0, len);
+        } finally {
+            in.close();
+        }
+        return buf.toByteArray();
+    }
+}
@@ -0,0 +1,94 @@
+package hudson.gridmaven.gridlayer;
+
+import hudson.Util;
+import hudson.model.TaskListener;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link SourceManifest}.
+ */
+public class SourceManifestTest {
+
+    private File dir;
+
+    @Before
+    public void before() throws IOException {
+        dir = Util.createTempDir();
+        new File(dir, "src/main").mkdirs();
+        write(new File(dir, "pom.xml"), "<project/>");
+        write(new File(dir, "src/main/A.java"), "class A {}");
+    }
+
+    @After
+    public void after() throws IOException {
+        Util.deleteRecursive(dir);
+    }
+
+    @Test
+    public void testScanAndRoundTrip() throws IOException {
+        SourceManifest m = SourceManifest.scan(dir);
+        Assert.assertTrue(m.get("src").isDirectory());
+        Assert.assertTrue(m.get("src/main").isDirectory());
+        Assert.assertEquals(10, m.get("pom.xml").size);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        m.write(out);
+        SourceManifest read = SourceManifest.read(new ByteArrayInputStream(out.toByteArray()));
+
+        Assert.assertEquals(m.getEntries().size(), read.getEntries().size());
+        Assert.assertEquals(m.get("src/main/A.java").hash, read.get("src/main/A.java").hash);
+        Assert.assertEquals(m.digest(), read.digest());
+    }
+
+    @Test
+    public void testDigestChangesWithContent() throws IOException {
+        String before = SourceManifest.scan(dir).digest();
+        write(new File(dir, "src/main/A.java"), "class A { int x; }");
+        Assert.assertFalse(before.equals(SourceManifest.scan(dir).digest()));
+    }
+
+    @Test
+    public void testSingleFile() throws IOException {
+        SourceManifest m = SourceManifest.scan(new File(dir, "pom.xml"));
+        Assert.assertEquals(1, m.getEntries().size());
+        Assert.assertNotNull(m.get("pom.xml").hash);
+    }
+
+    @Test
+    public void testSymlinks() throws Exception {
+        File outside = Util.createTempDir();
+        try {
+            write(new File(outside, "secret.txt"), "secret");
+            Util.createSymlink(new File(dir, "src"), "..", "loop", TaskListener.NULL);
+            Util.createSymlink(dir, outside.getAbsolutePath(), "outside", TaskListener.NULL);
+            Util.createSymlink(dir, new File(outside, "secret.txt").getAbsolutePath(), "secret.txt", TaskListener.NULL);
+            Util.createSymlink(dir, "pom.xml", "pom-link.xml", TaskListener.NULL);
+
+            SourceManifest m = SourceManifest.scan(dir);
+            Assert.assertNull(m.get("src/loop"));
+            Assert.assertNull(m.get("outside"));
+            Assert.assertNull(m.get("secret.txt"));
+            Assert.assertEquals(m.get("pom.xml").hash, m.get("pom-link.xml").hash);
+        } finally {
+            Util.deleteRecursive(outside);
+        }
+    }
+
+    private static void write(File f, String content) throws IOException {
+        FileWriter w = new FileWriter(f);
+        try {
+            w.write(content);
+        } finally {
+            w.close();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package hudson.gridmaven.scheduler;
+
+import static org.mockito.Mockito.when;
+import hudson.gridmaven.InputFingerprintAction;
+import hudson.gridmaven.MavenBuild;
+import hudson.model.Result;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+/**
+ * Unit test for {@link CriticalPathEstimator}.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest( { MavenBuild.class })
+public class CriticalPathEstimatorTest {
+
+    private final List<MavenBuild> builds = new ArrayList<MavenBuild>();
+
+    @Test
+    public void testAveragesRecentBuilds() {
+        build(Result.SUCCESS, 100, false);
+        build(Result.UNSTABLE, 200, false);
+        build(Result.SUCCESS, 300, false);
+        build(Result.SUCCESS, 1000, false);
+        Assert.assertEquals(200, CriticalPathEstimator.estimateDuration(builds));
+    }
+
+    @Test
+    public void testSkipsUpToDateBuilds() {
+        build(Result.SUCCESS, 1, true);
+        build(Result.SUCCESS, 1, true);
+        build(Result.SUCCESS, 100, false);
+        build(Result.SUCCESS, 1, true);
+        build(Result.SUCCESS, 300, false);
+        Assert.assertEquals(200, CriticalPathEstimator.estimateDuration(builds));
+    }
+
+    @Test
+    public void testSkipsFailedAndRunningBuilds() {
+        build(null, 0, false);
+        build(Result.FAILURE, 10, false);
+        build(Result.ABORTED, 10, false);
+        build(Result.SUCCESS, 100, false);
+        Assert.assertEquals(100, CriticalPathEstimator.estimateDuration(builds));
+    }
+
+    @Test
+    public void testUnknownWithoutUsableBuilds() {
+        Assert.assertEquals(-1, CriticalPathEstimator.estimateDuration(builds));
+        build(Result.SUCCESS, 1, true);
+        Assert.assertEquals(-1, CriticalPathEstimator.estimateDuration(builds));
+    }
+
+    private void build(Result result, long duration, boolean upToDate) {
+        MavenBuild b = PowerMockito.mock(MavenBuild.class);
+        when(b.getResult()).thenReturn(result);
+        when(b.isBuilding()).thenReturn(result == null);
+        when(b.getDuration()).thenReturn(duration);
+        when(b.getAction(InputFingerprintAction.class))
+                .thenReturn(new InputFingerprintAction("fingerprint", upToDate ? "job-1" : null));
+        builds.add(b);
+    }
+}
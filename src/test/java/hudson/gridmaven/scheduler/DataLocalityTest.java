@@ -0,0 +1,41 @@
+package hudson.gridmaven.scheduler;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests which DataNode hosts {@link DataLocality} prefers.
+ */
+public class DataLocalityTest {
+
+    private final Map<String, Long> bytes = new HashMap<String, Long>();
+
+    @Test
+    public void testPrefersHostWithMostBytes() {
+        bytes.put("a", 10L);
+        bytes.put("b", 30L);
+        bytes.put("c", 20L);
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("b")), DataLocality.busiestHosts(bytes));
+    }
+
+    @Test
+    public void testPrefersAllReplicas() {
+        // with replication every block is on several hosts
+        bytes.put("a", 30L);
+        bytes.put("b", 30L);
+        bytes.put("c", 20L);
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("a", "b")), DataLocality.busiestHosts(bytes));
+    }
+
+    @Test
+    public void testNoBlocks() {
+        Assert.assertTrue(DataLocality.busiestHosts(bytes).isEmpty());
+        bytes.put("a", 0L);
+        Assert.assertTrue(DataLocality.busiestHosts(bytes).isEmpty());
+    }
+}
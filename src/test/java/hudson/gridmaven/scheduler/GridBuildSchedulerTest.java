@@ -0,0 +1,66 @@
+package hudson.gridmaven.scheduler;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests which modules {@link GridBuildScheduler} queues as their upstream modules complete.
+ */
+public class GridBuildSchedulerTest {
+
+    private final Set<String> scheduled = new HashSet<String>();
+    private final Set<String> completed = new HashSet<String>();
+
+    @Test
+    public void testDiamond() {
+        // a -> b, c -> d
+        scheduled.add("a");
+        Assert.assertEquals(Arrays.asList("b", "c"), complete("a", downstream("b", "a", "c", "a")));
+        // d waits for c, though b is done and d is in the next wave anyway
+        Assert.assertEquals(Collections.emptyList(), complete("b", downstream("d", "b,c")));
+        Assert.assertEquals(Arrays.asList("d"), complete("c", downstream("d", "b,c")));
+        Assert.assertTrue(scheduled.contains("d"));
+    }
+
+    @Test
+    public void testDoesNotWaitForTheWave() {
+        // a -> b -> c, while the slow x of b's wave is still running
+        scheduled.addAll(Arrays.asList("a", "x"));
+        Assert.assertEquals(Arrays.asList("b"), complete("a", downstream("b", "a")));
+        Assert.assertEquals(Arrays.asList("c"), complete("b", downstream("c", "b")));
+    }
+
+    @Test
+    public void testQueuesOnce() {
+        scheduled.add("a");
+        scheduled.add("b");
+        completed.add("b");
+        // both finishing upstreams see c ready, only one queues it
+        Assert.assertEquals(Arrays.asList("c"), complete("a", downstream("c", "a,b")));
+        Assert.assertEquals(Collections.emptyList(),
+                GridBuildScheduler.claimReady(downstream("c", "a,b"), scheduled, completed));
+    }
+
+    private List<String> complete(String module, Map<String, List<String>> downstream) {
+        completed.add(module);
+        return GridBuildScheduler.claimReady(downstream, scheduled, completed);
+    }
+
+    /**
+     * Maps downstream modules to their comma separated upstream modules.
+     */
+    private static Map<String, List<String>> downstream(String... pairs) {
+        Map<String, List<String>> r = new LinkedHashMap<String, List<String>>();
+        for (int i = 0; i < pairs.length; i += 2)
+            r.put(pairs[i], Arrays.asList(pairs[i + 1].split(",")));
+        return r;
+    }
+}
@@ -0,0 +1,53 @@
+package hudson.gridmaven.scheduler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link GridQueueSorter}.
+ */
+public class GridQueueSorterTest {
+
+    private final Map<String, Long> remaining = new HashMap<String, Long>();
+
+    @Test
+    public void testLongestPathFirst() {
+        remaining.put("a", 10L);
+        remaining.put("b", 30L);
+        remaining.put("c", 20L);
+        Assert.assertEquals(Arrays.asList("b", "c", "a"), sort("a", "b", "c"));
+    }
+
+    @Test
+    public void testOtherItemsKeepTheirPlaces() {
+        remaining.put("a", 10L);
+        remaining.put("b", 30L);
+        Assert.assertEquals(Arrays.asList("x", "b", "y", "a", "z"), sort("x", "a", "y", "b", "z"));
+    }
+
+    @Test
+    public void testEqualPathsKeepQueueOrder() {
+        remaining.put("a", 10L);
+        remaining.put("b", 10L);
+        remaining.put("c", 20L);
+        Assert.assertEquals(Arrays.asList("c", "a", "b"), sort("a", "b", "c"));
+    }
+
+    @Test
+    public void testWithoutModules() {
+        remaining.put("a", 10L);
+        Assert.assertEquals(Arrays.asList("y", "a", "x"), sort("y", "a", "x"));
+    }
+
+    private List<String> sort(String... items) {
+        List<String> list = new ArrayList<String>(Arrays.asList(items));
+        GridQueueSorter.sort(list, remaining);
+        return list;
+    }
+}